@@ -0,0 +1,305 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.entity;
+
+import org.obrel.core.Relation;
+import org.obrel.core.RelationType;
+import org.obrel.core.RelationTypes;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.obrel.core.RelationTypes.newType;
+
+/**
+ * An index that maps the IDs of child entities to the entities in a child
+ * list of a parent entity. The index is stored as an annotation on the child
+ * relation of the parent and allows to lookup children in constant time
+ * instead of scanning the child list. It is updated by the child management
+ * methods of {@link Entity} and will be rebuilt automatically if it detects
+ * that the child list has been modified in other ways. The index content is
+ * transient and will be rebuilt after deserialization.
+ *
+ * <p>All modifications of an index are synchronized on the child relation.
+ * The index state is published through a volatile reference so that lookups
+ * of a valid index don't need to acquire the lock.</p>
+ *
+ * @author eso
+ */
+class ChildIndex implements Serializable {
+
+	/**
+	 * The annotation of child relations that contains the index.
+	 */
+	static final RelationType<ChildIndex> CHILD_INDEX = newType();
+
+	private static final long serialVersionUID = 1L;
+
+	static {
+		RelationTypes.init(ChildIndex.class);
+	}
+
+	private transient volatile State state;
+
+	/**
+	 * Private, only used internally.
+	 */
+	private ChildIndex() {
+	}
+
+	/**
+	 * Notifies an existing index that children have been added to the child
+	 * list.
+	 *
+	 * @param childRelation The child relation
+	 * @param added         The added children
+	 */
+	static void childrenAdded(Relation<? extends List<? extends Entity>>
+		childRelation, Collection<? extends Entity> added) {
+		synchronized (childRelation) {
+			ChildIndex index = childRelation.get(CHILD_INDEX);
+			State current = index != null ? index.state : null;
+
+			if (current != null) {
+				List<? extends Entity> childList = childRelation.getTarget();
+
+				if (current.size + added.size() == childList.size()) {
+					boolean hasNewChildren = current.hasNewChildren;
+
+					for (Entity child : added) {
+						hasNewChildren |= !add(current.children, child);
+					}
+
+					index.state =
+						new State(current.children, childList, hasNewChildren);
+				} else {
+					index.state = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Notifies an existing index that children have been removed from the
+	 * child list.
+	 *
+	 * @param childRelation The child relation
+	 * @param removed       The removed children
+	 */
+	@SuppressWarnings("boxing")
+	static void childrenRemoved(Relation<? extends List<? extends Entity>>
+		childRelation, Collection<? extends Entity> removed) {
+		synchronized (childRelation) {
+			ChildIndex index = childRelation.get(CHILD_INDEX);
+			State current = index != null ? index.state : null;
+
+			if (current != null) {
+				List<? extends Entity> childList = childRelation.getTarget();
+
+				// only valid if the list has not been modified directly
+				if (current.size - removed.size() == childList.size()) {
+					for (Entity child : removed) {
+						current.children.remove(getId(child), child);
+					}
+
+					index.state = new State(current.children, childList,
+						current.hasNewChildren);
+				} else {
+					index.state = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a child with a certain ID from the child list of a relation.
+	 * If no index exists or if the index has become invalid it will be
+	 * (re-)built before the lookup.
+	 *
+	 * @param childRelation The child relation
+	 * @param id            The ID of the child
+	 * @return The child entity or NULL if no child with the given ID exists
+	 */
+	@SuppressWarnings("boxing")
+	static Entity getChild(Relation<? extends List<? extends Entity>>
+		childRelation, long id) {
+		List<? extends Entity> childList = childRelation.getTarget();
+		Entity child = null;
+
+		if (childList != null && !childList.isEmpty()) {
+			ChildIndex index = getIndex(childRelation);
+			State current = index.state;
+
+			if (current == null || !current.isValid(childList)) {
+				current = index.rebuild(childRelation, current);
+			}
+
+			child = current.children.get(id);
+
+			if ((child == null && current.hasNewChildren) ||
+				(child != null && getId(child) != id)) {
+				// new children may have been persisted since indexing
+				current = index.rebuild(childRelation, null);
+				child = current.children.get(id);
+			}
+		}
+
+		return child;
+	}
+
+	/**
+	 * Adds a child to an index map if it has an ID.
+	 *
+	 * @param children The index map
+	 * @param child    The child entity
+	 * @return TRUE if the child has been indexed, FALSE if it has no ID yet
+	 */
+	@SuppressWarnings("boxing")
+	private static boolean add(Map<Long, Entity> children, Entity child) {
+		long id = getId(child);
+
+		if (id > 0) {
+			children.putIfAbsent(id, child);
+		}
+
+		return id > 0;
+	}
+
+	/**
+	 * Returns the ID of a child or 0 if no ID has been set yet.
+	 *
+	 * @param child The child entity
+	 * @return The child ID
+	 */
+	private static long getId(Entity child) {
+		Number id = child.get(child.getIdAttribute());
+
+		return id != null ? id.longValue() : 0;
+	}
+
+	/**
+	 * Returns the index of a child relation and creates it if necessary.
+	 *
+	 * @param childRelation The child relation
+	 * @return The child index
+	 */
+	private static ChildIndex getIndex(
+		Relation<? extends List<? extends Entity>> childRelation) {
+		ChildIndex index = childRelation.get(CHILD_INDEX);
+
+		if (index == null) {
+			synchronized (childRelation) {
+				index = childRelation.get(CHILD_INDEX);
+
+				if (index == null) {
+					index = new ChildIndex();
+					childRelation.set(CHILD_INDEX, index);
+				}
+			}
+		}
+
+		return index;
+	}
+
+	/**
+	 * Rebuilds this index from the child list of a relation. The new index
+	 * map is built locally and then published as a new state. If the state
+	 * has already been replaced by another thread and is valid it will be
+	 * used without rebuilding.
+	 *
+	 * @param childRelation The child relation
+	 * @param previous      The state that has been found to be invalid or
+	 *                      NULL to force a rebuild
+	 * @return The new index state
+	 */
+	private State rebuild(Relation<? extends List<? extends Entity>>
+		childRelation, State previous) {
+		synchronized (childRelation) {
+			List<? extends Entity> childList = childRelation.getTarget();
+			State current = state;
+
+			if (previous == null || current == previous ||
+				current == null || !current.isValid(childList)) {
+				Map<Long, Entity> children =
+					new ConcurrentHashMap<>(childList.size() * 2);
+				boolean hasNewChildren = false;
+
+				for (Entity child : childList) {
+					hasNewChildren |= !add(children, child);
+				}
+
+				current = new State(children, childList, hasNewChildren);
+				state = current;
+			}
+
+			return current;
+		}
+	}
+
+	/**
+	 * The state of an index. Except for the content of the index map which
+	 * is only modified while holding the lock of the child relation the
+	 * state is immutable and will be replaced on each modification.
+	 *
+	 * @author eso
+	 */
+	private static class State {
+
+		private final Map<Long, Entity> children;
+
+		private final int size;
+
+		private final Entity lastChild;
+
+		private final boolean hasNewChildren;
+
+		/**
+		 * Creates a new instance that records the current state of a child
+		 * list.
+		 *
+		 * @param children       The index map
+		 * @param childList      The child list
+		 * @param hasNewChildren TRUE if the list contains children without
+		 *                       an ID
+		 */
+		State(Map<Long, Entity> children, List<? extends Entity> childList,
+			boolean hasNewChildren) {
+			this.children = children;
+			this.hasNewChildren = hasNewChildren;
+
+			size = childList.size();
+			lastChild = size > 0 ? childList.get(size - 1) : null;
+		}
+
+		/**
+		 * Checks whether this state is still consistent with the given child
+		 * list. Because child lists can be modified directly this will detect
+		 * all modifications that change the size or the last element of the
+		 * list.
+		 *
+		 * @param childList The child list
+		 * @return TRUE if the index is valid
+		 */
+		boolean isValid(List<? extends Entity> childList) {
+			return size > 0 && size == childList.size() &&
+				lastChild == childList.get(size - 1);
+		}
+	}
+}
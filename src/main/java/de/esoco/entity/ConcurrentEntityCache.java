@@ -0,0 +1,171 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.entity;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static de.esoco.entity.EntityRelationTypes.CACHE_ENTITY;
+
+/**
+ * A thread-safe entity cache for a single entity type that doesn't require
+ * external locking. Entities are stored with soft references in a concurrent
+ * map so that they can be reclaimed by the VM if memory gets low. The method
+ * {@link #cacheIfAbsent(Entity)} performs an atomic get-or-insert operation
+ * that guarantees that concurrent readers of the same entity will always
+ * receive the same (first cached) instance.
+ *
+ * <p>Instances of this class can either be registered explicitly with
+ * {@link EntityManager#registerEntityCache(Class, EntityCache)} or they will
+ * be created automatically for each entity type if concurrent caching has
+ * been enabled with {@link EntityManager#setConcurrentCaching(boolean)}.</p>
+ *
+ * @author eso
+ */
+public class ConcurrentEntityCache<E extends Entity>
+	implements EntityCache<E> {
+
+	private final ConcurrentMap<Long, Reference<E>> entities;
+
+	/**
+	 * Creates a new instance with a default initial capacity.
+	 */
+	public ConcurrentEntityCache() {
+		this(256);
+	}
+
+	/**
+	 * Creates a new instance with a certain initial capacity.
+	 *
+	 * @param initialCapacity The initial capacity of the cache
+	 */
+	public ConcurrentEntityCache(int initialCapacity) {
+		entities = new ConcurrentHashMap<>(initialCapacity);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@SuppressWarnings("boxing")
+	public void cacheEntity(E entity) {
+		entities.put(entity.getId(), new SoftReference<>(entity));
+		entity.set(CACHE_ENTITY);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@SuppressWarnings("boxing")
+	public E cacheIfAbsent(E entity) {
+		Long id = entity.getId();
+		Reference<E> newReference = new SoftReference<>(entity);
+		Reference<E> reference = entities.putIfAbsent(id, newReference);
+
+		while (reference != null) {
+			E cachedEntity = reference.get();
+
+			if (cachedEntity != null) {
+				return cachedEntity;
+			}
+
+			// replace reclaimed reference only if no other thread did before
+			if (entities.replace(id, reference, newReference)) {
+				break;
+			}
+
+			reference = entities.putIfAbsent(id, newReference);
+		}
+
+		entity.set(CACHE_ENTITY);
+
+		return entity;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clear() {
+		entities.clear();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@SuppressWarnings("boxing")
+	public E getEntity(long id) {
+		Reference<E> reference = entities.get(id);
+		E entity = null;
+
+		if (reference != null) {
+			entity = reference.get();
+
+			if (entity == null) {
+				entities.remove(id, reference);
+			}
+		}
+
+		return entity;
+	}
+
+	/**
+	 * Always returns TRUE.
+	 *
+	 * @see EntityCache#isConcurrent()
+	 */
+	@Override
+	public boolean isConcurrent() {
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@SuppressWarnings("boxing")
+	public E removeEntity(long id) {
+		Reference<E> reference = entities.remove(id);
+
+		return reference != null ? reference.get() : null;
+	}
+
+	/**
+	 * Returns the number of entries in this cache. This may include entries
+	 * with entities that have already been reclaimed by the garbage collector
+	 * but haven't been removed yet.
+	 *
+	 * @return The current cache size
+	 */
+	public int size() {
+		return entities.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@SuppressWarnings("boxing")
+	public String toString() {
+		return String.format("%s[%d]", getClass().getSimpleName(),
+			entities.size());
+	}
+}
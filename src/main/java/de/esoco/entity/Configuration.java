@@ -16,6 +16,7 @@
 //++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
 package de.esoco.entity;
 
+import de.esoco.entity.EntityManager.StoreListener;
 import de.esoco.lib.expression.Predicate;
 import de.esoco.lib.manage.TransactionException;
 import de.esoco.storage.StorageException;
@@ -25,6 +26,11 @@ import org.obrel.core.Relatable;
 import org.obrel.core.RelationType;
 import org.obrel.type.StandardTypes;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import static de.esoco.lib.expression.Predicates.equalTo;
 import static org.obrel.core.RelationTypes.newType;
 
@@ -82,6 +88,32 @@ public class Configuration extends Entity
 
 	private static final long serialVersionUID = 1L;
 
+	private static final Configuration[] NO_SETTINGS = new Configuration[0];
+
+	private static final int MAX_SETTINGS_CACHE_SIZE = 1000;
+
+	private static final Map<String, Configuration[]> settingsCache =
+		new LinkedHashMap<String, Configuration[]>(128, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+				Map.Entry<String, Configuration[]> eldest) {
+				return size() > MAX_SETTINGS_CACHE_SIZE;
+			}
+		};
+
+	private static long settingsCacheGeneration = 0;
+
+	private static final StoreListener settingsCacheInvalidator =
+		entity -> {
+			if (entity instanceof Configuration) {
+				invalidateSettingsCache(false);
+			}
+		};
+
+	private static boolean settingsCacheRegistered = false;
+
 	/**
 	 * Copies the value of a certain settings value of a source entity to a
 	 * relatable target object.
@@ -118,8 +150,8 @@ public class Configuration extends Entity
 	 */
 	public static Configuration getSettings(Entity owner, boolean create)
 		throws StorageException, TransactionException {
-		Configuration config = EntityManager.queryEntity(Configuration.class,
-			IS_SETTINGS_CONFIG.and(OWNER.is(equalTo(owner))), true);
+		Configuration[] settings = getSettingsChain(owner);
+		Configuration config = settings.length > 0 ? settings[0] : null;
 
 		if (config == null && create) {
 			config = new Configuration();
@@ -135,10 +167,10 @@ public class Configuration extends Entity
 
 	/**
 	 * A convenience method to query a certain settings value from a user's
-	 * settings object. First invokes {@link #getSettings(Entity, boolean)}
-	 * without creating the settings and then returns the settings value
-	 * returned by {@link #getSettingsValue(RelationType, Object)} or, if no
-	 * settings exist, the default value.
+	 * settings object. Like {@link #getSettingsValue(RelationType, Object)}
+	 * this will look up the value in the cached chain of the settings and
+	 * it's defaults. If no settings or no value exists the default value will
+	 * be returned.
 	 *
 	 * @param owner            The owner of the settings
 	 * @param settingExtraAttr The settings extra attribute
@@ -149,21 +181,96 @@ public class Configuration extends Entity
 	public static <T> T getSettingsValue(Entity owner,
 		RelationType<T> settingExtraAttr, T defaultValue)
 		throws StorageException {
-		Configuration settings = null;
-		T settingsValue = defaultValue;
+		for (Configuration settings : getSettingsChain(owner)) {
+			if (settings.hasExtraAttribute(settingExtraAttr)) {
+				return settings.getExtraAttribute(settingExtraAttr,
+					defaultValue);
+			}
+		}
+
+		return defaultValue;
+	}
+
+	/**
+	 * Returns the settings configuration of a certain owner, followed by the
+	 * configurations in it's chain of {@link #DEFAULTS}. The result is cached
+	 * per owner, including the case that no settings exist. The cache is
+	 * limited to the most recently used owners and will be invalidated
+	 * whenever a configuration is stored or deleted through the
+	 * {@link EntityManager}.
+	 *
+	 * @param owner The owner of the settings
+	 * @return The flattened settings chain (empty if the owner has no
+	 * settings)
+	 * @throws StorageException If querying the settings fails
+	 */
+	private static Configuration[] getSettingsChain(Entity owner)
+		throws StorageException {
+		boolean cacheable = owner == null || owner.isPersistent();
+		String key = owner != null ? owner.getGlobalId() : "";
+		Configuration[] settings = null;
+		long generation;
+
+		synchronized (settingsCache) {
+			generation = settingsCacheGeneration;
+
+			if (cacheable) {
+				settings = settingsCache.get(key);
+			}
+		}
 
-		try {
-			settings = getSettings(owner, false);
-		} catch (TransactionException e) {
-			// cannot happen if the boolean argument of getSettings() is FALSE
+		if (settings == null) {
+			Configuration config =
+				EntityManager.queryEntity(Configuration.class,
+					IS_SETTINGS_CONFIG.and(OWNER.is(equalTo(owner))), true);
+
+			settings = config != null ? config.getDefaultsChain() :
+			           NO_SETTINGS;
+
+			if (cacheable) {
+				registerSettingsCacheInvalidator();
+
+				synchronized (settingsCache) {
+					// don't cache if invalidated while querying
+					if (generation == settingsCacheGeneration) {
+						settingsCache.put(key, settings);
+					}
+				}
+			}
 		}
 
-		if (settings != null) {
-			settingsValue =
-				settings.getSettingsValue(settingExtraAttr, defaultValue);
+		return settings;
+	}
+
+	/**
+	 * Invalidates the cached settings of all owners. If the argument is TRUE
+	 * the store listener that invalidates the cache will also be removed
+	 * (e.g. because all store listeners are about to be cleared) and will be
+	 * registered again on the next settings query.
+	 *
+	 * @param unregister TRUE to also unregister the cache store listener
+	 */
+	static synchronized void invalidateSettingsCache(boolean unregister) {
+		synchronized (settingsCache) {
+			settingsCacheGeneration++;
+			settingsCache.clear();
 		}
 
-		return settingsValue;
+		if (unregister && settingsCacheRegistered) {
+			EntityManager.removeStoreListener(settingsCacheInvalidator);
+			settingsCacheRegistered = false;
+		}
+	}
+
+	/**
+	 * Registers the store listener that invalidates the settings cache if not
+	 * done yet.
+	 */
+	private static synchronized void registerSettingsCacheInvalidator() {
+		if (!settingsCacheRegistered) {
+			EntityManager.addStoreListener(settingsCacheInvalidator);
+			settingsCacheRegistered = true;
+		}
 	}
 
 	/**
@@ -202,6 +309,25 @@ public class Configuration extends Entity
 		return value;
 	}
 
+	/**
+	 * Returns this configuration and all configurations that are referenced
+	 * recursively through the attribute {@link #DEFAULTS}.
+	 *
+	 * @return The configuration chain starting with this instance
+	 */
+	private Configuration[] getDefaultsChain() {
+		List<Configuration> chain = new ArrayList<>();
+		Configuration config = this;
+
+		// prevent endless loops in the (unlikely) case of cyclic defaults
+		while (config != null && !chain.contains(config)) {
+			chain.add(config);
+			config = config.get(DEFAULTS);
+		}
+
+		return chain.toArray(new Configuration[chain.size()]);
+	}
+
 	/**
 	 * Returns a certain settings value. Instead of directly querying settings
 	 * with the corresponding extra attribute users of this class should invoke
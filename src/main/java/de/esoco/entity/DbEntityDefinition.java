@@ -17,11 +17,13 @@
 package de.esoco.entity;
 
 import de.esoco.lib.logging.Log;
+import org.obrel.core.Relatable;
 import org.obrel.core.RelationType;
 import org.obrel.core.RelationTypes;
 
 import java.math.BigDecimal;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
@@ -36,6 +38,7 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
+import static de.esoco.storage.StorageRelationTypes.STORAGE_NAME;
 import static de.esoco.storage.impl.jdbc.JdbcRelationTypes.SQL_NAME;
 import static java.sql.Types.BIGINT;
 import static java.sql.Types.BIT;
@@ -151,6 +154,71 @@ public class DbEntityDefinition extends EntityDefinition<Entity> {
 			table.toLowerCase() + "." + column.toUpperCase(), datatype);
 	}
 
+	/**
+	 * Returns the names of the database columns of a table mapped to their
+	 * lower case names. The returned names have the case that is used by the
+	 * database.
+	 *
+	 * @param metaData The database metadata
+	 * @param table    The name of the table as returned by
+	 *                 {@link #getTableName(DatabaseMetaData, String)}
+	 * @return The mapping from lower case to database column names
+	 * @throws SQLException If reading the metadata fails
+	 */
+	static Map<String, String> getColumnNames(DatabaseMetaData metaData,
+		String table) throws SQLException {
+		Map<String, String> columns = new HashMap<>();
+
+		try (ResultSet columnData =
+			metaData.getColumns(null, null, table, "%")) {
+			while (columnData.next()) {
+				String column = columnData.getString("COLUMN_NAME");
+
+				columns.put(column.toLowerCase(), column);
+			}
+		}
+
+		return columns;
+	}
+
+	/**
+	 * Returns the SQL name of an entity definition or attribute. This is the
+	 * value of the relation SQL_NAME if set or else the value of the relation
+	 * STORAGE_NAME.
+	 *
+	 * @param element The entity definition or attribute
+	 * @return The SQL name
+	 */
+	static String getSqlName(Relatable element) {
+		String name = element.get(SQL_NAME);
+
+		return name != null ? name : element.get(STORAGE_NAME);
+	}
+
+	/**
+	 * Returns the name of a table in the case that is used by the database.
+	 *
+	 * @param metaData  The database metadata
+	 * @param tableName The table name in arbitrary case
+	 * @return The database table name or the original name if no matching
+	 * table could be found
+	 * @throws SQLException If reading the metadata fails
+	 */
+	static String getTableName(DatabaseMetaData metaData, String tableName)
+		throws SQLException {
+		try (ResultSet tables = metaData.getTables(null, null, "%", null)) {
+			while (tables.next()) {
+				String table = tables.getString("TABLE_NAME");
+
+				if (table.equalsIgnoreCase(tableName)) {
+					return table;
+				}
+			}
+		}
+
+		return tableName;
+	}
+
 	/**
 	 * Internal method to open a database connection for the argument JDBC URL.
 	 *
@@ -158,7 +226,7 @@ public class DbEntityDefinition extends EntityDefinition<Entity> {
 	 * @return The new database connection
 	 * @throws IllegalArgumentException If the connection could not be opened
 	 */
-	private static Connection openConnection(String jdbcUrl) {
+	static Connection openConnection(String jdbcUrl) {
 		String url = (jdbcUrl != null ? jdbcUrl : defaultJdbcUrl);
 
 		Connection connection;
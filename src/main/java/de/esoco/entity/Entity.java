@@ -43,6 +43,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -126,6 +127,11 @@ public class Entity extends SerializableRelatedObject
 
 	private static final String JSON_INDENT = "  ";
 
+	private static final int MAX_JSON_BUFFER_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<StringBuilder> jsonBuffer =
+		ThreadLocal.withInitial(StringBuilder::new);
+
 	static {
 		Conversions.registerStringConversion(Entity.class,
 			EntityFunctions.entityToString());
@@ -276,6 +282,7 @@ public class Entity extends SerializableRelatedObject
 
 		def.initChildren(this, children, childDef, initializing);
 		get(childAttr).addAll(children);
+		ChildIndex.childrenAdded(getRelation(childAttr), children);
 	}
 
 	/**
@@ -420,7 +427,24 @@ public class Entity extends SerializableRelatedObject
 	 * @return The resulting JSON string
 	 */
 	public String createChangeDescription() {
-		return toJson("", isPersistent(), true);
+		StringBuilder json = jsonBuffer.get();
+
+		if (json.length() > 0) {
+			// re-entrant invocation while the buffer is in use
+			json = new StringBuilder();
+		}
+
+		try {
+			appendJson(json, "", isPersistent(), true);
+
+			return json.toString();
+		} finally {
+			json.setLength(0);
+
+			if (json.capacity() > MAX_JSON_BUFFER_SIZE) {
+				json.trimToSize();
+			}
+		}
 	}
 
 	/**
@@ -608,7 +632,7 @@ public class Entity extends SerializableRelatedObject
 	@SuppressWarnings("unchecked")
 	public <T> T getExtraAttributeFor(Entity owner, RelationType<T> key,
 		T defaultValue, boolean fallback) throws StorageException {
-		ExtraAttribute extraAttribute = queryExtraAttributeFor(owner, key);
+		ExtraAttribute extraAttribute = getOwnerExtraAttribute(owner, key);
 
 		T value = defaultValue;
 
@@ -940,8 +964,9 @@ public class Entity extends SerializableRelatedObject
 
 		try {
 			// this method doesn't need to be synchronized because
-			// beginEntityModification already is; if it returns successfully
-			// it will prevent parallel executions of lock() from succeeding
+			// beginEntityModification claims the entity atomically; if it
+			// returns successfully it will prevent parallel executions of
+			// lock() from succeeding
 			EntityManager.beginEntityModification(this);
 			success = true;
 			set(LOCKED);
@@ -952,6 +977,38 @@ public class Entity extends SerializableRelatedObject
 		return success;
 	}
 
+	/**
+	 * Returns an extra attribute of this entity for a certain owner. The
+	 * extra attributes of each combination of entity and owner are read with
+	 * a single query and then cached in the {@link OwnerExtraAttributeCache}.
+	 *
+	 * @param owner The owner entity
+	 * @param key   The extra attribute key
+	 * @return The matching extra attribute or NULL if none exists
+	 * @throws StorageException If querying the extra attributes fails
+	 */
+	private ExtraAttribute getOwnerExtraAttribute(Entity owner,
+		RelationType<?> key) throws StorageException {
+		if (owner == null || !owner.isPersistent()) {
+			return queryExtraAttributeFor(owner, key);
+		} else if (!isPersistent()) {
+			return null;
+		}
+
+		Map<String, ExtraAttribute> extraAttributes =
+			OwnerExtraAttributeCache.get(this, owner);
+
+		if (extraAttributes == null) {
+			long generation = OwnerExtraAttributeCache.getGeneration();
+
+			extraAttributes = queryExtraAttributesFor(owner);
+			OwnerExtraAttributeCache.put(this, owner, extraAttributes,
+				generation);
+		}
+
+		return extraAttributes.get(key.getSimpleName());
+	}
+
 	/**
 	 * Prints this entity and the hierarchy of it's children to a print stream.
 	 * This method is intended to be used for debugging and informational
@@ -1031,6 +1088,7 @@ public class Entity extends SerializableRelatedObject
 
 		def.detachChildren(this, childAttr, children);
 		get(childAttr).removeAll(children);
+		ChildIndex.childrenRemoved(getRelation(childAttr), children);
 		get(DEPENDENT_STORE_ENTITIES).addAll(children);
 		getRelation(childAttr).get(REMOVED_CHILDREN).addAll(children);
 	}
@@ -1112,11 +1170,10 @@ public class Entity extends SerializableRelatedObject
 	/**
 	 * Sets an extra attribute for this entity with a certain owner entity.
 	 * Other than {@link #setExtraAttribute(RelationType, Object)} this method
-	 * directly stores the new or modified extra attribute to avoid the need
-	 * for
-	 * caching. Caching is not necessary because owner-specific extra
-	 * attributes
-	 * are typically used less often than standard extra attributes.
+	 * adds the new or modified extra attribute to the dependent store entities
+	 * of this entity instead of the internal extra attribute map. The cached
+	 * owner-specific extra attributes of this entity will be invalidated
+	 * immediately and again when the extra attribute is stored.
 	 *
 	 * @param owner        The owner of the extra attribute
 	 * @param key          The key that identifies the attribute
@@ -1150,6 +1207,8 @@ public class Entity extends SerializableRelatedObject
 			extraAttribute = queryExtraAttributeFor(owner, key);
 		}
 
+		OwnerExtraAttributeCache.invalidate(this, owner);
+
 		if (extraAttribute == null && value != null) {
 			extraAttribute = new ExtraAttribute();
 
@@ -1430,6 +1489,40 @@ public class Entity extends SerializableRelatedObject
 		builder.append(separator);
 	}
 
+	/**
+	 * Returns the key of an extra attribute as it is used in the internal
+	 * extra attribute map of entities. If the key relation has not been
+	 * resolved yet the key name will be taken from the intermediate storage
+	 * value without resolving the relation type.
+	 *
+	 * @param attribute The extra attribute
+	 * @return The key of the extra attribute
+	 */
+	static String getExtraAttributeKey(ExtraAttribute attribute) {
+		Relation<?> keyRelation = attribute.getRelation(ExtraAttribute.KEY);
+
+		String key = null;
+
+		if (keyRelation instanceof IntermediateRelation) {
+			Object intermediateKey = ((IntermediateRelation<?, ?>) keyRelation)
+				.getIntermediateTarget();
+
+			if (intermediateKey != null) {
+				key = intermediateKey.toString();
+			}
+		}
+
+		// always check for NULL because the intermediate target will be
+		// NULL if the relation has already been resolved
+		if (key == null) {
+			key = attribute.get(ExtraAttribute.KEY).getSimpleName();
+		}
+
+		assert key != null : "Undefined extra attribute key for " + attribute;
+
+		return key;
+	}
+
 	/**
 	 * Internal method to return the extra attributes of this entity. If the
 	 * entity attributes haven't been retrieved yet this method will initialize
@@ -1450,13 +1543,13 @@ public class Entity extends SerializableRelatedObject
 	/**
 	 * Appends a JSON string for a certain attribute to a string builder.
 	 *
-	 * @param changes      The string builder to append to
+	 * @param json         The string builder to append to
 	 * @param indent       The indentation
 	 * @param attr         The name of the attribute to append
 	 * @param attrRelation The attribute relation
 	 * @param changesOnly  TRUE to include only changed attributes
 	 */
-	private void appendJsonAttribute(StringBuilder changes, String indent,
+	private void appendJsonAttribute(StringBuilder json, String indent,
 		String attr, Relation<?> attrRelation, boolean changesOnly) {
 		Object newValue = attrRelation.getTarget();
 
@@ -1464,47 +1557,30 @@ public class Entity extends SerializableRelatedObject
 			(changesOnly && attrRelation.hasRelation(PREVIOUS_VALUE));
 
 		if (updated || newValue != null) {
-			JsonBuilder json = new JsonBuilder();
-
-			json.appendText(indent);
-			json.appendName(attr);
+			json.append(indent);
+			appendJsonName(json, attr);
 
 			if (updated) {
-				json.appendText("{\n");
-				json.appendText(indent);
-				json.appendText(JSON_INDENT);
-				json.appendText("\"");
-				json.appendText(JSON_CHANGE_NEW_VALUE);
-				json.appendText("\": ");
-			}
-
-			if (newValue instanceof Relatable) {
-				newValue = newValue.toString();
+				json.append("{\n");
+				json.append(indent);
+				json.append(JSON_INDENT);
+				appendJsonName(json, JSON_CHANGE_NEW_VALUE);
 			}
 
-			json.append(newValue);
+			appendJsonValue(json, newValue);
 
 			if (updated) {
-				Object prevValue = attrRelation.get(PREVIOUS_VALUE);
-
-				if (prevValue instanceof Relatable) {
-					prevValue = prevValue.toString();
-				}
-
-				json.appendText(",\n");
-				json.appendText(indent);
-				json.appendText(JSON_INDENT);
-				json.appendText("\"");
-				json.appendText(JSON_CHANGE_OLD_VALUE);
-				json.appendText("\": ");
-				json.append(prevValue);
-				json.appendText("\n");
-				json.appendText(indent);
-				json.appendText("}");
+				json.append(",\n");
+				json.append(indent);
+				json.append(JSON_INDENT);
+				appendJsonName(json, JSON_CHANGE_OLD_VALUE);
+				appendJsonValue(json, attrRelation.get(PREVIOUS_VALUE));
+				json.append('\n');
+				json.append(indent);
+				json.append('}');
 			}
 
-			json.appendText(",\n");
-			changes.append(json);
+			json.append(",\n");
 		}
 	}
 
@@ -1512,19 +1588,19 @@ public class Entity extends SerializableRelatedObject
 	 * Appends the JSON representation of this entity's attributes to a string
 	 * builder.
 	 *
-	 * @param changes     The string builder
+	 * @param json        The string builder
 	 * @param definition  The definition of this entity
 	 * @param indent      The indentation
 	 * @param changesOnly TRUE to include only changed attributes
 	 */
-	private void appendJsonAttributes(StringBuilder changes,
+	private void appendJsonAttributes(StringBuilder json,
 		EntityDefinition<?> definition, String indent, boolean changesOnly) {
 		for (RelationType<?> attribute : definition.getAttributes()) {
 			Relation<?> relation = getRelation(attribute);
 
 			if (relation != null &&
 				(!changesOnly || relation.hasRelation(PREVIOUS_VALUE))) {
-				appendJsonAttribute(changes, indent, attribute.getSimpleName(),
+				appendJsonAttribute(json, indent, attribute.getSimpleName(),
 					relation, changesOnly);
 			}
 		}
@@ -1534,39 +1610,37 @@ public class Entity extends SerializableRelatedObject
 	 * Appends a JSON string with child entity informations to a string
 	 * builder.
 	 *
-	 * @param changes        The string builder
+	 * @param json           The string builder
 	 * @param indent         The indentation
 	 * @param childAttribute The child attribute
 	 * @param changesOnly    TRUE to include only changed attributes
 	 */
-	private void appendJsonChildren(StringBuilder changes, String indent,
+	private void appendJsonChildren(StringBuilder json, String indent,
 		RelationType<List<Entity>> childAttribute, boolean changesOnly) {
-		List<Entity> children = get(childAttribute);
-		StringBuilder childChanges = new StringBuilder();
 		String childAttr = childAttribute.getSimpleName();
+		int start = json.length();
 
-		for (Entity child : children) {
-			boolean childChangesOnly = changesOnly && child.isPersistent();
+		json.append(indent);
+		appendJsonName(json, childAttr);
+		json.append("[\n");
+
+		int childrenStart = json.length();
 
-			String childChange = child.toJson(indent, childChangesOnly, false);
+		for (Entity child : get(childAttribute)) {
+			boolean childChangesOnly = changesOnly && child.isPersistent();
 
-			if (!childChange.isEmpty()) {
-				childChanges.append(childChange);
-				childChanges.append(",\n");
+			if (child.appendJson(json, indent, childChangesOnly, false)) {
+				json.append(",\n");
 			}
 		}
 
-		if (childChanges.length() > 0) {
-			childChanges.setLength(childChanges.length() - 2);
-
-			changes.append(indent);
-			changes.append('"');
-			changes.append(childAttr);
-			changes.append("\": [\n");
-			changes.append(childChanges);
-			changes.append("\n");
-			changes.append(indent);
-			changes.append("],\n");
+		if (json.length() > childrenStart) {
+			json.setLength(json.length() - 2);
+			json.append('\n');
+			json.append(indent);
+			json.append("],\n");
+		} else {
+			json.setLength(start);
 		}
 
 		List<Entity> removedChildren =
@@ -1575,21 +1649,19 @@ public class Entity extends SerializableRelatedObject
 		if (!removedChildren.isEmpty()) {
 			String subIndent = indent + JSON_INDENT;
 
-			changes.append(indent);
-			changes.append("\"");
-			changes.append(childAttr);
-			changes.append(JSON_REMOVED_CHILDREN_SUFFIX);
-			changes.append("\": [\n");
+			json.append(indent);
+			appendJsonName(json, childAttr + JSON_REMOVED_CHILDREN_SUFFIX);
+			json.append("[\n");
 
 			for (Entity removed : removedChildren) {
-				changes.append(removed.toJson(subIndent, false, false));
-				changes.append(",\n");
+				removed.appendJson(json, subIndent, false, false);
+				json.append(",\n");
 			}
 
-			changes.setLength(changes.length() - 2);
-			changes.append('\n');
-			changes.append(indent);
-			changes.append("],\n");
+			json.setLength(json.length() - 2);
+			json.append('\n');
+			json.append(indent);
+			json.append("],\n");
 		}
 	}
 
@@ -1598,11 +1670,11 @@ public class Entity extends SerializableRelatedObject
 	 * string
 	 * builder.
 	 *
-	 * @param changes     The string builder
+	 * @param json        The string builder
 	 * @param indent      The indentation
 	 * @param changesOnly TRUE to include only changed attributes
 	 */
-	private void appendJsonExtraAttribute(StringBuilder changes, String indent,
+	private void appendJsonExtraAttribute(StringBuilder json, String indent,
 		boolean changesOnly) {
 		for (ExtraAttribute extraAttribute : get(
 			EXTRA_ATTRIBUTE_MAP).values()) {
@@ -1613,12 +1685,92 @@ public class Entity extends SerializableRelatedObject
 				extraAttrRelation.hasRelation(PREVIOUS_VALUE))) {
 				String name = extraAttribute.get(ExtraAttribute.KEY).getName();
 
-				appendJsonAttribute(changes, indent, name, extraAttrRelation,
+				appendJsonAttribute(json, indent, name, extraAttrRelation,
 					changesOnly);
 			}
 		}
 	}
 
+	/**
+	 * Appends the JSON header fields of this entity to a string builder.
+	 *
+	 * @param json              The string builder
+	 * @param indent            The indentation of the entity
+	 * @param subIndent         The indentation of the fields
+	 * @param includeEntityName TRUE to include the entity name
+	 */
+	@SuppressWarnings("boxing")
+	private void appendJsonHeader(StringBuilder json, String indent,
+		String subIndent, boolean includeEntityName) {
+		String description = getDescription();
+
+		json.append(indent);
+		json.append("{\n");
+		json.append(subIndent);
+		appendJsonName(json, JSON_ID_FIELD);
+
+		if (isPersistent()) {
+			json.append(getId());
+		} else {
+			json.append("\"<NEW>\"");
+		}
+
+		json.append(",\n");
+
+		if (includeEntityName) {
+			json.append(subIndent);
+			appendJsonName(json, JSON_TYPE_FIELD);
+			json.append('"');
+			json.append(getDefinition().getEntityName());
+			json.append("\",\n");
+		}
+
+		if (description.length() > 0) {
+			json.append(subIndent);
+			appendJsonName(json, JSON_NAME_FIELD);
+			json.append('"');
+			json.append(description);
+			json.append("\",\n");
+		}
+	}
+
+	/**
+	 * Appends a quoted JSON field name and the following colon to a string
+	 * builder.
+	 *
+	 * @param json The string builder
+	 * @param name The field name
+	 */
+	private static void appendJsonName(StringBuilder json, String name) {
+		json.append('"');
+		json.append(name);
+		json.append("\": ");
+	}
+
+	/**
+	 * Appends a JSON attribute value to a string builder. Only values that
+	 * need to be converted or escaped are formatted with a
+	 * {@link JsonBuilder}.
+	 *
+	 * @param json  The string builder
+	 * @param value The value to append (may be NULL)
+	 */
+	private static void appendJsonValue(StringBuilder json, Object value) {
+		if (value instanceof Relatable) {
+			value = value.toString();
+		}
+
+		if (value == null || value instanceof Boolean ||
+			value instanceof Integer || value instanceof Long) {
+			json.append(value);
+		} else {
+			JsonBuilder jsonValue = new JsonBuilder();
+
+			jsonValue.append(value);
+			json.append(jsonValue);
+		}
+	}
+
 	/**
 	 * Performs an equality comparison of this instance's attributes with
 	 * another entity, including extra attributes and children.
@@ -1627,9 +1779,13 @@ public class Entity extends SerializableRelatedObject
 	 * @return TRUE if all attributes are equal
 	 */
 	private boolean attributesEqual(Entity other) {
-		List<RelationType<?>> compareAttributes = getCompareAttributes();
+		EntityDefinition<?> definition = getDefinition();
+		EntityDefinition<?> otherDefinition = other.getDefinition();
+		RelationType<?>[] compareAttributes = definition.getCompareAttributes();
 
-		boolean equal = compareAttributes.equals(other.getCompareAttributes());
+		boolean equal = definition == otherDefinition ||
+			Arrays.equals(compareAttributes,
+				otherDefinition.getCompareAttributes());
 
 		if (equal) {
 			for (RelationType<?> attr : compareAttributes) {
@@ -1669,7 +1825,7 @@ public class Entity extends SerializableRelatedObject
 	 * @return The attribute hash code
 	 */
 	private int attributesHashCode() {
-		int hashCode = getCompareAttributes().hashCode();
+		int hashCode = getDefinition().getCompareAttributesHash();
 
 		Map<String, ExtraAttribute> extraAttributeMap =
 			get(EXTRA_ATTRIBUTE_MAP);
@@ -1710,26 +1866,6 @@ public class Entity extends SerializableRelatedObject
 		       null;
 	}
 
-	/**
-	 * Returns a list of all entity attributes (including extra attributes)
-	 * that
-	 * can be used for equality comparison by {@link #equals(Object)} and the
-	 * hash code calculation by {@link #hashCode()} without causing an endless
-	 * recursion.
-	 *
-	 * @return The list of all comparable (extra) attributes
-	 */
-	private ArrayList<RelationType<?>> getCompareAttributes() {
-		EntityDefinition<?> definition = getDefinition();
-
-		ArrayList<RelationType<?>> attributes =
-			new ArrayList<RelationType<?>>(definition.getAttributes());
-
-		attributes.remove(definition.getParentAttribute());
-
-		return attributes;
-	}
-
 	/**
 	 * Prints this entity and the hierarchy of it's children to a print stream.
 	 * This method is intended to be used for debugging and informational
@@ -1757,6 +1893,28 @@ public class Entity extends SerializableRelatedObject
 		}
 	}
 
+	/**
+	 * Internal method to query all extra attributes of this entity for a
+	 * certain owner entity.
+	 *
+	 * @param owner The owner entity
+	 * @return A new mapping from extra attribute keys to extra attributes
+	 * @throws StorageException If the query fails
+	 */
+	private Map<String, ExtraAttribute> queryExtraAttributesFor(Entity owner)
+		throws StorageException {
+		Predicate<Relatable> extraAttr = ExtraAttribute.ENTITY
+			.is(equalTo(this))
+			.and(ExtraAttribute.OWNER.is(equalTo(owner)));
+
+		Map<String, ExtraAttribute> extraAttributes = new HashMap<>();
+
+		EntityManager.forEach(ExtraAttribute.class, extraAttr,
+			xA -> extraAttributes.put(getExtraAttributeKey(xA), xA));
+
+		return extraAttributes;
+	}
+
 	/**
 	 * Internal method to query a single extra attribute for a certain owner
 	 * entity.
@@ -1807,27 +1965,7 @@ public class Entity extends SerializableRelatedObject
 			get(EXTRA_ATTRIBUTE_MAP);
 
 		for (ExtraAttribute attribute : extraAttributes) {
-			Relation<?> keyRelation =
-				attribute.getRelation(ExtraAttribute.KEY);
-
-			String key = null;
-
-			if (keyRelation instanceof IntermediateRelation) {
-				key = ((IntermediateRelation<?, ?>) keyRelation)
-					.getIntermediateTarget()
-					.toString();
-			}
-
-			// always check for NULL because the intermediate target will be
-			// NULL if the relation has already been resolved
-			if (key == null) {
-				key = attribute.get(ExtraAttribute.KEY).getSimpleName();
-			}
-
-			assert key != null :
-				"Undefined extra attribute key for " + attribute;
-
-			extraAttributeMap.put(key, attribute);
+			extraAttributeMap.put(getExtraAttributeKey(attribute), attribute);
 		}
 
 		set(EXTRA_ATTRIBUTES_READ);
@@ -1854,28 +1992,42 @@ public class Entity extends SerializableRelatedObject
 	}
 
 	/**
-	 * Internal method to create a JSON representation of this entity and it's
-	 * hierarchy. If the onlyChanges parameter is TRUE only the modified
-	 * attributes will be included.
+	 * Internal method to append a JSON representation of this entity and
+	 * it's hierarchy to a string builder. If the changesOnly parameter is TRUE
+	 * only the modified attributes will be included and nothing will be
+	 * appended for unchanged persistent entities. To prevent inserting into
+	 * the buffer the header fields are appended first and removed again if no
+	 * changes follow.
 	 *
-	 * @param indent            The indentation of the resulting string
-	 * @param changesOnly       TRUE to only included changed attributes
-	 * @param includeEntityName TRUE to include the entity name into the
-	 *                          generated JSON, FALSE to omit it
-	 * @return The resulting string
+	 * @param json              The string builder to append to
+	 * @param indent            The indentation of the output
+	 * @param changesOnly       TRUE to include only changed attributes
+	 * @param includeEntityName TRUE to include the entity name
+	 * @return TRUE if the entity has been appended, FALSE if it has no
+	 * changes
 	 */
-	private String toJson(String indent, boolean changesOnly,
-		boolean includeEntityName) {
+	private boolean appendJson(StringBuilder json, String indent,
+		boolean changesOnly, boolean includeEntityName) {
 		EntityDefinition<?> definition = getDefinition();
-		StringBuilder changes = new StringBuilder();
 		String subIndent = indent + JSON_INDENT;
+		int start = json.length();
+
+		boolean hasOwnChanges =
+			!changesOnly || !isPersistent() || hasFlag(MODIFIED) ||
+				hasFlag(EXTRA_ATTRIBUTES_MODIFIED);
+
+		if (hasOwnChanges) {
+			appendJsonHeader(json, indent, subIndent, includeEntityName);
+		}
+
+		int bodyStart = json.length();
 
 		if (!changesOnly || hasFlag(MODIFIED)) {
-			appendJsonAttributes(changes, definition, subIndent, changesOnly);
+			appendJsonAttributes(json, definition, subIndent, changesOnly);
 		}
 
 		if (hasFlag(EXTRA_ATTRIBUTES_MODIFIED)) {
-			appendJsonExtraAttribute(changes, subIndent, changesOnly);
+			appendJsonExtraAttribute(json, subIndent, changesOnly);
 		}
 
 		Collection<RelationType<List<Entity>>> childAttributes =
@@ -1883,44 +2035,34 @@ public class Entity extends SerializableRelatedObject
 
 		if (childAttributes != null) {
 			for (RelationType<List<Entity>> childAttr : childAttributes) {
-				appendJsonChildren(changes, subIndent, childAttr, changesOnly);
+				appendJsonChildren(json, subIndent, childAttr, changesOnly);
 			}
 		}
 
-		int length = changes.length();
+		int length = json.length() - bodyStart;
+		boolean appended = length > 0 || !isPersistent();
 
-		if (length > 0 || !isPersistent()) {
+		if (appended) {
 			if (length >= 2) {
 				// remove trailing ,\n
-				changes.setLength(length - 2);
+				json.setLength(json.length() - 2);
 			}
 
-			@SuppressWarnings("boxing")
-			Object id = isPersistent() ? getId() : "\"<NEW>\"";
-
-			String description = getDescription();
-			String entity =
-				String.format("%s{\n%s\"%s\": %s,\n", indent, subIndent,
-					JSON_ID_FIELD, id);
+			if (!hasOwnChanges) {
+				// only occurs for unmodified parents of modified children
+				StringBuilder header = new StringBuilder();
 
-			if (includeEntityName) {
-				entity =
-					String.format("%s%s\"%s\": \"%s\",\n", entity, subIndent,
-						JSON_TYPE_FIELD, definition.getEntityName());
+				appendJsonHeader(header, indent, subIndent, includeEntityName);
+				json.insert(start, header);
 			}
 
-			if (description.length() > 0) {
-				entity =
-					String.format("%s%s\"%s\": \"%s\",\n", entity, subIndent,
-						JSON_NAME_FIELD, description);
-			}
-
-			changes.insert(0, entity);
-			changes.append("\n");
-			changes.append(indent);
-			changes.append("}");
+			json.append('\n');
+			json.append(indent);
+			json.append('}');
+		} else {
+			json.setLength(start);
 		}
 
-		return changes.toString();
+		return appended;
 	}
 }
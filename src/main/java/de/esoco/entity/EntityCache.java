@@ -30,6 +30,35 @@ public interface EntityCache<E extends Entity> {
 	 */
 	void cacheEntity(E entity);
 
+	/**
+	 * Caches an entity only if no entity with the same ID has been cached
+	 * already. If a cached entity exists it will be returned instead of the
+	 * argument. Implementations that support concurrent access should
+	 * override this method to perform an atomic get-or-insert operation. The
+	 * default implementation just combines {@link #getEntity(long)} and
+	 * {@link #cacheEntity(Entity)}.
+	 *
+	 * @param entity The entity to cache
+	 * @return Either an already cached instance or the argument entity
+	 */
+	default E cacheIfAbsent(E entity) {
+		E cachedEntity = getEntity(entity.getId());
+
+		if (cachedEntity == null) {
+			cacheEntity(entity);
+			cachedEntity = entity;
+		}
+
+		return cachedEntity;
+	}
+
+	/**
+	 * Removes all entities from this cache. The default implementation does
+	 * nothing.
+	 */
+	default void clear() {
+	}
+
 	/**
 	 * Returns the cached entity with a certain ID or NULL if no cached entity
 	 * exists.
@@ -38,4 +67,27 @@ public interface EntityCache<E extends Entity> {
 	 * @return The entity with the given ID or NULL for none
 	 */
 	E getEntity(long id);
+
+	/**
+	 * Checks whether this cache implementation can be accessed concurrently
+	 * without external synchronization. If not the entity manager will
+	 * serialize the cache lookups of entity queries. The default
+	 * implementation returns FALSE.
+	 *
+	 * @return TRUE if this cache is thread-safe
+	 */
+	default boolean isConcurrent() {
+		return false;
+	}
+
+	/**
+	 * Removes the entity with a certain ID from this cache. The default
+	 * implementation does nothing and returns NULL.
+	 *
+	 * @param id The entity ID
+	 * @return The removed entity or NULL for none
+	 */
+	default E removeEntity(long id) {
+		return null;
+	}
 }
@@ -0,0 +1,504 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.entity;
+
+import de.esoco.lib.logging.Log;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Records statistics about the entity caching of the {@link EntityManager}.
+ * The counters are maintained separately for each entity type and can be
+ * polled through {@link #getCounters(Class)} or through JMX after a call to
+ * {@link #registerMBean()}. The method {@link #log()} writes the current
+ * statistics to the framework log so that they will be processed by all
+ * registered log aspects.
+ *
+ * <p>The singleton instance of this class can be queried with
+ * {@link EntityManager#getCacheStatistics()}.</p>
+ *
+ * @author eso
+ */
+public class EntityCacheStatistics implements EntityCacheStatisticsMBean {
+
+	/**
+	 * The JMX object name under which the statistics are registered.
+	 */
+	public static final String MBEAN_NAME =
+		"de.esoco.entity:type=EntityCacheStatistics";
+
+	private final Map<Class<? extends Entity>, Counters> typeCounters =
+		new ConcurrentHashMap<>();
+
+	private volatile boolean enabled = true;
+
+	/**
+	 * Package-internal constructor, the singleton instance is managed by the
+	 * entity manager.
+	 */
+	EntityCacheStatistics() {
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getCacheUsage() {
+		return EntityManager.getCacheUsage();
+	}
+
+	/**
+	 * Returns the counters of a certain entity type.
+	 *
+	 * @param entityType The entity type
+	 * @return The counters for the type (empty if no statistics have been
+	 * recorded yet)
+	 */
+	public Counters getCounters(Class<? extends Entity> entityType) {
+		Counters counters = typeCounters.get(entityType);
+
+		return counters != null ? counters : new Counters(entityType);
+	}
+
+	/**
+	 * Returns the entity types for which statistics have been recorded.
+	 *
+	 * @return A collection of entity types
+	 */
+	public Collection<Class<? extends Entity>> getEntityTypes() {
+		return Collections.unmodifiableCollection(typeCounters.keySet());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getEvictionCount() {
+		return sum(c -> c.evictions);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getHierarchyFetchCount() {
+		return sum(c -> c.hierarchyFetches);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getHitCount() {
+		return sum(c -> c.hits);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public double getHitRate() {
+		return hitRate(getHitCount(), getMissCount());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getInsertCount() {
+		return sum(c -> c.inserts);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getInvalidationCount() {
+		return sum(c -> c.invalidations);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getLockWaitTime() {
+		return TimeUnit.NANOSECONDS.toMillis(sum(c -> c.lockWaitNanos));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getMissCount() {
+		return sum(c -> c.misses);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String[] getTypeStatistics() {
+		List<String> statistics = new ArrayList<>(typeCounters.size());
+
+		for (Counters counters : typeCounters.values()) {
+			statistics.add(counters.toString());
+		}
+
+		Collections.sort(statistics);
+
+		return statistics.toArray(new String[statistics.size()]);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Logs the current statistics of all entity types with the info level.
+	 */
+	@SuppressWarnings("boxing")
+	public void log() {
+		Log.infof("%s; hit rate %.2f", getCacheUsage(), getHitRate());
+
+		for (String typeStatistics : getTypeStatistics()) {
+			Log.info(typeStatistics);
+		}
+	}
+
+	/**
+	 * Registers this instance with the platform MBean server.
+	 *
+	 * @throws JMException If the registration fails
+	 */
+	public void registerMBean() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(MBEAN_NAME);
+
+		if (!server.isRegistered(name)) {
+			server.registerMBean(this, name);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void reset() {
+		typeCounters.clear();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Removes the registration of this instance from the platform MBean
+	 * server.
+	 *
+	 * @throws JMException If removing the registration fails
+	 */
+	public void unregisterMBean() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(MBEAN_NAME);
+
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+	}
+
+	/**
+	 * Records the invalidation of the complete entity cache. This records an
+	 * invalidation for each entity type of which entities have been cached.
+	 */
+	void recordCacheInvalidation() {
+		if (enabled) {
+			for (Counters counters : typeCounters.values()) {
+				if (counters.getInserts() > 0) {
+					counters.invalidations.increment();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records a cache eviction.
+	 *
+	 * @param entityType The entity type
+	 */
+	void recordEviction(Class<? extends Entity> entityType) {
+		if (enabled) {
+			counters(entityType).evictions.increment();
+		}
+	}
+
+	/**
+	 * Records a re-fetch of an entity hierarchy.
+	 *
+	 * @param entityType The type of the hierarchy root entity
+	 */
+	void recordHierarchyFetch(Class<? extends Entity> entityType) {
+		if (enabled) {
+			counters(entityType).hierarchyFetches.increment();
+		}
+	}
+
+	/**
+	 * Records a cache hit.
+	 *
+	 * @param entityType The entity type
+	 */
+	void recordHit(Class<? extends Entity> entityType) {
+		if (enabled) {
+			counters(entityType).hits.increment();
+		}
+	}
+
+	/**
+	 * Records a cache insert.
+	 *
+	 * @param entityType The entity type
+	 */
+	void recordInsert(Class<? extends Entity> entityType) {
+		if (enabled) {
+			counters(entityType).inserts.increment();
+		}
+	}
+
+	/**
+	 * Records an explicit cache invalidation.
+	 *
+	 * @param entityType The entity type
+	 */
+	void recordInvalidation(Class<? extends Entity> entityType) {
+		if (enabled) {
+			counters(entityType).invalidations.increment();
+		}
+	}
+
+	/**
+	 * Records the time a thread had to wait for the global cache lock.
+	 *
+	 * @param entityType The type of the entity to be cached
+	 * @param nanos      The wait time in nanoseconds
+	 */
+	void recordLockWait(Class<? extends Entity> entityType, long nanos) {
+		if (enabled) {
+			counters(entityType).lockWaitNanos.add(nanos);
+		}
+	}
+
+	/**
+	 * Records a cache miss.
+	 *
+	 * @param entityType The entity type
+	 */
+	void recordMiss(Class<? extends Entity> entityType) {
+		if (enabled) {
+			counters(entityType).misses.increment();
+		}
+	}
+
+	/**
+	 * Returns the counters for a certain entity type and creates them if
+	 * necessary.
+	 *
+	 * @param entityType The entity type
+	 * @return The counters
+	 */
+	private Counters counters(Class<? extends Entity> entityType) {
+		return typeCounters.computeIfAbsent(entityType, Counters::new);
+	}
+
+	/**
+	 * Calculates a hit rate.
+	 *
+	 * @param hits   The hit count
+	 * @param misses The miss count
+	 * @return The hit rate
+	 */
+	private static double hitRate(long hits, long misses) {
+		long lookups = hits + misses;
+
+		return lookups > 0 ? (double) hits / lookups : 0.0;
+	}
+
+	/**
+	 * Sums up a counter of all entity types.
+	 *
+	 * @param counter A function that returns the counter to sum up
+	 * @return The sum
+	 */
+	private long sum(Function<Counters, LongAdder> counter) {
+		long sum = 0;
+
+		for (Counters counters : typeCounters.values()) {
+			sum += counter.apply(counters).sum();
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Contains the statistics counters of a single entity type.
+	 *
+	 * @author eso
+	 */
+	public static class Counters {
+
+		private final Class<? extends Entity> entityType;
+
+		private final LongAdder hits = new LongAdder();
+
+		private final LongAdder misses = new LongAdder();
+
+		private final LongAdder inserts = new LongAdder();
+
+		private final LongAdder evictions = new LongAdder();
+
+		private final LongAdder invalidations = new LongAdder();
+
+		private final LongAdder lockWaitNanos = new LongAdder();
+
+		private final LongAdder hierarchyFetches = new LongAdder();
+
+		/**
+		 * Creates a new instance.
+		 *
+		 * @param entityType The entity type
+		 */
+		Counters(Class<? extends Entity> entityType) {
+			this.entityType = entityType;
+		}
+
+		/**
+		 * Returns the entity type of these counters.
+		 *
+		 * @return The entity type
+		 */
+		public Class<? extends Entity> getEntityType() {
+			return entityType;
+		}
+
+		/**
+		 * Returns the eviction count.
+		 *
+		 * @return The eviction count
+		 */
+		public long getEvictions() {
+			return evictions.sum();
+		}
+
+		/**
+		 * Returns the hierarchy re-fetch count.
+		 *
+		 * @return The hierarchy fetch count
+		 */
+		public long getHierarchyFetches() {
+			return hierarchyFetches.sum();
+		}
+
+		/**
+		 * Returns the hit count.
+		 *
+		 * @return The hit count
+		 */
+		public long getHits() {
+			return hits.sum();
+		}
+
+		/**
+		 * Returns the ratio of hits to all lookups.
+		 *
+		 * @return The hit rate in the range 0.0 to 1.0
+		 */
+		public double getHitRate() {
+			return hitRate(hits.sum(), misses.sum());
+		}
+
+		/**
+		 * Returns the insert count.
+		 *
+		 * @return The insert count
+		 */
+		public long getInserts() {
+			return inserts.sum();
+		}
+
+		/**
+		 * Returns the invalidation count.
+		 *
+		 * @return The invalidation count
+		 */
+		public long getInvalidations() {
+			return invalidations.sum();
+		}
+
+		/**
+		 * Returns the accumulated wait time for the global cache lock.
+		 *
+		 * @return The lock wait time in milliseconds
+		 */
+		public long getLockWaitTime() {
+			return TimeUnit.NANOSECONDS.toMillis(lockWaitNanos.sum());
+		}
+
+		/**
+		 * Returns the miss count.
+		 *
+		 * @return The miss count
+		 */
+		public long getMisses() {
+			return misses.sum();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		@SuppressWarnings("boxing")
+		public String toString() {
+			return String.format(
+				"%s: hits %d, misses %d (%.2f), inserts %d, evictions %d, " +
+					"invalidations %d, lock wait %dms, hierarchy fetches %d",
+				entityType.getSimpleName(), getHits(), getMisses(),
+				getHitRate(), getInserts(), getEvictions(),
+				getInvalidations(), getLockWaitTime(),
+				getHierarchyFetches());
+		}
+	}
+}
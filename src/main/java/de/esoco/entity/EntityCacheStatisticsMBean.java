@@ -0,0 +1,117 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.entity;
+
+/**
+ * The JMX management interface of {@link EntityCacheStatistics}. All counters
+ * are accumulated over all entity types.
+ *
+ * @author eso
+ */
+public interface EntityCacheStatisticsMBean {
+
+	/**
+	 * Returns the current cache usage description.
+	 *
+	 * @return The cache usage
+	 * @see EntityManager#getCacheUsage()
+	 */
+	String getCacheUsage();
+
+	/**
+	 * Returns the number of evicted entities.
+	 *
+	 * @return The eviction count
+	 */
+	long getEvictionCount();
+
+	/**
+	 * Returns the number of hierarchy re-fetches.
+	 *
+	 * @return The hierarchy fetch count
+	 */
+	long getHierarchyFetchCount();
+
+	/**
+	 * Returns the number of cache hits.
+	 *
+	 * @return The hit count
+	 */
+	long getHitCount();
+
+	/**
+	 * Returns the ratio of cache hits to all cache lookups.
+	 *
+	 * @return The hit rate in the range 0.0 to 1.0
+	 */
+	double getHitRate();
+
+	/**
+	 * Returns the number of entities that have been inserted into the cache.
+	 *
+	 * @return The insert count
+	 */
+	long getInsertCount();
+
+	/**
+	 * Returns the number of explicit cache invalidations.
+	 *
+	 * @return The invalidation count
+	 */
+	long getInvalidationCount();
+
+	/**
+	 * Returns the accumulated time that threads have waited for the global
+	 * cache lock.
+	 *
+	 * @return The lock wait time in milliseconds
+	 */
+	long getLockWaitTime();
+
+	/**
+	 * Returns the number of cache misses.
+	 *
+	 * @return The miss count
+	 */
+	long getMissCount();
+
+	/**
+	 * Returns a description of the statistics of each entity type.
+	 *
+	 * @return An array of strings with one element for each entity type
+	 */
+	String[] getTypeStatistics();
+
+	/**
+	 * Checks whether the recording of statistics is enabled.
+	 *
+	 * @return TRUE if enabled
+	 */
+	boolean isEnabled();
+
+	/**
+	 * Resets all counters.
+	 */
+	void reset();
+
+	/**
+	 * Enables or disables the recording of statistics.
+	 *
+	 * @param enabled The new enabled state
+	 */
+	void setEnabled(boolean enabled);
+}
@@ -30,6 +30,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.function.Function;
 
+import static de.esoco.entity.EntityRelationTypes.PREFETCH_EXTRA_ATTRIBUTES;
 import static de.esoco.storage.StoragePredicates.sortBy;
 
 /**
@@ -50,6 +51,8 @@ public class EntityDataProvider<E extends Entity>
 
 	private Predicate<E> sortPredicate;
 
+	private boolean prefetchExtraAttributes;
+
 	/**
 	 * Creates a new instance that queries all entities of a certain type.
 	 *
@@ -69,6 +72,8 @@ public class EntityDataProvider<E extends Entity>
 	public EntityDataProvider(QueryPredicate<E> baseQuery) {
 		this.baseQuery = baseQuery;
 		visibleEntities = baseQuery;
+		prefetchExtraAttributes =
+			baseQuery.hasFlag(PREFETCH_EXTRA_ATTRIBUTES);
 	}
 
 	/**
@@ -114,6 +119,21 @@ public class EntityDataProvider<E extends Entity>
 		updateVisibleEntities();
 	}
 
+	/**
+	 * Enables or disables the prefetching of the global extra attributes of
+	 * the queried entities. If enabled the extra attributes of each page of
+	 * entities will be read with a single query, which should be used if
+	 * extra attributes of the entities are displayed.
+	 *
+	 * @param prefetch TRUE to prefetch extra attributes
+	 * @see EntityRelationTypes#PREFETCH_EXTRA_ATTRIBUTES
+	 */
+	public void setPrefetchExtraAttributes(boolean prefetch) {
+		prefetchExtraAttributes = prefetch;
+
+		updateVisibleEntities();
+	}
+
 	/**
 	 * Sets a wildcard filter for certain text attributes of the entity type.
 	 * See
@@ -209,5 +229,9 @@ public class EntityDataProvider<E extends Entity>
 
 		visibleEntities =
 			new QueryPredicate<>(baseQuery.getQueryType(), criteria);
+
+		if (prefetchExtraAttributes) {
+			visibleEntities.set(PREFETCH_EXTRA_ATTRIBUTES);
+		}
 	}
 }
@@ -45,6 +45,9 @@ import org.obrel.type.StandardTypes;
 import java.io.InvalidObjectException;
 import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
@@ -53,10 +56,12 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 import static de.esoco.entity.EntityRelationTypes.DISPLAY_PROPERTIES;
@@ -66,6 +71,7 @@ import static de.esoco.entity.EntityRelationTypes.MASTER_ENTITY_ID;
 import static de.esoco.entity.EntityRelationTypes.PARENT_ENTITY_ID;
 import static de.esoco.entity.EntityRelationTypes.REMOVED_CHILDREN;
 import static de.esoco.entity.EntityRelationTypes.ROOT_ATTRIBUTE;
+import static de.esoco.entity.EntityRelationTypes.STORAGE_COMPRESSION_THRESHOLD;
 import static de.esoco.entity.ExtraAttributes.EXTRA_ATTRIBUTE_FLAG;
 import static de.esoco.storage.StorageRelationTypes.REFERENCE_ATTRIBUTE;
 import static de.esoco.storage.StorageRelationTypes.STORAGE_DATATYPE;
@@ -104,6 +110,14 @@ public class EntityDefinition<E extends Entity>
 	 */
 	public enum DisplayMode {MINIMAL, COMPACT, FULL, HIERARCHICAL}
 
+	/**
+	 * Enumeration of the ways in which attribute values are mapped to the
+	 * attributes of new entity instances.
+	 */
+	private enum AttributeMapping {
+		VALUE, ENTITY_REFERENCE, RELATION_TYPE, HIERARCHY
+	}
+
 	/**
 	 * The name of the optional static field in an entity class that contains a
 	 * collection of the entity attribute relation types.
@@ -153,6 +167,9 @@ public class EntityDefinition<E extends Entity>
 
 	private static final long serialVersionUID = 1L;
 
+	private static final MethodHandle NO_CONSTRUCTOR =
+		MethodHandles.constant(Object.class, null);
+
 	private final transient Map<DisplayMode, List<RelationType<?>>>
 		displayAttributes = new EnumMap<>(DisplayMode.class);
 
@@ -191,6 +208,26 @@ public class EntityDefinition<E extends Entity>
 	private transient Map<RelationType<?>, ? extends HasProperties>
 		attributeDisplayProperties;
 
+	private transient AttributeMapping[] attributeMappings;
+
+	private transient Map<String, RelationType<?>> attributeNames;
+
+	private transient Map<RelationType<?>, Integer> attributeIndexes;
+
+	private transient int idIndex = -1;
+
+	private transient int typeIndex = -1;
+
+	private transient int parentIndex = -1;
+
+	private transient int masterIndex = -1;
+
+	private transient RelationType<?>[] compareAttributes;
+
+	private transient int compareAttributesHash;
+
+	private transient Map<Class<? extends E>, MethodHandle> constructors;
+
 	/**
 	 * Creates a new instance without initializing it. Subclasses that use this
 	 * constructor must invoke the init method or else this instance will be in
@@ -294,6 +331,11 @@ public class EntityDefinition<E extends Entity>
 			}
 		} else {
 			value = super.checkAttributeValue(attribute, value);
+
+			if (value instanceof String &&
+				attribute.hasRelation(STORAGE_COMPRESSION_THRESHOLD)) {
+				value = TextCompression.decompress((String) value);
+			}
 		}
 
 		return value;
@@ -315,7 +357,7 @@ public class EntityDefinition<E extends Entity>
 
 		if (entity == null) {
 			try {
-				entity = createNewEntity(attributeValues);
+				entity = createNewEntity(attributeValues, hasCaching);
 			} catch (Exception e) {
 				Log.errorf(e, "Error creating entity %s from data %s",
 					entityClass.getSimpleName(), attributeValues);
@@ -336,13 +378,7 @@ public class EntityDefinition<E extends Entity>
 	 * @return The matching attribute type or NULL if no such instance exists
 	 */
 	public final RelationType<?> getAttribute(String attributeName) {
-		for (RelationType<?> attr : attributes) {
-			if (attr.getName().equals(attributeName)) {
-				return attr;
-			}
-		}
-
-		return null;
+		return attributeNames.get(attributeName);
 	}
 
 	/**
@@ -629,7 +665,7 @@ public class EntityDefinition<E extends Entity>
 			// detection and need to be handled explicitly (by setting
 			// MODIFIED).
 			else if (relationType != idAttribute &&
-				attributes.contains(relationType)) {
+				attributeIndexes.containsKey(relationType)) {
 				handleAttributeValueChange(event, entity, updateValue);
 			}
 		}
@@ -736,7 +772,9 @@ public class EntityDefinition<E extends Entity>
 	}
 
 	/**
-	 * Overridden to map entity references to entity IDs.
+	 * Overridden to map entity references to entity IDs and to compress the
+	 * values of attributes with the annotation
+	 * {@link EntityRelationTypes#STORAGE_COMPRESSION_THRESHOLD}.
 	 *
 	 * @see AbstractStorageMapping#mapValue(Relatable, Object)
 	 */
@@ -757,6 +795,15 @@ public class EntityDefinition<E extends Entity>
 			}
 		} else {
 			value = super.mapValue(attribute, value);
+
+			Integer compressionThreshold =
+				attribute.get(STORAGE_COMPRESSION_THRESHOLD);
+
+			if (value instanceof String && compressionThreshold != null &&
+				compressionThreshold > 0 &&
+				((String) value).length() > compressionThreshold) {
+				value = TextCompression.compress((String) value);
+			}
 		}
 
 		return value;
@@ -837,7 +884,7 @@ public class EntityDefinition<E extends Entity>
 
 		if (typeSubClasses != null && typeAttribute != null) {
 			Object typeValue =
-				attributeValues.get(getAttributeIndex(typeAttribute));
+				attributeValues.get(typeIndex);
 
 			if (typeValue != null) {
 				Class<? extends E> subClass = typeSubClasses.get(type);
@@ -848,7 +895,7 @@ public class EntityDefinition<E extends Entity>
 			}
 		}
 
-		return ReflectUtil.newInstance(type);
+		return newInstance(type);
 	}
 
 	/**
@@ -857,8 +904,11 @@ public class EntityDefinition<E extends Entity>
 	 * @param attr The attribute relation type
 	 * @return The attribute index or -1 if not found
 	 */
+	@SuppressWarnings("boxing")
 	protected final int getAttributeIndex(RelationType<?> attr) {
-		return attributes.indexOf(attr);
+		Integer index = attributeIndexes.get(attr);
+
+		return index != null ? index : -1;
 	}
 
 	/**
@@ -897,6 +947,9 @@ public class EntityDefinition<E extends Entity>
 		}
 
 		attributes = Collections.unmodifiableList(attributes);
+		attributeMappings = createAttributeMappings();
+		initAttributeLookup();
+		constructors = new ConcurrentHashMap<>();
 
 		attributeDisplayProperties =
 			getAttributeDisplayProperties(entityClass);
@@ -1008,6 +1061,28 @@ public class EntityDefinition<E extends Entity>
 		}
 	}
 
+	/**
+	 * Returns the attributes that can be used to compare entities of this
+	 * definition without causing an endless recursion. This excludes the
+	 * parent attribute. The returned array must not be modified.
+	 *
+	 * @return The compare attributes
+	 */
+	RelationType<?>[] getCompareAttributes() {
+		return compareAttributes;
+	}
+
+	/**
+	 * Returns the hash code of the compare attributes. It is identical to the
+	 * hash code of a list of the attributes returned by
+	 * {@link #getCompareAttributes()}.
+	 *
+	 * @return The compare attributes hash code
+	 */
+	int getCompareAttributesHash() {
+		return compareAttributesHash;
+	}
+
 	/**
 	 * Returns the parent object of a certain entity.
 	 *
@@ -1107,53 +1182,83 @@ public class EntityDefinition<E extends Entity>
 		}
 	}
 
+	/**
+	 * Creates the table of attribute mappings that is used by
+	 * {@link #createNewEntity(List, boolean)} to avoid the type introspection
+	 * of each attribute for every created entity.
+	 *
+	 * @return The attribute mappings in the order of the attributes
+	 */
+	private AttributeMapping[] createAttributeMappings() {
+		AttributeMapping[] mappings = new AttributeMapping[attributes.size()];
+		int index = 0;
+
+		for (RelationType<?> attr : attributes) {
+			Class<?> attrType = attr.getTargetType();
+			AttributeMapping mapping;
+
+			if (isHierarchyAttribute(attr)) {
+				mapping = AttributeMapping.HIERARCHY;
+			} else if (Entity.class.isAssignableFrom(attrType)) {
+				mapping = AttributeMapping.ENTITY_REFERENCE;
+			} else if (RelationType.class.isAssignableFrom(attrType)) {
+				mapping = AttributeMapping.RELATION_TYPE;
+			} else {
+				mapping = AttributeMapping.VALUE;
+			}
+
+			mappings[index++] = mapping;
+		}
+
+		return mappings;
+	}
+
 	/**
 	 * Internal method to create a new instance of the described entity from a
 	 * list of attribute values.
 	 *
 	 * @param attributeValues The attribute values
+	 * @param hasCaching      The result of
+	 *                        {@link EntityManager#isCachingEnabledFor(Class)}
+	 *                        for the mapped type
 	 * @return The new entity instance
 	 *
 	 * <p>@ If retrieving a referenced entity fails</p>
 	 */
 	@SuppressWarnings("unchecked")
-	private E createNewEntity(List<?> attributeValues) {
+	private E createNewEntity(List<?> attributeValues, boolean hasCaching) {
 		E entity = createEntityInstance(attributeValues);
-		int valueIndex = 0;
+		int count = attributeMappings.length;
 
 		entity.set(INITIALIZING);
 
-		for (RelationType<?> attr : attributes) {
-			Object value = attributeValues.get(valueIndex++);
+		for (int i = 0; i < count; i++) {
+			RelationType<?> attr = attributes.get(i);
+			AttributeMapping mapping = attributeMappings[i];
+			Object value = attributeValues.get(i);
 
 			// omit parent and master attributes for child objects if parents
 			// are cached because then these will be set by addChildren() of
-			// the parent from tryToGetFromParent(); the caching test from
-			// createObject() therefore needs to be repeated here
-			if (isHierarchyAttribute(attr) &&
-				EntityManager.isCachingEnabledFor(getMappedType())) {
+			// the parent from tryToGetFromParent()
+			if (mapping == AttributeMapping.HIERARCHY && hasCaching) {
 				setHierarchyAttributeValue(entity, attr, value);
 			} else if (value != null) {
-				Class<?> attrType = attr.getTargetType();
-
-				if (Entity.class.isAssignableFrom(attrType)) {
-					initEntityReference(entity, (RelationType<Entity>) attr,
-						value);
-				} else if (RelationType.class.isAssignableFrom(attrType)) {
-					initRelationTypeAttribute(entity,
-						(RelationType<RelationType<?>>) attr,
-						value.toString());
-				} else {
-					try {
-						value = checkAttributeValue(attr, value);
-						entity.set((RelationType<Object>) attr, value);
-					} catch (IllegalArgumentException e) {
-						String message =
-							String.format("Could not map attribute %s.%s: %s",
-								getEntityName(), attr, e.getMessage());
-
-						throw new StorageException(message, e);
-					}
+				switch (mapping) {
+					case HIERARCHY:
+					case ENTITY_REFERENCE:
+						initEntityReference(entity,
+							(RelationType<Entity>) attr, value);
+						break;
+
+					case RELATION_TYPE:
+						initRelationTypeAttribute(entity,
+							(RelationType<RelationType<?>>) attr,
+							value.toString());
+						break;
+
+					default:
+						setAttributeValue(entity, (RelationType<Object>) attr,
+							value);
 				}
 			}
 		}
@@ -1226,28 +1331,33 @@ public class EntityDefinition<E extends Entity>
 	}
 
 	/**
-	 * Returns a child entity with a certain ID from a parent entity.
+	 * Returns a child entity with a certain ID from a parent entity. The
+	 * lookup is performed through a {@link ChildIndex} on the parent's child
+	 * relation.
 	 *
 	 * @param parent The parent entity to get the child from
 	 * @param id     The child entity's ID
 	 * @return The corresponding child entity or NULL if none could be found
 	 */
+	@SuppressWarnings("unchecked")
 	private E getChild(Entity parent, Number id) {
-		@SuppressWarnings("unchecked")
-		EntityDefinition<Entity> parentDef =
-			(EntityDefinition<Entity>) parent.getDefinition();
+		Map<EntityDefinition<?>, RelationType<List<Entity>>> parentChildren =
+			parent.getDefinition().childAttributes;
 
-		@SuppressWarnings("unchecked")
-		Collection<E> children =
-			(Collection<E>) parentDef.getChildren(parent, this);
+		RelationType<List<Entity>> childAttr =
+			parentChildren != null ? parentChildren.get(this) : null;
+
+		E child = null;
+
+		if (childAttr != null) {
+			Relation<List<Entity>> childRelation = parent.getRelation(childAttr);
 
-		for (E child : children) {
-			if (id.equals(child.get(idAttribute))) {
-				return child;
+			if (childRelation != null) {
+				child = (E) ChildIndex.getChild(childRelation, id.longValue());
 			}
 		}
 
-		return null;
+		return child;
 	}
 
 	/**
@@ -1357,6 +1467,36 @@ public class EntityDefinition<E extends Entity>
 		}
 	}
 
+	/**
+	 * Initializes the lookup tables for attribute names and indexes and the
+	 * indexes of the special attributes.
+	 */
+	@SuppressWarnings("boxing")
+	private void initAttributeLookup() {
+		int count = attributes.size();
+
+		attributeNames = new HashMap<>(count * 2);
+		attributeIndexes = new IdentityHashMap<>(count);
+
+		for (int i = 0; i < count; i++) {
+			RelationType<?> attr = attributes.get(i);
+
+			attributeNames.putIfAbsent(attr.getName(), attr);
+			attributeIndexes.putIfAbsent(attr, i);
+		}
+
+		idIndex = getAttributeIndex(idAttribute);
+		typeIndex = getAttributeIndex(typeAttribute);
+		parentIndex = getAttributeIndex(parentAttribute);
+		masterIndex = getAttributeIndex(masterAttribute);
+
+		List<RelationType<?>> compare = new ArrayList<>(attributes);
+
+		compare.remove(parentAttribute);
+		compareAttributes = compare.toArray(new RelationType<?>[0]);
+		compareAttributesHash = compare.hashCode();
+	}
+
 	/**
 	 * Initializes the storage mapping for a certain entity reference
 	 * attribute.
@@ -1467,6 +1607,45 @@ public class EntityDefinition<E extends Entity>
 		return parentAttr;
 	}
 
+	/**
+	 * Creates a new instance of an entity class. The no-argument constructor
+	 * of each class is looked up only once and then invoked through a cached
+	 * method handle. If no handle can be created for the constructor this is
+	 * also cached and the instance will be created by reflection instead.
+	 *
+	 * @param type The entity class
+	 * @return The new instance
+	 */
+	@SuppressWarnings("unchecked")
+	private E newInstance(Class<? extends E> type) {
+		MethodHandle constructor =
+			constructors.computeIfAbsent(type, t -> {
+				try {
+					Constructor<? extends E> c = t.getDeclaredConstructor();
+
+					c.setAccessible(true);
+
+					return MethodHandles.lookup().unreflectConstructor(c);
+				} catch (Exception e) {
+					// fall back to reflective instantiation
+					return NO_CONSTRUCTOR;
+				}
+			});
+
+		if (constructor == NO_CONSTRUCTOR) {
+			return ReflectUtil.newInstance(type);
+		}
+
+		try {
+			return (E) constructor.invoke();
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(
+				"Could not create instance of " + type, e);
+		}
+	}
+
 	/**
 	 * Registers this definition also for sub-classes of this definitions
 	 * entity
@@ -1526,6 +1705,27 @@ public class EntityDefinition<E extends Entity>
 		}
 	}
 
+	/**
+	 * Sets a plain attribute value on a new entity after it has been checked
+	 * with {@link #checkAttributeValue(RelationType, Object)}.
+	 *
+	 * @param entity The entity
+	 * @param attr   The attribute
+	 * @param value  The attribute value
+	 * @throws StorageException If the value cannot be mapped
+	 */
+	private void setAttributeValue(E entity, RelationType<Object> attr,
+		Object value) {
+		try {
+			entity.set(attr, checkAttributeValue(attr, value));
+		} catch (IllegalArgumentException e) {
+			String message = String.format("Could not map attribute %s.%s: %s",
+				getEntityName(), attr, e.getMessage());
+
+			throw new StorageException(message, e);
+		}
+	}
+
 	/**
 	 * Registers a set of entity attributes for a certain display mode. This
 	 * method should be invoked by subclasses to set the attributes that they
@@ -1562,7 +1762,7 @@ public class EntityDefinition<E extends Entity>
 				new ArrayList<>(Arrays.asList(attr));
 
 			for (RelationType<?> attribute : attr) {
-				if (!attributes.contains(attribute)) {
+				if (!attributeIndexes.containsKey(attribute)) {
 					attributeList.remove(attribute);
 				}
 			}
@@ -1677,9 +1877,7 @@ public class EntityDefinition<E extends Entity>
 		E entity = null;
 
 		if (parentAttribute != null) {
-			int parentIdIndex = attributes.indexOf(parentAttribute);
-
-			parentId = (Number) attributeValues.get(parentIdIndex);
+			parentId = (Number) attributeValues.get(parentIndex);
 
 			if (parentId != null) {
 				parentAttr = parentAttribute;
@@ -1687,9 +1885,7 @@ public class EntityDefinition<E extends Entity>
 		}
 
 		if (parentAttr == null && masterAttribute != null) {
-			int parentIdIndex = attributes.indexOf(masterAttribute);
-
-			parentId = (Number) attributeValues.get(parentIdIndex);
+			parentId = (Number) attributeValues.get(masterIndex);
 
 			if (parentId != null) {
 				parentAttr = masterAttribute;
@@ -1705,7 +1901,6 @@ public class EntityDefinition<E extends Entity>
 				EntityManager.queryEntity(parentClass, parentId.intValue());
 
 			if (parent != null) {
-				int idIndex = attributes.indexOf(idAttribute);
 				Number id = (Number) attributeValues.get(idIndex);
 
 				entity = getChild(parent, id);
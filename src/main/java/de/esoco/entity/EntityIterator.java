@@ -17,6 +17,9 @@
 package de.esoco.entity;
 
 import de.esoco.lib.expression.Action;
+import de.esoco.lib.expression.Predicate;
+import de.esoco.lib.expression.Predicates;
+import de.esoco.lib.expression.predicate.PredicateJoin;
 import de.esoco.lib.logging.Log;
 import de.esoco.lib.manage.Closeable;
 import de.esoco.storage.Query;
@@ -25,9 +28,30 @@ import de.esoco.storage.QueryResult;
 import de.esoco.storage.Storage;
 import de.esoco.storage.StorageException;
 import de.esoco.storage.StorageManager;
+import de.esoco.storage.StoragePredicates.SortPredicate;
 import de.esoco.storage.StorageRuntimeException;
+import org.obrel.core.ObjectRelations;
+import org.obrel.core.Relatable;
+import org.obrel.core.RelationType;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
+
+import static de.esoco.entity.EntityPredicates.forEntity;
+import static de.esoco.entity.EntityPredicates.ifAttribute;
+import static de.esoco.entity.EntityRelationTypes.NO_ENTITY_CACHING;
+import static de.esoco.entity.EntityRelationTypes.PREFETCH_EXTRA_ATTRIBUTES;
+import static de.esoco.entity.EntityRelationTypes.PREFETCH_REFERENCES;
+import static de.esoco.entity.EntityRelationTypes.STREAMING_FETCH_SIZE;
+import static de.esoco.lib.expression.Predicates.greaterThan;
+import static de.esoco.storage.StoragePredicates.sortBy;
+import static de.esoco.storage.StorageRelationTypes.QUERY_LIMIT;
+import static de.esoco.storage.StorageRelationTypes.QUERY_OFFSET;
+import static org.obrel.type.MetaTypes.SORT_DIRECTION;
 
 /**
  * An iterator implementation for the iteration over an entity query. Because
@@ -40,17 +64,64 @@ import java.util.Iterator;
  * invoking the {@link #close()} method. It is recommended to do that in a
  * try-with-resource block if possible.</p>
  *
+ * <p>If the query predicate has the relation
+ * {@link EntityRelationTypes#PREFETCH_REFERENCES} the iterator will read the
+ * query result in pages of {@link #PREFETCH_PAGE_SIZE} entities and resolve
+ * the given reference attributes of each page in bulk. The same applies to
+ * the flag {@link EntityRelationTypes#PREFETCH_EXTRA_ATTRIBUTES} which causes
+ * the global extra attributes of each page to be read with a single
+ * query.</p>
+ *
+ * <p>If the query predicate has a positive value in the relation
+ * {@link EntityRelationTypes#STREAMING_FETCH_SIZE} the iterator works in a
+ * streaming mode where it reads the result with a sequence of queries that
+ * are limited to the fetch size and continue after the last entity ID of the
+ * previous page. The other relations of the query predicate, e.g. a query
+ * limit or offset, are applied to the streamed result as a whole. Because
+ * the pages are ordered by ID the query criteria must not contain sort
+ * predicates and repositioning with {@link #setPosition(int, boolean)} is
+ * not supported in this mode. Together with the flag
+ * {@link EntityRelationTypes#NO_ENTITY_CACHING}, which prevents the caching
+ * of the iterated entities, this allows to scan large entity sets with
+ * constant memory usage.</p>
+ *
  * @author eso
  */
 public class EntityIterator<E extends Entity>
 	implements Iterator<E>, Closeable {
 
+	/**
+	 * The number of entities that are read at once if references are
+	 * prefetched.
+	 */
+	public static final int PREFETCH_PAGE_SIZE = 50;
+
 	private final QueryPredicate<E> entities;
 
+	private final List<RelationType<? extends Entity>> prefetchReferences;
+
+	private final boolean prefetchExtraAttributes;
+
+	private final Deque<E> prefetchedEntities;
+
 	private final boolean useNewStorage;
 
+	private final int fetchSize;
+
+	private final boolean noCaching;
+
+	private final int queryLimit;
+
 	private Storage storage = null;
 
+	private Long lastId = null;
+
+	private int pageEntities = 0;
+
+	private int pageLimit = 0;
+
+	private int streamedEntities = 0;
+
 	private Query<E> query;
 
 	private QueryResult<E> queryResult;
@@ -72,10 +143,38 @@ public class EntityIterator<E extends Entity>
 	 * @param useNewStorage TRUE to perform the query on a new storage instance
 	 *                      (instead of the shared storage for the current
 	 *                      thread)
+	 * @throws IllegalArgumentException If the query is in streaming mode and
+	 *                                  the criteria contain sort predicates
 	 */
 	public EntityIterator(QueryPredicate<E> entities, boolean useNewStorage) {
 		this.entities = entities;
 		this.useNewStorage = useNewStorage;
+
+		Integer streamingFetchSize = entities.get(STREAMING_FETCH_SIZE);
+		Integer limit = entities.get(QUERY_LIMIT);
+
+		fetchSize =
+			streamingFetchSize != null ? streamingFetchSize.intValue() : 0;
+		queryLimit = limit != null ? limit.intValue() : 0;
+		noCaching = entities.hasFlag(NO_ENTITY_CACHING);
+
+		if (fetchSize > 0 && containsSortPredicate(entities.getCriteria())) {
+			throw new IllegalArgumentException(
+				"Sorting not supported in streaming mode: " + entities);
+		}
+
+		prefetchExtraAttributes = entities.hasFlag(PREFETCH_EXTRA_ATTRIBUTES);
+
+		if (entities.hasRelation(PREFETCH_REFERENCES) ||
+			prefetchExtraAttributes) {
+			prefetchReferences = entities.hasRelation(PREFETCH_REFERENCES) ?
+			                     entities.get(PREFETCH_REFERENCES) :
+			                     Collections.emptyList();
+			prefetchedEntities = new ArrayDeque<>(PREFETCH_PAGE_SIZE);
+		} else {
+			prefetchReferences = null;
+			prefetchedEntities = null;
+		}
 	}
 
 	/**
@@ -123,7 +222,8 @@ public class EntityIterator<E extends Entity>
 		try {
 			checkPrepareQuery();
 
-			return queryResult.hasNext();
+			return (prefetchedEntities != null &&
+				!prefetchedEntities.isEmpty()) || hasNextResult();
 		} catch (StorageException e) {
 			handleError(e);
 
@@ -138,13 +238,15 @@ public class EntityIterator<E extends Entity>
 	@Override
 	public E next() {
 		try {
-			E entity = queryResult.next();
+			if (prefetchedEntities != null) {
+				if (prefetchedEntities.isEmpty()) {
+					prefetchNextPage();
+				}
 
-			if (entity.isRoot()) {
-				entity = EntityManager.checkCaching(entity);
+				return prefetchedEntities.remove();
+			} else {
+				return readNext();
 			}
-
-			return entity;
 		} catch (StorageException e) {
 			handleError(e);
 
@@ -166,10 +268,28 @@ public class EntityIterator<E extends Entity>
 	 * @param relative TRUE to set the position relative to the current
 	 *                 position, FALSE to set an absolute position relative to
 	 *                 the full query
+	 * @throws UnsupportedOperationException If the iterator is in streaming
+	 *                                       mode
 	 */
 	public void setPosition(int index, boolean relative) {
+		if (fetchSize > 0) {
+			throw new UnsupportedOperationException(
+				"Positioning not supported in streaming mode");
+		}
+
 		try {
 			checkPrepareQuery();
+
+			if (prefetchedEntities != null && !prefetchedEntities.isEmpty()) {
+				if (relative) {
+					// the query result is already positioned after the
+					// prefetched entities
+					index -= prefetchedEntities.size();
+				}
+
+				prefetchedEntities.clear();
+			}
+
 			queryResult.setPosition(index, relative);
 		} catch (StorageException e) {
 			handleError(e);
@@ -186,6 +306,13 @@ public class EntityIterator<E extends Entity>
 		try {
 			checkPrepareQuery();
 
+			if (fetchSize > 0) {
+				// the page query only contains the current page
+				try (Query<E> countQuery = storage.query(entities)) {
+					return countQuery.size();
+				}
+			}
+
 			return query.size();
 		} catch (StorageException e) {
 			handleError(e);
@@ -208,8 +335,12 @@ public class EntityIterator<E extends Entity>
 			          StorageManager.newStorage(queryType) :
 			          StorageManager.getStorage(queryType);
 
-			query = storage.query(entities);
-			queryResult = query.execute();
+			if (fetchSize > 0) {
+				executePageQuery();
+			} else {
+				query = storage.query(entities);
+				queryResult = query.execute();
+			}
 		}
 	}
 
@@ -231,4 +362,152 @@ public class EntityIterator<E extends Entity>
 
 		throw new StorageRuntimeException(storage);
 	}
+
+	/**
+	 * Checks whether a criteria predicate contains sort predicates or
+	 * predicates with a sort direction.
+	 *
+	 * @param criteria The criteria to check (may be NULL)
+	 * @return TRUE if a sort predicate has been found
+	 */
+	static boolean containsSortPredicate(Predicate<?> criteria) {
+		if (criteria instanceof PredicateJoin) {
+			PredicateJoin<?> join = (PredicateJoin<?>) criteria;
+
+			return containsSortPredicate(join.getLeft()) ||
+				containsSortPredicate(join.getRight());
+		}
+
+		return criteria instanceof SortPredicate ||
+			(criteria instanceof Relatable &&
+				((Relatable) criteria).hasRelation(SORT_DIRECTION));
+	}
+
+	/**
+	 * Executes the query for the next page of entities in streaming mode. The
+	 * relations of the original query predicate are copied to the page query.
+	 * A query offset is only applied to the first page and a query limit is
+	 * distributed over all pages.
+	 *
+	 * @throws StorageException If executing the query fails
+	 */
+	@SuppressWarnings({ "boxing", "unchecked" })
+	private void executePageQuery() throws StorageException {
+		Class<E> queryType = entities.getQueryType();
+		RelationType<Long> idAttribute =
+			(RelationType<Long>) (RelationType<?>) EntityManager
+				.getEntityDefinition(queryType)
+				.getIdAttribute();
+
+		Predicate<E> criteria = Predicates.and(entities.getCriteria(),
+			sortBy(idAttribute, true));
+
+		if (lastId != null) {
+			criteria = Predicates.and(criteria,
+				ifAttribute(idAttribute, greaterThan(lastId)));
+		}
+
+		QueryPredicate<E> page = forEntity(queryType, criteria);
+
+		ObjectRelations.copyRelations(entities, page, true);
+
+		pageLimit = fetchSize;
+
+		if (queryLimit > 0) {
+			pageLimit = Math.min(pageLimit, queryLimit - streamedEntities);
+		}
+
+		if (lastId != null) {
+			// the following pages continue after the last ID
+			page.deleteRelation(QUERY_OFFSET);
+		}
+
+		page.set(QUERY_LIMIT, pageLimit);
+
+		if (query != null) {
+			query.close();
+		}
+
+		pageEntities = 0;
+		query = storage.query(page);
+		queryResult = query.execute();
+	}
+
+	/**
+	 * Checks whether the query has more results. In streaming mode this will
+	 * execute the query for the next page if the current page has been fully
+	 * read.
+	 *
+	 * @return TRUE if more results are available
+	 * @throws StorageException If executing the page query fails
+	 */
+	private boolean hasNextResult() throws StorageException {
+		boolean hasNext = queryResult.hasNext();
+
+		if (!hasNext && fetchSize > 0 && pageEntities == pageLimit &&
+			(queryLimit <= 0 || streamedEntities < queryLimit)) {
+			executePageQuery();
+			hasNext = queryResult.hasNext();
+		}
+
+		return hasNext;
+	}
+
+	/**
+	 * Reads the next page of entities from the query result and resolves the
+	 * references to prefetch.
+	 *
+	 * @throws StorageException If reading the entities or the references
+	 *                          fails
+	 */
+	private void prefetchNextPage() throws StorageException {
+		List<E> page = new ArrayList<>(PREFETCH_PAGE_SIZE);
+
+		while (page.size() < PREFETCH_PAGE_SIZE && hasNextResult()) {
+			page.add(readNext());
+		}
+
+		if (!prefetchReferences.isEmpty()) {
+			EntityManager.prefetchReferences(page, prefetchReferences);
+		}
+
+		if (prefetchExtraAttributes) {
+			EntityManager.fetchExtraAttributes(page);
+		}
+
+		prefetchedEntities.addAll(page);
+	}
+
+	/**
+	 * Reads the next entity from the query result.
+	 *
+	 * @return The next entity (either a new or a cached instance)
+	 * @throws StorageException If reading the entity fails
+	 */
+	@SuppressWarnings({ "boxing", "unchecked" })
+	private E readNext() throws StorageException {
+		E entity = queryResult.next();
+
+		if (fetchSize > 0) {
+			lastId = entity.getId();
+			pageEntities++;
+			streamedEntities++;
+		}
+
+		if (entity.isRoot()) {
+			if (noCaching) {
+				// untracked to not count each streamed entity as a miss
+				E cachedEntity = EntityManager.lookupCachedEntity(
+					(Class<E>) entity.getClass(), entity.getId());
+
+				if (cachedEntity != null) {
+					entity = cachedEntity;
+				}
+			} else {
+				entity = EntityManager.checkCaching(entity);
+			}
+		}
+
+		return entity;
+	}
 }
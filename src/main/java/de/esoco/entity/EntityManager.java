@@ -17,11 +17,11 @@
 package de.esoco.entity;
 
 import de.esoco.data.SessionManager;
+import de.esoco.entity.EntitySyncClient.EndpointLockService;
 import de.esoco.history.HistoryManager;
 import de.esoco.history.HistoryRecord.HistoryType;
 import de.esoco.lib.collection.CollectionUtil;
 import de.esoco.lib.comm.Endpoint;
-import de.esoco.lib.comm.EndpointFunction;
 import de.esoco.lib.expression.Action;
 import de.esoco.lib.expression.Conversions;
 import de.esoco.lib.expression.Predicate;
@@ -31,7 +31,6 @@ import de.esoco.lib.manage.MultiLevelCache;
 import de.esoco.lib.manage.TransactionException;
 import de.esoco.lib.manage.TransactionManager;
 import de.esoco.lib.reflect.ReflectUtil;
-import de.esoco.lib.service.ModificationSyncEndpoint.SyncData;
 import de.esoco.storage.Query;
 import de.esoco.storage.QueryPredicate;
 import de.esoco.storage.QueryResult;
@@ -42,14 +41,17 @@ import de.esoco.storage.StorageManager.MappingFactory;
 import de.esoco.storage.StorageMapping;
 import de.esoco.storage.StorageRelationTypes;
 import de.esoco.storage.StorageRuntimeException;
+import org.obrel.core.IntermediateRelation;
 import org.obrel.core.ObjectRelations;
 import org.obrel.core.Relatable;
+import org.obrel.core.Relation;
 import org.obrel.core.RelationType;
 import org.obrel.core.RelationTypes;
 import org.obrel.type.ListenerType;
 import org.obrel.type.ListenerTypes;
 import org.obrel.type.MetaTypes;
 
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -59,6 +61,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -66,12 +69,15 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import static de.esoco.entity.EntityPredicates.forEntity;
+import static de.esoco.entity.EntityPredicates.hasParentIn;
 import static de.esoco.entity.EntityPredicates.ifAttribute;
 import static de.esoco.entity.EntityRelationTypes.CACHE_ENTITY;
 import static de.esoco.entity.EntityRelationTypes.CONTEXT_MODIFIED_ENTITIES;
@@ -79,22 +85,18 @@ import static de.esoco.entity.EntityRelationTypes.CONTEXT_UPDATED_ENTITIES;
 import static de.esoco.entity.EntityRelationTypes.DEPENDENT_STORE_ENTITIES;
 import static de.esoco.entity.EntityRelationTypes.ENTITY_MODIFICATION_HANDLE;
 import static de.esoco.entity.EntityRelationTypes.ENTITY_STORE_ORIGIN;
+import static de.esoco.entity.EntityRelationTypes.EXTRA_ATTRIBUTES_MODIFIED;
 import static de.esoco.entity.EntityRelationTypes.EXTRA_ATTRIBUTES_READ;
 import static de.esoco.entity.EntityRelationTypes.EXTRA_ATTRIBUTE_MAP;
 import static de.esoco.entity.EntityRelationTypes.LAST_CHANGE;
 import static de.esoco.entity.EntityRelationTypes.MASTER_ENTITY_ID;
+import static de.esoco.entity.EntityRelationTypes.NO_ENTITY_CACHING;
 import static de.esoco.entity.EntityRelationTypes.NO_ENTITY_LOCKING;
 import static de.esoco.entity.EntityRelationTypes.PARENT_ENTITY_ID;
 import static de.esoco.entity.EntityRelationTypes.SKIP_NEXT_CHANGE_LOGGING;
-import static de.esoco.lib.comm.CommunicationRelationTypes.ENDPOINT_ADDRESS;
 import static de.esoco.lib.expression.CollectionPredicates.elementOf;
 import static de.esoco.lib.expression.Predicates.equalTo;
-import static de.esoco.lib.expression.Predicates.ifRelation;
-import static de.esoco.lib.expression.Predicates.isNull;
 import static de.esoco.lib.expression.Predicates.untilCountDown;
-import static de.esoco.lib.service.ModificationSyncEndpoint.releaseLock;
-import static de.esoco.lib.service.ModificationSyncEndpoint.requestLock;
-import static de.esoco.lib.service.ModificationSyncEndpoint.syncRequest;
 import static de.esoco.storage.StoragePredicates.like;
 import static de.esoco.storage.StorageRelationTypes.STORAGE_MAPPING;
 import static org.obrel.type.MetaTypes.MODIFIED;
@@ -121,6 +123,11 @@ public class EntityManager {
 	private static final String MSG_ENTITY_LOCKED =
 		"Entity %s already locked by %s";
 
+	private static final String MSG_ENTITY_LEASE_LOST =
+		"Lock lease of %s modified by %s has been lost";
+
+	private static final int MAX_ID_QUERY_SIZE = 1000;
+
 	private static final Map<String, Class<? extends Entity>> idPrefixRegistry =
 		new HashMap<String, Class<? extends Entity>>();
 
@@ -142,6 +149,11 @@ public class EntityManager {
 			public Entity getEntity(long id) {
 				return null;
 			}
+
+			@Override
+			public boolean isConcurrent() {
+				return true;
+			}
 		};
 
 	/**
@@ -159,18 +171,24 @@ public class EntityManager {
 
 	private static final Lock cacheLock = new ReentrantLock();
 
+	private static final EntityCacheStatistics cacheStatistics =
+		new EntityCacheStatistics();
+
 	private static final Set<Class<? extends Entity>> deleteEnabledEntities =
 		new HashSet<>();
 
 	private static final Map<String, Entity> modifiedEntities =
-		new HashMap<>();
+		new ConcurrentHashMap<>();
 
 	private static final Map<String, Predicate<? super Entity>>
-		modificationLockRules = new HashMap<>();
+		modificationLockRules = new ConcurrentHashMap<>();
 
 	private static final Map<Class<? extends Entity>, EntityCache<?
 		extends Entity>>
-		entityCacheMap = new HashMap<>();
+		entityCacheMap = new ConcurrentHashMap<>();
+
+	private static final Set<Class<? extends Entity>> concurrentCacheTypes =
+		ConcurrentHashMap.newKeySet();
 
 	private static final Map<Class<? extends Entity>, EntityDefinition<?>>
 		entityDefinitions = new HashMap<>();
@@ -181,16 +199,21 @@ public class EntityManager {
 
 	private static boolean automaticChangeLogging = true;
 
-	private static boolean usePluralStorageNames = false;
-
-	private static String entitySyncClientId;
+	private static volatile String directJdbcUrl = null;
 
-	private static String entitySyncContext;
+	private static boolean usePluralStorageNames = false;
 
 	private static Optional<Endpoint> entitySyncEndpoint = Optional.empty();
 
 	private static boolean syncServiceEnabled = false;
 
+	private static volatile EntitySyncClient entitySyncClient = null;
+
+	private static volatile boolean concurrentCaching = false;
+
+	private static volatile WeightedEntityCache weightedCache =
+		createWeightedCache();
+
 	static {
 		RelationTypes.init(EntityManager.class);
 	}
@@ -232,27 +255,53 @@ public class EntityManager {
 	}
 
 	/**
-	 * Recursively assigns the child entities in a list to their parent
-	 * entities.
+	 * Recursively assigns grouped child entities to their parent entities.
 	 *
 	 * @param parent          The parent entity
-	 * @param allChildren     The list of all (remaining) children
+	 * @param childGroups     A mapping from parent IDs to the lists of child
+	 *                        entities that have not been assigned yet
 	 * @param parentAttribute The parent attribute of the children
 	 * @param childAttribute  The child attribute of the parent
 	 */
+	@SuppressWarnings("boxing")
 	private static <C extends Entity> void assignChildren(C parent,
-		List<C> allChildren, RelationType<C> parentAttribute,
+		Map<Long, List<C>> childGroups, RelationType<C> parentAttribute,
 		RelationType<List<C>> childAttribute) {
-		List<C> children =
-			findDirectChildren(parent, allChildren, parentAttribute,
-				childAttribute);
+		List<C> children = childGroups.remove(parent.getId());
+
+		if (children == null) {
+			children = new ArrayList<>();
+		}
+
+		initDirectChildren(parent, children, parentAttribute, childAttribute);
 
 		for (C child : children) {
-			assignChildren(child, allChildren, parentAttribute,
+			assignChildren(child, childGroups, parentAttribute,
 				childAttribute);
 		}
 	}
 
+	/**
+	 * Waits until a concurrent claim of the same entity instance in
+	 * {@link #beginEntityModification(Entity)} has either been completed by
+	 * setting the modification handle or reverted.
+	 *
+	 * @param entity   The claimed entity
+	 * @param entityId The global entity ID
+	 * @return The modification handle or NULL if the claim has been reverted
+	 */
+	private static String awaitModificationHandle(Entity entity,
+		String entityId) {
+		String handle = entity.get(ENTITY_MODIFICATION_HANDLE);
+
+		while (handle == null && modifiedEntities.get(entityId) == entity) {
+			LockSupport.parkNanos(100_000);
+			handle = entity.get(ENTITY_MODIFICATION_HANDLE);
+		}
+
+		return handle;
+	}
+
 	/**
 	 * Signals the beginning of an entity modification. If the entity is cached
 	 * it will be marked to allow the detection of concurrent modifications of
@@ -268,39 +317,70 @@ public class EntityManager {
 	 * interface had been set during application initialization with
 	 * {@link #setSessionManager(SessionManager)}.</p>
 	 *
-	 * <p>This method is synchronized to prevent multiple threads from
-	 * concurrently invoking this method for the same entity. It is not
-	 * synchronizing on the entity itself because that could cause deadlocks if
-	 * multiple elements of an entity hierarchy are marked for modification at
-	 * the same time.</p>
+	 * <p>This method is not synchronized to prevent the modification of
+	 * unrelated entities from contending on a global lock. Instead the entity
+	 * is claimed atomically in a concurrent map that is keyed by the global
+	 * entity ID so that only a single thread can succeed in claiming a certain
+	 * entity. The lock rules and the (remote) sync endpoint lock are then
+	 * checked outside of any lock and the claim will be reverted if one of
+	 * them fails. If the same entity instance is claimed concurrently in the
+	 * same modification context the second invocation waits for the claim to
+	 * complete and then succeeds. It is not synchronizing on the entity
+	 * itself because that could cause deadlocks if multiple elements of an
+	 * entity hierarchy are marked for modification at the same time.</p>
 	 *
 	 * @param entity The entity to be modified
 	 * @throws ConcurrentModificationException If the entity is already being
 	 *                                         modified by another session
 	 */
-	static synchronized void beginEntityModification(Entity entity) {
+	static void beginEntityModification(Entity entity) {
 		if (entityModificationTracking && entity.isPersistent() &&
 			!entity.hasFlag(NO_ENTITY_LOCKING)) {
 			String contextId = getEntityModificationContextId();
 			String handle = entity.get(ENTITY_MODIFICATION_HANDLE);
 			String entityId = entity.getGlobalId();
 
-			if (handle == null && !modifiedEntities.containsKey(entityId)) {
-				checkModificationLockRules(entity, contextId);
-				trySyncEndpointLock(entity);
+			if (handle == null) {
+				Entity modifiedEntity =
+					modifiedEntities.putIfAbsent(entityId, entity);
+
+				if (modifiedEntity != null) {
+					if (modifiedEntity == entity) {
+						// same instance claimed concurrently, which is valid
+						// if the claim belongs to the same context
+						handle = awaitModificationHandle(entity, entityId);
+
+						if (contextId.equals(handle)) {
+							return;
+						}
+					}
+
+					throwConcurrentEntityModification(entity,
+						MSG_CONCURRENT_MODIFICATION, entity, contextId,
+						modifiedEntity.get(ENTITY_MODIFICATION_HANDLE));
+				}
+
+				try {
+					checkModificationLockRules(entity, contextId);
+					trySyncEndpointLock(entity);
+				} catch (RuntimeException e) {
+					modifiedEntities.remove(entityId, entity);
+					throw e;
+				}
 
 				Relatable context = entityModificationContext.get();
 
 				entity.set(ENTITY_MODIFICATION_HANDLE, contextId);
 
+				// publish the handle to threads in awaitModificationHandle()
+				modifiedEntities.replace(entityId, entity, entity);
+
 				if (context != null) {
 					context
 						.get(CONTEXT_MODIFIED_ENTITIES)
 						.put(entityId, entity);
 				}
-
-				modifiedEntities.put(entityId, entity);
-			} else if (handle == null || !handle.equals(contextId)) {
+			} else if (!handle.equals(contextId)) {
 				throwConcurrentEntityModification(entity,
 					MSG_CONCURRENT_MODIFICATION, entity, contextId, handle);
 			}
@@ -323,13 +403,24 @@ public class EntityManager {
 		if (entity != null && entity.isRoot()) {
 			@SuppressWarnings("unchecked")
 			EntityCache<E> cache =
-				(EntityCache<E>) entityCacheMap.get(entity.getClass());
+				getEntityCache((Class<E>) entity.getClass());
+
+			if (cache != NO_CACHE) {
+				cacheStatistics.recordInsert(entity.getClass());
+			}
 
 			if (cache != null) {
 				cache.cacheEntity(entity);
 			} else {
-				entityCache.put(getGlobalEntityId(entity), entity);
-				entity.set(CACHE_ENTITY);
+				WeightedEntityCache weighted = weightedCache;
+
+				if (weighted != null) {
+					// sets CACHE_ENTITY only if the entity has been admitted
+					weighted.put(getGlobalEntityId(entity), entity);
+				} else {
+					entityCache.put(getGlobalEntityId(entity), entity);
+					entity.set(CACHE_ENTITY);
+				}
 			}
 		}
 	}
@@ -344,18 +435,47 @@ public class EntityManager {
 	 * entity
 	 */
 	static <E extends Entity> E checkCaching(E entity) {
+		@SuppressWarnings("unchecked")
+		Class<E> entityType = (Class<E>) entity.getClass();
+		EntityCache<E> cache = getEntityCache(entityType);
+
+		if (cache == NO_CACHE) {
+			return entity;
+		} else if (cache != null && cache.isConcurrent()) {
+			// thread-safe type caches don't need the global lock
+			E cachedEntity = entity.isRoot() ? cache.cacheIfAbsent(entity) :
+			                 cache.getEntity(entity.getId());
+
+			if (cachedEntity != null && cachedEntity != entity) {
+				cacheStatistics.recordHit(entityType);
+				entity = cachedEntity;
+			} else {
+				cacheStatistics.recordMiss(entityType);
+
+				if (cachedEntity == entity) {
+					cacheStatistics.recordInsert(entityType);
+				}
+			}
+
+			return entity;
+		}
+
+		long lockStart = System.nanoTime();
+
 		cacheLock.lock();
+		cacheStatistics.recordLockWait(entityType,
+			System.nanoTime() - lockStart);
 
 		try {
-			@SuppressWarnings("unchecked")
-			E cachedEntity =
-				(E) getCachedEntity(entity.getClass(), entity.getId());
+			E cachedEntity = lookupCachedEntity(entityType, entity.getId());
 
 			if (cachedEntity != null) {
 				// use cache entity if available to preserve already
 				// loaded entity hierarchies
+				cacheStatistics.recordHit(entityType);
 				entity = cachedEntity;
 			} else {
+				cacheStatistics.recordMiss(entityType);
 				cacheEntity(entity);
 			}
 		} finally {
@@ -389,6 +509,26 @@ public class EntityManager {
 		}
 	}
 
+	/**
+	 * Checks whether the sync client has lost the lock lease of an entity
+	 * that is currently being modified. In that case another application may
+	 * have acquired the lock and storing the entity must be rejected.
+	 *
+	 * @param entity The entity to check
+	 * @throws ConcurrentEntityModificationException If the lease of the
+	 *                                               entity has been lost
+	 */
+	private static void checkSyncEndpointLease(Entity entity) {
+		EntitySyncClient syncClient = entitySyncClient;
+
+		if (syncServiceEnabled && syncClient != null &&
+			entity.hasRelation(ENTITY_MODIFICATION_HANDLE) &&
+			syncClient.isLeaseLost(entity.getGlobalId())) {
+			throwConcurrentEntityModification(entity, MSG_ENTITY_LEASE_LOST,
+				entity, entity.get(ENTITY_MODIFICATION_HANDLE));
+		}
+	}
+
 	/**
 	 * Checks whether all modified entities in an entity modification context
 	 * have been stored. See
@@ -519,6 +659,30 @@ public class EntityManager {
 		return criteria;
 	}
 
+	/**
+	 * Creates a weighted entity cache if a maximum cache weight has been set
+	 * in the system property "entity_cache_weight".
+	 *
+	 * @return The weighted cache or NULL if the multi-level entity cache
+	 * should be used
+	 */
+	private static WeightedEntityCache createWeightedCache() {
+		String maxWeight = System.getProperty("entity_cache_weight", null);
+		WeightedEntityCache cache = null;
+
+		if (maxWeight != null) {
+			try {
+				cache = new WeightedEntityCache(Long.parseLong(maxWeight));
+
+				Log.infof("Weighted entity cache: %s", maxWeight);
+			} catch (Exception e) {
+				Log.warn("Invalid entity cache weight: " + maxWeight);
+			}
+		}
+
+		return cache;
+	}
+
 	/**
 	 * Deletes the given {@link Entity} from the database. Children attached to
 	 * this {@link Entity} are <b>not</b> deleted.
@@ -556,7 +720,12 @@ public class EntityManager {
 			}
 
 			storage.delete(entity);
+			invalidateOwnerExtraAttributes(entity);
 			TransactionManager.commit();
+
+			if (entity instanceof Configuration) {
+				Configuration.invalidateSettingsCache(false);
+			}
 		} catch (Exception e) {
 			TransactionManager.rollback();
 
@@ -682,7 +851,7 @@ public class EntityManager {
 	 *
 	 * @param entity The entity to be modified
 	 */
-	static synchronized void endEntityModification(Entity entity) {
+	static void endEntityModification(Entity entity) {
 		if (entityModificationTracking &&
 			entity.hasRelation(ENTITY_MODIFICATION_HANDLE)) {
 			String contextId = getEntityModificationContextId();
@@ -708,7 +877,7 @@ public class EntityManager {
 			}
 
 			entity.deleteRelation(ENTITY_MODIFICATION_HANDLE);
-			modifiedEntities.remove(entityId);
+			modifiedEntities.remove(entityId, entity);
 		}
 	}
 
@@ -746,29 +915,52 @@ public class EntityManager {
 	/**
 	 * Fetches all global extra attributes for a collections of entities. This
 	 * call will only perform a single storage query for all extra attributes
-	 * and thus considerably speeds up the querying of extra attributes for
-	 * larger sets of entities.
+	 * (or one per {@value #MAX_ID_QUERY_SIZE} entities) and thus considerably
+	 * speeds up the querying of extra attributes for larger sets of entities.
+	 * Entities that are not persistent or for which the extra attributes have
+	 * already been read or modified will be ignored.
 	 *
 	 * @param entities The entities to fetch the extra attributes for
 	 * @throws StorageException If querying the extra attributes fails
+	 * @see EntityRelationTypes#PREFETCH_EXTRA_ATTRIBUTES
 	 */
 	public static void fetchExtraAttributes(
 		Collection<? extends Entity> entities) throws StorageException {
-		QueryPredicate<ExtraAttribute> extraAttributes =
-			forEntity(ExtraAttribute.class, ExtraAttribute.OWNER
-				.is(equalTo(null))
-				.and(ExtraAttribute.ENTITY.is(elementOf(entities))));
-
-		forEach(extraAttributes, xA -> xA
-			.get(ExtraAttribute.ENTITY)
-			.get(EXTRA_ATTRIBUTE_MAP)
-			.put(xA.get(ExtraAttribute.KEY).toString(), xA));
+		Map<String, Entity> fetchEntities = new HashMap<>(entities.size());
 
 		for (Entity entity : entities) {
-			if (!entity.hasRelation(EXTRA_ATTRIBUTES_READ)) {
-				entity.set(EXTRA_ATTRIBUTES_READ);
+			if (entity.isPersistent() &&
+				!entity.hasRelation(EXTRA_ATTRIBUTES_READ) &&
+				!entity.hasFlag(EXTRA_ATTRIBUTES_MODIFIED)) {
+				fetchEntities.put(entity.getGlobalId(), entity);
 			}
 		}
+
+		List<Entity> fetchList = new ArrayList<>(fetchEntities.values());
+		int count = fetchList.size();
+
+		for (int i = 0; i < count; i += MAX_ID_QUERY_SIZE) {
+			List<Entity> chunk =
+				fetchList.subList(i, Math.min(i + MAX_ID_QUERY_SIZE, count));
+
+			QueryPredicate<ExtraAttribute> extraAttributes =
+				forEntity(ExtraAttribute.class, ExtraAttribute.OWNER
+					.is(equalTo(null))
+					.and(ExtraAttribute.ENTITY.is(elementOf(chunk))));
+
+			// the attributes are stored in the entities and need not be
+			// cached
+			extraAttributes.set(NO_ENTITY_CACHING);
+
+			forEach(extraAttributes,
+				xA -> getExtraAttributeEntity(xA, fetchEntities)
+					.get(EXTRA_ATTRIBUTE_MAP)
+					.put(Entity.getExtraAttributeKey(xA), xA));
+		}
+
+		for (Entity entity : fetchList) {
+			entity.set(EXTRA_ATTRIBUTES_READ);
+		}
 	}
 
 	/**
@@ -797,6 +989,7 @@ public class EntityManager {
 
 		// remove from cache to prevent inconsistencies
 		removeCachedEntity(parent);
+		cacheStatistics.recordHierarchyFetch(parent.getClass());
 
 		Class<C> childType = childDef.getMappedType();
 		Storage storage = StorageManager.getStorage(childType);
@@ -815,12 +1008,36 @@ public class EntityManager {
 			storage.release();
 		}
 
+		// group children by parent ID in a single pass; top-level children
+		// have no parent and are stored under the NULL key
+		Map<Long, List<C>> childGroups = new HashMap<>();
+		EntityDefinition<?> parentDef = parent.getDefinition();
+		boolean parentIsChildType = parentDef == childDef;
+		Long masterId = parent.getId();
+
+		for (C child : allChildren) {
+			Long parentId = child.get(PARENT_ENTITY_ID);
+
+			if (parentId != null || parentIsChildType ||
+				masterId.equals(child.get(MASTER_ENTITY_ID))) {
+				childGroups
+					.computeIfAbsent(parentId, id -> new ArrayList<>())
+					.add(child);
+			}
+		}
+
 		List<C> children =
-			findDirectChildren(parent, allChildren, childMasterAttribute,
-				childAttribute);
+			childGroups.remove(parentIsChildType ? masterId : null);
+
+		if (children == null) {
+			children = new ArrayList<>();
+		}
+
+		initDirectChildren(parent, children, childMasterAttribute,
+			childAttribute);
 
 		for (C child : children) {
-			assignChildren(child, allChildren, childParentAttribute,
+			assignChildren(child, childGroups, childParentAttribute,
 				childAttribute);
 		}
 
@@ -828,52 +1045,34 @@ public class EntityManager {
 	}
 
 	/**
-	 * Searches a list of child entities for the direct children of a certain
-	 * parent and sets them as the children of the parent and removes the found
-	 * entities from the input list.
+	 * Finishes the storing of an entity after it has been written to the
+	 * storage by invalidating dependent cache entries and recording the
+	 * entity change in the history.
 	 *
-	 * @param parent          The parent entity
-	 * @param allChildren     The list of all children
-	 * @param parentAttribute The parent attribute of the children
-	 * @param childAttribute  The child attribute of the parent
-	 * @return The list of children found
-	 */
-	@SuppressWarnings({ "unchecked", "boxing" })
-	private static <P extends Entity, C extends Entity> List<C> findDirectChildren(
-		P parent, List<C> allChildren, RelationType<P> parentAttribute,
-		RelationType<List<C>> childAttribute) {
-		EntityDefinition<P> parentDef =
-			(EntityDefinition<P>) parent.getDefinition();
-		EntityDefinition<C> childDef =
-			(EntityDefinition<C>) childAttribute.get(STORAGE_MAPPING);
-
-		Predicate<Relatable> childCriteria;
-
-		if (parentDef == childDef || childDef.getMasterAttribute() == null) {
-			childCriteria =
-				ifRelation(PARENT_ENTITY_ID, equalTo(parent.getId()));
-		} else {
-			childCriteria =
-				ifRelation(MASTER_ENTITY_ID, equalTo(parent.getId())).and(
-					ifRelation(PARENT_ENTITY_ID, isNull()));
-		}
-
-		List<C> children = CollectionUtil.collect(allChildren, childCriteria);
-
-		for (C child : children) {
-			// prevent setting of modified flag
-			child.set(MetaTypes.INITIALIZING);
+	 * @param entity       The stored entity
+	 * @param changeOrigin The entity to be stored as the history origin
+	 * @param change       The change description as returned by
+	 *                     {@link #prepareEntityStore(Entity, Entity)}
+	 * @param newEntity    TRUE if the entity has been inserted
+	 * @throws TransactionException If recording the history fails
+	 */
+	static void finishEntityStore(Entity entity, Entity changeOrigin,
+		String change, boolean newEntity) throws TransactionException {
+		invalidateOwnerExtraAttributes(entity);
+
+		if (change != null) {
+			// history must be stored after the entity to prevent endless
+			// recursion because of the entity reference in the record
+			int newIdPos = newEntity ? change.indexOf("<NEW>") : -1;
+
+			if (newIdPos >= 0) {
+				change = change.substring(0, newIdPos) + "<NEW:" +
+					entity.getId() + ">" + change.substring(newIdPos + 5);
+			}
 
-			// parent attribute must be NULL to prevent exception in
-			// initChildren()
-			child.set(parentAttribute, null);
+			HistoryManager.record(HistoryType.CHANGE, changeOrigin, entity,
+				change);
 		}
-
-		parent.set(childAttribute, children);
-		parentDef.initChildren(parent, children, childDef, true);
-		allChildren.removeAll(children);
-
-		return children;
 	}
 
 	/**
@@ -942,13 +1141,27 @@ public class EntityManager {
 		return entityCache.getCapacity();
 	}
 
+	/**
+	 * Returns the statistics of the entity caching. The returned object can
+	 * be polled directly, registered as a JMX MBean with
+	 * {@link EntityCacheStatistics#registerMBean()}, or logged with
+	 * {@link EntityCacheStatistics#log()}.
+	 *
+	 * @return The entity cache statistics
+	 */
+	public static EntityCacheStatistics getCacheStatistics() {
+		return cacheStatistics;
+	}
+
 	/**
 	 * Returns a description of the current entity cache usage.
 	 *
 	 * @return The cache usage description
 	 */
 	public static String getCacheUsage() {
-		return entityCache.getUsage();
+		WeightedEntityCache weighted = weightedCache;
+
+		return weighted != null ? weighted.getUsage() : entityCache.getUsage();
 	}
 
 	/**
@@ -958,33 +1171,34 @@ public class EntityManager {
 	 * @return The corresponding entity or NULL for none
 	 */
 	public static Entity getCachedEntity(String globalEntityId) {
-		return entityCache.get(globalEntityId);
+		WeightedEntityCache weighted = weightedCache;
+
+		return weighted != null ? weighted.get(globalEntityId) :
+		       entityCache.get(globalEntityId);
 	}
 
 	/**
 	 * Returns an entity with a certain class and ID from the global entity
 	 * cache. If no entity with the given ID exists in the cache NULL will be
-	 * returned.
+	 * returned. The lookup will be recorded in the cache statistics.
 	 *
 	 * @param entityClass The entity type to lookup in the cache
 	 * @param entityId    The ID of the entity to lookup in the cache
 	 * @return The cached entity or NULL for none
 	 */
-	@SuppressWarnings("unchecked")
 	public static <E extends Entity> E getCachedEntity(Class<E> entityClass,
 		long entityId) {
-		EntityCache<?> cache = entityCacheMap.get(entityClass);
-		Entity result = null;
-
-		if (cache != null) {
-			result = cache.getEntity(entityId);
-		} else {
-			String id = getGlobalEntityId(entityClass, entityId);
+		E result = lookupCachedEntity(entityClass, entityId);
 
-			result = getCachedEntity(id);
+		if (getEntityCache(entityClass) != NO_CACHE) {
+			if (result != null) {
+				cacheStatistics.recordHit(entityClass);
+			} else {
+				cacheStatistics.recordMiss(entityClass);
+			}
 		}
 
-		return (E) result;
+		return result;
 	}
 
 	/**
@@ -1013,6 +1227,31 @@ public class EntityManager {
 		return distinctValues;
 	}
 
+	/**
+	 * Returns the cache that has been registered for a certain entity type.
+	 * If concurrent caching is enabled and no cache has been registered for
+	 * the type a new {@link ConcurrentEntityCache} will be created for it.
+	 *
+	 * @param entityClass The entity type
+	 * @return The entity cache or NULL if entities of the given type should be
+	 * stored in the global entity cache
+	 */
+	@SuppressWarnings("unchecked")
+	private static <E extends Entity> EntityCache<E> getEntityCache(
+		Class<E> entityClass) {
+		EntityCache<?> cache = entityCacheMap.get(entityClass);
+
+		if (cache == null && concurrentCaching) {
+			cache = entityCacheMap.computeIfAbsent(entityClass, type -> {
+				concurrentCacheTypes.add(type);
+
+				return new ConcurrentEntityCache<>();
+			});
+		}
+
+		return (EntityCache<E>) cache;
+	}
+
 	/**
 	 * Returns the number of entities that correspond to certain query
 	 * criteria.
@@ -1087,6 +1326,15 @@ public class EntityManager {
 		return contextId;
 	}
 
+	/**
+	 * Returns the client of the entity sync service if one has been set.
+	 *
+	 * @return The entity sync client or NULL for none
+	 */
+	public static EntitySyncClient getEntitySyncClient() {
+		return entitySyncClient;
+	}
+
 	/**
 	 * Returns the optional {@link Endpoint} of the remote entity sync service.
 	 * Such a service is available if it has previously been registered through
@@ -1154,6 +1402,39 @@ public class EntityManager {
 		return modifiedEntities;
 	}
 
+	/**
+	 * Returns the entity of an extra attribute from a mapping of global
+	 * entity IDs. This prevents the resolving of the entity reference, which
+	 * could return a different instance if the entity is not cached. Only if
+	 * the reference has already been resolved it will be used for the lookup.
+	 *
+	 * @param extraAttribute The extra attribute
+	 * @param entities       The mapping from global IDs to entities
+	 * @return The entity of the extra attribute
+	 */
+	private static Entity getExtraAttributeEntity(
+		ExtraAttribute extraAttribute, Map<String, Entity> entities) {
+		Relation<Entity> entityRelation =
+			extraAttribute.getRelation(ExtraAttribute.ENTITY);
+
+		Object globalId = null;
+
+		if (entityRelation instanceof IntermediateRelation) {
+			globalId = ((IntermediateRelation<?, ?>) entityRelation)
+				.getIntermediateTarget();
+		}
+
+		Entity entity = globalId != null ? entities.get(globalId.toString()) :
+		                null;
+
+		if (entity == null) {
+			entity = entities.get(
+				extraAttribute.get(ExtraAttribute.ENTITY).getGlobalId());
+		}
+
+		return entity;
+	}
+
 	/**
 	 * Returns the parent hierarchy of a certain entity. The returned list will
 	 * contain the parent entities of the given entity starting with the
@@ -1191,6 +1472,28 @@ public class EntityManager {
 		return Collections.unmodifiableCollection(idPrefixRegistry.values());
 	}
 
+	/**
+	 * Returns the self-referencing parent attribute of an entity definition.
+	 *
+	 * @param def The entity definition
+	 * @return The parent attribute
+	 * @throws UnsupportedOperationException If the entity definition has no
+	 *                                       self-referencing hierarchy
+	 */
+	@SuppressWarnings("unchecked")
+	private static <E extends Entity> RelationType<E> getSelfParentAttribute(
+		EntityDefinition<E> def) {
+		RelationType<E> parentAttr =
+			(RelationType<E>) def.getParentAttribute(def);
+
+		if (parentAttr == null) {
+			throw new UnsupportedOperationException(
+				"No self-referencing hierarchy in " + def.getMappedType());
+		}
+
+		return parentAttr;
+	}
+
 	/**
 	 * Returns the entity store listeners.
 	 *
@@ -1202,6 +1505,17 @@ public class EntityManager {
 			.get(STORE_LISTENERS);
 	}
 
+	/**
+	 * Returns the weighted entity cache if it has been enabled.
+	 *
+	 * @return The weighted entity cache or NULL if the multi-level cache is
+	 * used
+	 * @see #setWeightedCache(WeightedEntityCache)
+	 */
+	public static WeightedEntityCache getWeightedCache() {
+		return weightedCache;
+	}
+
 	/**
 	 * Varargs version of the {@link #init(Collection)} method.
 	 *
@@ -1239,11 +1553,81 @@ public class EntityManager {
 		disableCaching(ExtraAttribute.class);
 	}
 
+	/**
+	 * Sets a list of child entities as the direct children of a certain
+	 * parent.
+	 *
+	 * @param parent          The parent entity
+	 * @param children        The direct children of the parent
+	 * @param parentAttribute The parent attribute of the children
+	 * @param childAttribute  The child attribute of the parent
+	 */
+	@SuppressWarnings("unchecked")
+	private static <P extends Entity, C extends Entity> void initDirectChildren(
+		P parent, List<C> children, RelationType<P> parentAttribute,
+		RelationType<List<C>> childAttribute) {
+		EntityDefinition<P> parentDef =
+			(EntityDefinition<P>) parent.getDefinition();
+		EntityDefinition<C> childDef =
+			(EntityDefinition<C>) childAttribute.get(STORAGE_MAPPING);
+
+		for (C child : children) {
+			// prevent setting of modified flag
+			child.set(MetaTypes.INITIALIZING);
+
+			// parent attribute must be NULL to prevent exception in
+			// initChildren()
+			child.set(parentAttribute, null);
+		}
+
+		parent.set(childAttribute, children);
+		parentDef.initChildren(parent, children, childDef, true);
+	}
+
 	/**
 	 * Invalidates the global entity cache.
 	 */
 	public static void invalidateCache() {
+		WeightedEntityCache weighted = weightedCache;
+
+		cacheStatistics.recordCacheInvalidation();
 		entityCache.clear();
+
+		if (weighted != null) {
+			weighted.clear();
+		}
+
+		for (EntityCache<?> cache : entityCacheMap.values()) {
+			cache.clear();
+		}
+
+		OwnerExtraAttributeCache.invalidateAll();
+		Configuration.invalidateSettingsCache(false);
+	}
+
+	/**
+	 * Invalidates the cached owner-specific extra attributes if an entity is
+	 * an extra attribute with an owner. The invalidation will be repeated
+	 * when the current transaction is committed and must therefore be
+	 * invoked inside a transaction.
+	 *
+	 * @param entity The stored or deleted entity
+	 */
+	private static void invalidateOwnerExtraAttributes(Entity entity) {
+		if (entity instanceof ExtraAttribute) {
+			Entity owner = entity.get(ExtraAttribute.OWNER);
+
+			if (owner != null) {
+				Entity attributeEntity = entity.get(ExtraAttribute.ENTITY);
+
+				// invalidate again on commit to discard entries that have
+				// been cached from the old data until then
+				OwnerExtraAttributeCache.invalidate(attributeEntity, owner);
+				TransactionManager.addTransactionElement(
+					OwnerExtraAttributeCache.invalidateOnCommit(
+						attributeEntity, owner));
+			}
+		}
 	}
 
 	/**
@@ -1267,6 +1651,17 @@ public class EntityManager {
 		return entityCacheMap.get(entityClass) != NO_CACHE;
 	}
 
+	/**
+	 * Checks whether entities without an explicitly registered cache are
+	 * stored in type-specific concurrent caches.
+	 *
+	 * @return TRUE if concurrent caching is enabled
+	 * @see #setConcurrentCaching(boolean)
+	 */
+	public static boolean isConcurrentCaching() {
+		return concurrentCaching;
+	}
+
 	/**
 	 * Checks whether the deletion of entities is enabled for a certain entity
 	 * type.
@@ -1304,34 +1699,262 @@ public class EntityManager {
 	}
 
 	/**
-	 * Queries a list of entities that are identified by certain search
-	 * criteria.
+	 * Internal method to lookup an entity in the cache without recording the
+	 * lookup in the cache statistics. Used for lookups that only probe the
+	 * cache so that each access is only counted once as a hit or miss, also
+	 * by {@link EntityIterator} for entities that are read without caching.
 	 *
-	 * @param entityCriteria entityClass The entity type to query
-	 * @param max            The maximum number of entities to read
-	 * @return A list of entities for the given criteria (may be empty but will
-	 * never be NULL)
-	 * @throws StorageException If the storage access fails
+	 * @param entityClass The entity type to lookup in the cache
+	 * @param entityId    The ID of the entity to lookup in the cache
+	 * @return The cached entity or NULL for none
 	 */
-	public static <E extends Entity> List<E> queryEntities(
-		QueryPredicate<E> entityCriteria, final int max)
-		throws StorageException {
-		List<E> entities = new ArrayList<E>();
+	@SuppressWarnings("unchecked")
+	static <E extends Entity> E lookupCachedEntity(
+		Class<E> entityClass, long entityId) {
+		EntityCache<?> cache = getEntityCache(entityClass);
+		Entity result;
 
-		evaluateEntities(entityCriteria, untilCountDown(max), entities::add);
+		if (cache != null) {
+			result = cache.getEntity(entityId);
+		} else {
+			result = getCachedEntity(getGlobalEntityId(entityClass, entityId));
+		}
 
-		return entities;
+		return (E) result;
 	}
 
 	/**
-	 * Queries a list of entities that are identified by certain search
-	 * criteria.
+	 * Resolves the references of a collection of entities in bulk. All
+	 * reference attributes of the given entities that have not been resolved
+	 * yet will be collected and the referenced entities will then be queried
+	 * with a single query for each referenced entity type and placed in the
+	 * entity cache. Subsequent accesses to the references will then be
+	 * served from the cache instead of performing a storage query for each
+	 * reference. Referenced types for which caching has been disabled will be
+	 * ignored.
 	 *
-	 * @param entityClass The entity type to query
-	 * @param criteria    The criteria to search the entities by or NULL for
-	 *                    none
-	 * @param max         The maximum number of entities to read
-	 * @return A list of entities for the given criteria (may be empty but will
+	 * @param entities   The entities to resolve the references of
+	 * @param attributes The reference attributes to resolve
+	 * @throws StorageException If querying the referenced entities fails
+	 * @see EntityRelationTypes#PREFETCH_REFERENCES
+	 */
+	@SuppressWarnings("unchecked")
+	public static void prefetchReferences(
+		Collection<? extends Entity> entities,
+		Collection<? extends RelationType<? extends Entity>> attributes)
+		throws StorageException {
+		Map<Class<? extends Entity>, Set<Long>> typeIds = new HashMap<>();
+		Set<String> globalIds = new LinkedHashSet<>();
+
+		for (RelationType<? extends Entity> attribute : attributes) {
+			Class<? extends Entity> targetType =
+				(Class<? extends Entity>) attribute.getTargetType();
+			boolean arbitrary = targetType == Entity.class;
+
+			if (!arbitrary && !isCachingEnabledFor(targetType)) {
+				continue;
+			}
+
+			for (Entity entity : entities) {
+				Relation<?> relation = entity.getRelation(attribute);
+
+				if (relation instanceof IntermediateRelation) {
+					Object id = ((IntermediateRelation<?, ?>) relation)
+						.getIntermediateTarget();
+
+					if (arbitrary) {
+						String globalId = id.toString();
+						int separator =
+							globalId.indexOf(GLOBAL_ID_PREFIX_SEPARATOR);
+
+						// ignore invalid IDs, these will fail on access
+						if (separator > 0 && idPrefixRegistry.containsKey(
+							globalId.substring(0, separator))) {
+							globalIds.add(globalId);
+						}
+					} else if (id instanceof Number) {
+						long entityId = ((Number) id).longValue();
+
+						if (lookupCachedEntity(targetType, entityId) ==
+							null) {
+							typeIds
+								.computeIfAbsent(targetType,
+									t -> new LinkedHashSet<>())
+								.add(Long.valueOf(entityId));
+						}
+					}
+				}
+			}
+		}
+
+		for (Entry<Class<? extends Entity>, Set<Long>> ids :
+			typeIds.entrySet()) {
+			queryEntities(ids.getKey(), ids.getValue());
+		}
+
+		if (!globalIds.isEmpty()) {
+			globalIds.removeIf(id -> getCachedEntity(id) != null);
+			queryEntitiesByGlobalId(globalIds);
+		}
+	}
+
+	/**
+	 * Prepares an entity for storing by creating the description of it's
+	 * changes and setting the store origin and the time of the last change.
+	 *
+	 * @param entity       The entity to prepare
+	 * @param changeOrigin The entity to be stored as the history origin
+	 * @return The change description of the entity or NULL if no change needs
+	 * to be recorded in the history
+	 */
+	static String prepareEntityStore(Entity entity, Entity changeOrigin) {
+		String change = null;
+
+		if (automaticChangeLogging) {
+			if (entity.hasChangeLogging()) {
+				change = entity.createChangeDescription();
+
+				if (change != null && change.isEmpty()) {
+					change = null;
+				}
+			} else {
+				// delete flag after skipping of change log
+				entity.deleteRelation(SKIP_NEXT_CHANGE_LOGGING);
+			}
+		}
+
+		checkSyncEndpointLease(entity);
+		entity.set(ENTITY_STORE_ORIGIN, changeOrigin);
+
+		if (change != null ||
+			(!automaticChangeLogging && entity.hasFlag(MODIFIED))) {
+			entity.set(LAST_CHANGE, new Date());
+		}
+
+		return change;
+	}
+
+	/**
+	 * Queries the ancestors of an entity in a self-referencing hierarchy up to
+	 * a certain depth. The returned list starts with the direct parent of the
+	 * entity. If a JDBC URL has been set with
+	 * {@link #setDirectJdbcUrl(String)} and no transaction is active the IDs
+	 * of the ancestors will be queried with a single recursive SQL query and
+	 * the missing ancestors will then be read with a single storage query.
+	 * Otherwise the parent references will be resolved one after another.
+	 *
+	 * @param entity   The entity to query the ancestors of
+	 * @param maxDepth The maximum number of ancestors to query or
+	 *                 {@link Integer#MAX_VALUE} for the complete path to the
+	 *                 root of the hierarchy
+	 * @return A new list containing the ancestors of the entity (may be empty
+	 * but will never be NULL)
+	 * @throws StorageException If the storage access fails
+	 */
+	@SuppressWarnings("unchecked")
+	public static <E extends Entity> List<E> queryAncestors(E entity,
+		int maxDepth) throws StorageException {
+		EntityDefinition<E> def = (EntityDefinition<E>) entity.getDefinition();
+		RelationType<E> parentAttr = getSelfParentAttribute(def);
+		List<Long> ids = queryHierarchyIds(entity, parentAttr, maxDepth, true);
+		List<E> ancestors;
+
+		if (ids != null) {
+			ancestors = queryEntitiesInOrder(def.getMappedType(), ids);
+		} else {
+			ancestors = new ArrayList<>();
+
+			while (ancestors.size() < maxDepth &&
+				(entity = entity.get(parentAttr)) != null) {
+				ancestors.add(entity);
+			}
+		}
+
+		return ancestors;
+	}
+
+	/**
+	 * Queries the descendants of an entity in a self-referencing hierarchy up
+	 * to a certain depth. If a JDBC URL has been set with
+	 * {@link #setDirectJdbcUrl(String)} and no transaction is active the IDs
+	 * of the complete subtree will be queried with a single recursive SQL
+	 * query and the entities will then be read with a storage query for each
+	 * chunk of up to {@value #MAX_ID_QUERY_SIZE} IDs. Otherwise this method
+	 * performs a single query for each hierarchy level that selects all
+	 * children of the previous level (also in chunks of up to
+	 * {@value #MAX_ID_QUERY_SIZE} parents). The returned list contains the
+	 * descendants ordered by their hierarchy level.
+	 *
+	 * @param root     The root entity of the subtree to query
+	 * @param maxDepth The maximum number of levels to descend or
+	 *                 {@link Integer#MAX_VALUE} for the full subtree
+	 * @return A new list containing the descendants of the root entity (may
+	 * be empty but will never be NULL)
+	 * @throws StorageException If the storage access fails
+	 */
+	@SuppressWarnings("unchecked")
+	public static <E extends Entity> List<E> queryDescendants(E root,
+		int maxDepth) throws StorageException {
+		EntityDefinition<E> def = (EntityDefinition<E>) root.getDefinition();
+		RelationType<E> parentAttr = getSelfParentAttribute(def);
+		Class<E> entityType = def.getMappedType();
+		List<Long> ids = queryHierarchyIds(root, parentAttr, maxDepth, false);
+
+		if (ids != null) {
+			return queryEntitiesInOrder(entityType, ids);
+		}
+
+		List<E> descendants = new ArrayList<>();
+		List<E> level = Collections.singletonList(root);
+
+		for (int depth = 0; depth < maxDepth && !level.isEmpty(); depth++) {
+			List<E> nextLevel = new ArrayList<>();
+			int count = level.size();
+
+			for (int i = 0; i < count; i += MAX_ID_QUERY_SIZE) {
+				List<E> parents =
+					level.subList(i, Math.min(i + MAX_ID_QUERY_SIZE, count));
+
+				forEach(forEntity(entityType, hasParentIn(parentAttr, parents)),
+					nextLevel::add);
+			}
+
+			descendants.addAll(nextLevel);
+			level = nextLevel;
+		}
+
+		return descendants;
+	}
+
+	/**
+	 * Queries a list of entities that are identified by certain search
+	 * criteria.
+	 *
+	 * @param entityCriteria entityClass The entity type to query
+	 * @param max            The maximum number of entities to read
+	 * @return A list of entities for the given criteria (may be empty but will
+	 * never be NULL)
+	 * @throws StorageException If the storage access fails
+	 */
+	public static <E extends Entity> List<E> queryEntities(
+		QueryPredicate<E> entityCriteria, final int max)
+		throws StorageException {
+		List<E> entities = new ArrayList<E>();
+
+		evaluateEntities(entityCriteria, untilCountDown(max), entities::add);
+
+		return entities;
+	}
+
+	/**
+	 * Queries a list of entities that are identified by certain search
+	 * criteria.
+	 *
+	 * @param entityClass The entity type to query
+	 * @param criteria    The criteria to search the entities by or NULL for
+	 *                    none
+	 * @param max         The maximum number of entities to read
+	 * @return A list of entities for the given criteria (may be empty but will
 	 * never be NULL)
 	 * @throws StorageException If the storage access fails
 	 */
@@ -1340,6 +1963,124 @@ public class EntityManager {
 		return queryEntities(forEntity(entityClass, criteria), max);
 	}
 
+	/**
+	 * Queries multiple entities of a certain type by their IDs. This method
+	 * first looks up all IDs in the entity cache and then queries the
+	 * remaining entities with a single storage query for each chunk of up to
+	 * {@value #MAX_ID_QUERY_SIZE} IDs. IDs for which no entity exists will not
+	 * be contained in the result.
+	 *
+	 * @param entityClass The entity type to query
+	 * @param entityIds   The IDs of the entities to query
+	 * @return A new map from entity IDs to the corresponding entities (may be
+	 * empty but will never be NULL)
+	 * @throws StorageException If the storage access fails
+	 */
+	@SuppressWarnings("boxing")
+	public static <E extends Entity> Map<Long, E> queryEntities(
+		Class<E> entityClass, Collection<Long> entityIds)
+		throws StorageException {
+		Map<Long, E> entities = new HashMap<>(entityIds.size());
+		Set<Long> missingIds = new LinkedHashSet<>();
+
+		for (Long id : entityIds) {
+			if (id != null && !entities.containsKey(id)) {
+				E entity = lookupCachedEntity(entityClass, id);
+
+				if (entity != null) {
+					// misses are recorded when the entities are cached
+					cacheStatistics.recordHit(entityClass);
+					entities.put(id, entity);
+				} else {
+					missingIds.add(id);
+				}
+			}
+		}
+
+		if (!missingIds.isEmpty()) {
+			RelationType<Number> idAttr =
+				getEntityDefinition(entityClass).getIdAttribute();
+
+			List<Long> ids = new ArrayList<>(missingIds);
+			int count = ids.size();
+
+			for (int i = 0; i < count; i += MAX_ID_QUERY_SIZE) {
+				List<Long> chunk =
+					ids.subList(i, Math.min(i + MAX_ID_QUERY_SIZE, count));
+
+				forEach(forEntity(entityClass,
+						ifAttribute(idAttr, elementOf(chunk))),
+					e -> entities.put(e.getId(), e));
+			}
+		}
+
+		return entities;
+	}
+
+
+	/**
+	 * Queries multiple entities of a certain type by their IDs and returns
+	 * them in the order of the IDs.
+	 *
+	 * @param entityClass The entity type to query
+	 * @param entityIds   The IDs of the entities to query
+	 * @return A new list containing the entities that exist for the IDs
+	 * @throws StorageException If the storage access fails
+	 * @see #queryEntities(Class, Collection)
+	 */
+	private static <E extends Entity> List<E> queryEntitiesInOrder(
+		Class<E> entityClass, List<Long> entityIds) throws StorageException {
+		Map<Long, E> entityMap = queryEntities(entityClass, entityIds);
+		List<E> entities = new ArrayList<>(entityIds.size());
+
+		for (Long id : entityIds) {
+			E entity = entityMap.get(id);
+
+			if (entity != null) {
+				entities.add(entity);
+			}
+		}
+
+		return entities;
+	}
+
+	/**
+	 * Queries the IDs of the ancestors or descendants of an entity with a
+	 * recursive SQL query if a JDBC URL has been set with
+	 * {@link #setDirectJdbcUrl(String)} and no transaction is active. If the
+	 * recursive query fails a warning will be logged and NULL will be
+	 * returned so that the invoking method can use the storage API instead.
+	 *
+	 * @param entity     The entity to start the query at
+	 * @param parentAttr The self-referencing parent attribute
+	 * @param maxDepth   The maximum query depth
+	 * @param ancestors  TRUE to query the ancestors, FALSE for the
+	 *                   descendants
+	 * @return The queried IDs or NULL if no recursive query has been
+	 * performed
+	 */
+	private static List<Long> queryHierarchyIds(Entity entity,
+		RelationType<?> parentAttr, int maxDepth, boolean ancestors) {
+		String jdbcUrl = directJdbcUrl;
+		List<Long> ids = null;
+
+		if (jdbcUrl != null && entity.isPersistent() &&
+			!TransactionManager.isInTransaction()) {
+			EntityDefinition<?> def = entity.getDefinition();
+
+			try {
+				ids = ancestors ?
+				      RecursiveHierarchyQuery.queryAncestorIds(jdbcUrl, def,
+					      parentAttr, entity.getId(), maxDepth) :
+				      RecursiveHierarchyQuery.queryDescendantIds(jdbcUrl, def,
+					      parentAttr, entity.getId(), maxDepth);
+			} catch (SQLException e) {
+				Log.warn("Recursive hierarchy query failed", e);
+			}
+		}
+
+		return ids;
+	}
 	/**
 	 * Queries a list of entities that are identified by certain attribute
 	 * predicates. The attribute predicates are defined in a map that
@@ -1499,6 +2240,58 @@ public class EntityManager {
 		return entities;
 	}
 
+	/**
+	 * Queries multiple entities by their global IDs. The IDs are grouped by
+	 * entity type and each group is then queried in bulk with
+	 * {@link #queryEntities(Class, Collection)}.
+	 *
+	 * @param globalEntityIds The global IDs of the entities to query
+	 * @return A new map from global entity IDs to the corresponding entities
+	 * (may be empty but will never be NULL)
+	 * @throws StorageException         If the storage access fails
+	 * @throws IllegalArgumentException If one of the IDs is invalid
+	 * @throws IllegalStateException    If no entity definition has been
+	 *                                  registered for an ID prefix
+	 */
+	@SuppressWarnings("boxing")
+	public static Map<String, Entity> queryEntitiesByGlobalId(
+		Collection<String> globalEntityIds) throws StorageException {
+		Map<Class<? extends Entity>, Set<Long>> typeIds = new HashMap<>();
+		Map<String, Entity> entities = new HashMap<>(globalEntityIds.size());
+
+		for (String globalId : globalEntityIds) {
+			int separator = globalId.indexOf(GLOBAL_ID_PREFIX_SEPARATOR);
+
+			if (separator <= 0 || separator == globalId.length() - 1) {
+				throw new IllegalArgumentException(
+					"Invalid entity ID: " + globalId);
+			}
+
+			String idPrefix = globalId.substring(0, separator);
+			Class<? extends Entity> entityClass =
+				idPrefixRegistry.get(idPrefix);
+
+			if (entityClass == null) {
+				throw new IllegalStateException(
+					"No entity registered for ID prefix " + idPrefix);
+			}
+
+			typeIds
+				.computeIfAbsent(entityClass, c -> new LinkedHashSet<>())
+				.add(Long.parseLong(globalId.substring(separator + 1)));
+		}
+
+		for (Entry<Class<? extends Entity>, Set<Long>> ids :
+			typeIds.entrySet()) {
+			for (Entity entity : queryEntities(ids.getKey(), ids.getValue())
+				.values()) {
+				entities.put(getGlobalEntityId(entity), entity);
+			}
+		}
+
+		return entities;
+	}
+
 	/**
 	 * Queries the entity instance that is identified by a certain global
 	 * entity
@@ -1557,9 +2350,12 @@ public class EntityManager {
 	@SuppressWarnings("boxing")
 	public static <E extends Entity> E queryEntity(Class<E> entityClass,
 		long entityId) throws StorageException {
-		E entity = getCachedEntity(entityClass, entityId);
+		E entity = lookupCachedEntity(entityClass, entityId);
 
-		if (entity == null) {
+		if (entity != null) {
+			// a miss will be recorded when the queried entity is cached
+			cacheStatistics.recordHit(entityClass);
+		} else {
 			entity = queryEntity(entityClass,
 				getEntityDefinition(entityClass).getIdAttribute(), entityId,
 				true);
@@ -1713,6 +2509,7 @@ public class EntityManager {
 	public static <E extends Entity> void registerEntityCache(
 		Class<E> entityClass, EntityCache<E> cache) {
 		entityCacheMap.put(entityClass, cache);
+		concurrentCacheTypes.remove(entityClass);
 	}
 
 	/**
@@ -1763,7 +2560,18 @@ public class EntityManager {
 	 * @param entity The entity to remove
 	 */
 	public static void removeCachedEntity(Entity entity) {
-		removeCachedEntity(getGlobalEntityId(entity));
+		EntityCache<?> cache = entityCacheMap.get(entity.getClass());
+
+		if (cache != null) {
+			Entity removedEntity = cache.removeEntity(entity.getId());
+
+			if (removedEntity != null) {
+				removedEntity.set(CACHE_ENTITY, Boolean.FALSE);
+				cacheStatistics.recordInvalidation(removedEntity.getClass());
+			}
+		} else {
+			removeCachedEntity(getGlobalEntityId(entity));
+		}
 	}
 
 	/**
@@ -1772,10 +2580,27 @@ public class EntityManager {
 	 * @param id The global ID of the entity to remove
 	 */
 	public static void removeCachedEntity(String id) {
-		Entity removedEntity = entityCache.remove(id);
+		WeightedEntityCache weighted = weightedCache;
+		Entity removedEntity =
+			weighted != null ? weighted.remove(id) : entityCache.remove(id);
+		int separator = id.indexOf(GLOBAL_ID_PREFIX_SEPARATOR);
+
+		if (removedEntity == null && separator > 0) {
+			Class<? extends Entity> entityClass =
+				idPrefixRegistry.get(id.substring(0, separator));
+
+			EntityCache<?> cache =
+				entityClass != null ? entityCacheMap.get(entityClass) : null;
+
+			if (cache != null) {
+				removedEntity = cache.removeEntity(
+					Long.parseLong(id.substring(separator + 1)));
+			}
+		}
 
 		if (removedEntity != null) {
 			removedEntity.set(CACHE_ENTITY, Boolean.FALSE);
+			cacheStatistics.recordInvalidation(removedEntity.getClass());
 		}
 	}
 
@@ -1846,7 +2671,7 @@ public class EntityManager {
 
 		try {
 			// remove entity from cache to force a re-fetching
-			removeCachedEntity(id);
+			removeCachedEntity(entity);
 			endEntityModification(entity);
 
 			// fetch (and cache) current state from storage
@@ -1910,12 +2735,56 @@ public class EntityManager {
 	 * @param secondLevel The capacity of the softly referenced cache level
 	 * @param thirdLevel  secondLevel The capacity of the weakly referenced
 	 *                    cache level
+	 * @see #setWeightedCache(WeightedEntityCache)
 	 */
 	public static void setCacheCapacity(int firstLevel, int secondLevel,
 		int thirdLevel) {
 		entityCache.setCapacity(firstLevel, secondLevel, thirdLevel);
 	}
 
+	/**
+	 * Enables or disables concurrent caching. If enabled all entity types
+	 * without an explicitly registered cache will be cached in separate
+	 * instances of {@link ConcurrentEntityCache} instead of the global entity
+	 * cache. This allows concurrent queries to access the cache without the
+	 * global cache lock which would otherwise serialize all threads that read
+	 * entities. If disabled the automatically created type caches will be
+	 * removed.
+	 *
+	 * @param enabled TRUE to enable concurrent caching, FALSE to use the
+	 *                global entity cache
+	 */
+	public static void setConcurrentCaching(boolean enabled) {
+		concurrentCaching = enabled;
+
+		if (!enabled) {
+			for (Class<? extends Entity> type : concurrentCacheTypes) {
+				entityCacheMap.remove(type);
+			}
+
+			concurrentCacheTypes.clear();
+		}
+	}
+
+	/**
+	 * Sets the JDBC URL of the entity database for operations that bypass the
+	 * storage API to access the database directly. If set new entities of
+	 * types that can be stored in a single table row will be inserted with
+	 * JDBC batches by {@link #storeEntities(Collection, Entity)}, and
+	 * {@link #queryDescendants(Entity, int)} and
+	 * {@link #queryAncestors(Entity, int)} will use recursive SQL queries. The
+	 * URL must refer to the same database as the storages of the affected
+	 * entities. The direct access is performed over separate connections and
+	 * is therefore only used if no transaction is active for the current
+	 * thread. If NULL (the default) only the storage API will be used.
+	 *
+	 * @param jdbcUrl The JDBC URL of the entity database or NULL to disable
+	 *                direct database access
+	 */
+	public static void setDirectJdbcUrl(String jdbcUrl) {
+		directJdbcUrl = jdbcUrl;
+	}
+
 	/**
 	 * Sets the entity modification context for the current thread. This
 	 * context
@@ -1992,6 +2861,26 @@ public class EntityManager {
 		entityModificationTracking = enabled;
 	}
 
+	/**
+	 * Sets the client for the entity sync service to be used for entity lock
+	 * synchronization. This is invoked by
+	 * {@link #setEntitySyncService(String, String, Endpoint)} but can also be
+	 * used to set a client with a different lock service or parameters, e.g.
+	 * for tests. Any previously set client will be shut down. The usage of
+	 * the sync service will be enabled if the client is not NULL.
+	 *
+	 * @param syncClient The new sync client or NULL to deactivate
+	 */
+	public static synchronized void setEntitySyncClient(
+		EntitySyncClient syncClient) {
+		if (entitySyncClient != null && entitySyncClient != syncClient) {
+			entitySyncClient.shutdown();
+		}
+
+		entitySyncClient = syncClient;
+		syncServiceEnabled = syncClient != null;
+	}
+
 	/**
 	 * Sets the endpoint of an entity sync service to be used for entity lock
 	 * synchronization. The context should be derived from the current
@@ -2008,10 +2897,15 @@ public class EntityManager {
 	 */
 	public static void setEntitySyncService(String syncClientId,
 		String syncContext, Endpoint syncEndpoint) {
-		entitySyncClientId = syncClientId;
-		entitySyncContext = syncContext;
+		EntitySyncClient syncClient = null;
+
+		if (syncEndpoint != null) {
+			syncClient = new EntitySyncClient(syncClientId,
+				new EndpointLockService(syncEndpoint, syncContext));
+		}
+
 		entitySyncEndpoint = Optional.ofNullable(syncEndpoint);
-		syncServiceEnabled = entitySyncEndpoint.isPresent();
+		setEntitySyncClient(syncClient);
 	}
 
 	/**
@@ -2044,14 +2938,49 @@ public class EntityManager {
 		usePluralStorageNames = plural;
 	}
 
+	/**
+	 * Sets a weighted cache that will replace the default multi-level entity
+	 * cache for all entity types without a type-specific cache. A weighted
+	 * cache limits the cache size by the accumulated entity weight (by default
+	 * the size of loaded entity hierarchies) and supports the expiration of
+	 * entities by time. Invoking this method with NULL switches back to the
+	 * multi-level cache which is configured with
+	 * {@link #setCacheCapacity(int, int, int)}. The previously active cache
+	 * will be cleared by this call.
+	 *
+	 * <p>At startup a weighted cache can be enabled by setting the maximum
+	 * weight in the system property "entity_cache_weight".</p>
+	 *
+	 * @param cache The new weighted cache or NULL to use the multi-level cache
+	 */
+	public static void setWeightedCache(WeightedEntityCache cache) {
+		cacheLock.lock();
+
+		try {
+			WeightedEntityCache previous = weightedCache;
+
+			if (previous != null) {
+				previous.clear();
+			} else {
+				entityCache.clear();
+			}
+
+			weightedCache = cache;
+		} finally {
+			cacheLock.unlock();
+		}
+	}
+
 	/**
 	 * Performs a shutdown by freeing all allocated resources. This will also
 	 * invoke the methods {@link StorageManager#shutdown()} and
 	 * {@link TransactionManager#shutdown()}.
 	 */
 	public static void shutdown() {
+		setEntitySyncClient(null);
+		Configuration.invalidateSettingsCache(true);
 		getStoreListeners().clear();
-		entityCache.clear();
+		invalidateCache();
 		idPrefixRegistry.clear();
 		TransactionManager.shutdown();
 		StorageManager.shutdown();
@@ -2117,63 +3046,20 @@ public class EntityManager {
 
 		entity = entity.checkForHierarchyUpdate();
 
-		boolean newEntity = !entity.isPersistent();
 		Storage storage = StorageManager.getStorage(entity.getClass());
 
 		TransactionManager.begin();
 
 		try {
-			String change = null;
-			boolean hasChanges = false;
-
 			TransactionManager.addTransactionElement(storage);
 
-			if (automaticChangeLogging) {
-				if (entity.hasChangeLogging()) {
-					change = entity.createChangeDescription();
-					hasChanges = (change != null && change.length() > 0);
-				} else {
-					// delete flag after skipping of change log
-					entity.deleteRelation(SKIP_NEXT_CHANGE_LOGGING);
-				}
-			}
-
-			entity.set(ENTITY_STORE_ORIGIN, changeOrigin);
-
-			if (hasChanges ||
-				(!automaticChangeLogging && entity.hasFlag(MODIFIED))) {
-				entity.set(LAST_CHANGE, new Date());
-			}
-
 			if (historyGroup) {
 				String group = "Store " + entity;
 
 				HistoryManager.begin(changeOrigin, entity, group);
 			}
 
-			storage.store(entity);
-
-			if (storeEntity != entity && storeEntity.hasFlag(MODIFIED)) {
-				// store original entity if still modified to make changes
-				// persistent even if the parent hierarchy doesn't contain it
-				// in the case of not cached entities
-				// TODO: check if still necessary
-				storage.store(storeEntity);
-			}
-
-			if (hasChanges) {
-				// history must be stored after the entity to prevent endless
-				// recursion because of the entity reference in the record
-				if (newEntity) {
-					@SuppressWarnings("boxing")
-					String newId = String.format("<NEW:%s>", entity.getId());
-
-					change = change.replaceFirst("<NEW>", newId);
-				}
-
-				HistoryManager.record(HistoryType.CHANGE, changeOrigin, entity,
-					change);
-			}
+			storeEntity(storage, entity, storeEntity, changeOrigin);
 
 			if (dependentEntities != null) {
 				for (Entity dependentEntity : dependentEntities) {
@@ -2210,6 +3096,179 @@ public class EntityManager {
 		}
 	}
 
+	/**
+	 * Stores multiple entities in a single transaction. This is considerably
+	 * faster than storing each entity separately with
+	 * {@link #storeEntity(Entity, Entity)} because the storages are acquired
+	 * only once for each entity type and all entities are committed together.
+	 * The history records for the entity changes will be collected in a
+	 * history batch and stored together after all entities have been stored.
+	 * The registered store listeners will be notified once with the
+	 * collection
+	 * of all stored entities through
+	 * {@link StoreListener#entitiesStored(Collection)}.
+	 *
+	 * <p>Like {@link #storeEntity(Entity, Entity)} this method will also store
+	 * the dependent entities of each entity. If a surrounding transaction is
+	 * active for the current thread the entities will be committed together
+	 * with it.</p>
+	 *
+	 * <p>If a JDBC URL has been set with {@link #setDirectJdbcUrl(String)} and
+	 * no surrounding transaction is active new entities of types that can
+	 * be stored in a single table row will be inserted with JDBC batch
+	 * inserts. Other entities will be stored through their storage after the
+	 * pending batch inserts have been executed to keep the order of the
+	 * entities. Batch inserts are not used inside of surrounding transactions
+	 * because they are performed over a separate database connection and
+	 * would therefore not be visible to queries in such a transaction until
+	 * it has been committed.</p>
+	 *
+	 * @param entities     The entities to store
+	 * @param changeOrigin The entity to be stored as the history origin
+	 * @throws TransactionException If the storage transaction fails
+	 */
+	public static void storeEntities(Collection<? extends Entity> entities,
+		Entity changeOrigin) throws TransactionException {
+		Map<Class<? extends Entity>, Storage> storages = new HashMap<>();
+		List<Entity> storedEntities = new ArrayList<>(entities.size());
+		String jdbcUrl = directJdbcUrl;
+		JdbcBatchStore batchStore = null;
+		boolean historyBatch = false;
+
+		if (jdbcUrl != null && !TransactionManager.isInTransaction()) {
+			batchStore = new JdbcBatchStore(jdbcUrl);
+		}
+
+		TransactionManager.begin();
+
+		try {
+			HistoryManager.beginBatch();
+			historyBatch = true;
+
+			if (batchStore != null) {
+				TransactionManager.addTransactionElement(batchStore);
+			}
+
+			for (Entity entity : entities) {
+				Entity storeEntity = entity;
+				List<Entity> dependentEntities = null;
+
+				if (entity.hasRelation(DEPENDENT_STORE_ENTITIES)) {
+					dependentEntities = entity.get(DEPENDENT_STORE_ENTITIES);
+					entity.deleteRelation(DEPENDENT_STORE_ENTITIES);
+				}
+
+				entity = entity.checkForHierarchyUpdate();
+
+				if (batchStore != null) {
+					if (dependentEntities == null && entity == storeEntity &&
+						batchStore.add(entity, changeOrigin)) {
+						storedEntities.add(entity);
+
+						continue;
+					}
+
+					batchStore.flush();
+				}
+
+				Class<? extends Entity> entityType = entity.getClass();
+				Storage storage = storages.get(entityType);
+
+				if (storage == null) {
+					storage = StorageManager.getStorage(entityType);
+					storages.put(entityType, storage);
+					TransactionManager.addTransactionElement(storage);
+				}
+
+				storeEntity(storage, entity, storeEntity, changeOrigin);
+				storedEntities.add(entity);
+
+				if (dependentEntities != null) {
+					for (Entity dependentEntity : dependentEntities) {
+						storeEntity(dependentEntity, changeOrigin, false);
+					}
+				}
+			}
+
+			if (batchStore != null) {
+				batchStore.flush();
+			}
+
+			historyBatch = false;
+			HistoryManager.commitBatch();
+			TransactionManager.commit();
+
+			for (Entity entity : storedEntities) {
+				cacheEntity(entity);
+				entity.deleteRelation(ENTITY_STORE_ORIGIN);
+			}
+
+			for (StoreListener listener :
+				new ArrayList<>(getStoreListeners())) {
+				listener.entitiesStored(storedEntities);
+			}
+		} catch (Exception e) {
+			if (historyBatch) {
+				HistoryManager.rollbackBatch();
+			}
+
+			if (TransactionManager.isInTransaction()) {
+				TransactionManager.rollback();
+			}
+
+			if (e instanceof TransactionException) {
+				throw (TransactionException) e;
+			} else {
+				throw new TransactionException("Could not store entities", e);
+			}
+		} finally {
+			for (Storage storage : storages.values()) {
+				storage.release();
+			}
+		}
+	}
+
+	/**
+	 * Internal method that performs the actual storing of an entity,
+	 * including
+	 * the recording of the entity change in the history. Must be invoked
+	 * inside a transaction to which the given storage has been added.
+	 *
+	 * @param storage      The storage to store the entity in
+	 * @param entity       The (hierarchy-checked) entity to store
+	 * @param storeEntity  The original entity that had been handed to the
+	 *                     store method
+	 * @param changeOrigin The entity to be stored as the history origin
+	 * @throws Exception If storing the entity or the history record fails
+	 */
+	private static void storeEntity(Storage storage, Entity entity,
+		Entity storeEntity, Entity changeOrigin) throws Exception {
+		boolean newEntity = !entity.isPersistent();
+		String change = prepareEntityStore(entity, changeOrigin);
+
+		storage.store(entity);
+
+		if (storeEntity != entity && storeEntity.hasFlag(MODIFIED)) {
+			// store original entity if still modified to make changes
+			// persistent even if the parent hierarchy doesn't contain it
+			// in the case of not cached entities
+			// TODO: check if still necessary
+			storage.store(storeEntity);
+		}
+
+		finishEntityStore(entity, changeOrigin, change, newEntity);
+	}
+
+	/**
+	 * Returns a sequential stream of entities for a certain query.
+	 *
+	 * @see #stream(QueryPredicate, boolean)
+	 */
+	public static <E extends Entity> Stream<E> stream(
+		QueryPredicate<E> entities) {
+		return stream(entities, false);
+	}
+
 	/**
 	 * Returns a stream of entities for a certain query. <em>Important:</em>
 	 * the
@@ -2218,18 +3277,38 @@ public class EntityManager {
 	 * try-with-resource
 	 * block to ensure the stream is closed correctly.
 	 *
+	 * <p>A sequential stream reads the entities with a single
+	 * {@link EntityIterator}. A parallel stream is based on an
+	 * {@link EntitySpliterator} which splits the entity ID range into
+	 * partitions that are queried on separate storages so that the stream
+	 * processing can be distributed across multiple threads. Neither variant
+	 * performs a count query before streaming.</p>
+	 *
 	 * @param entities The entity query
+	 * @param parallel TRUE for a parallel stream
 	 * @return A stream of entities
 	 */
 	public static <E extends Entity> Stream<E> stream(
-		QueryPredicate<E> entities) {
-		EntityIterator<E> iterator = new EntityIterator<>(entities);
-		Spliterator<E> spliterator =
-			Spliterators.spliterator(iterator, iterator.size(), 0);
+		QueryPredicate<E> entities, boolean parallel) {
+		Stream<E> stream;
 
-		return StreamSupport
-			.stream(spliterator, false)
-			.onClose(() -> iterator.close());
+		if (parallel) {
+			EntitySpliterator<E> spliterator =
+				new EntitySpliterator<>(entities);
+
+			stream = StreamSupport
+				.stream(spliterator, true)
+				.onClose(() -> spliterator.close());
+		} else {
+			EntityIterator<E> iterator = new EntityIterator<>(entities);
+
+			stream = StreamSupport
+				.stream(Spliterators.spliteratorUnknownSize(iterator,
+					Spliterator.NONNULL), false)
+				.onClose(() -> iterator.close());
+		}
+
+		return stream;
 	}
 
 	/**
@@ -2250,25 +3329,23 @@ public class EntityManager {
 
 	/**
 	 * Checks whether a synchronization endpoint is available and if so, tries
-	 * to register an entity lock on it.
+	 * to register an entity lock on it. If the sync client already holds a
+	 * lease for the entity no request will be sent to the sync service.
 	 *
 	 * @param entity The entity to lock
 	 */
 	static void trySyncEndpointLock(Entity entity) {
-		if (syncServiceEnabled && entitySyncEndpoint.isPresent()) {
+		EntitySyncClient syncClient = entitySyncClient;
+
+		if (syncServiceEnabled && syncClient != null) {
 			String response = "";
 
 			try {
-				EndpointFunction<SyncData, String> requestLock =
-					requestLock().from(entitySyncEndpoint.get());
-
-				response = requestLock.send(
-					syncRequest(entitySyncClientId, entitySyncContext,
-						entity.getGlobalId()));
+				response = syncClient.lock(entity.getGlobalId());
 			} catch (Exception e) {
 				// just log but continue with local lock mechanism
-				Log.errorf(e, "Error communicating with sync endpoint at %s",
-					entitySyncEndpoint.get().get(ENDPOINT_ADDRESS));
+				Log.errorf(e, "Error communicating with sync service %s",
+					syncClient);
 			}
 
 			if (!"".equals(response)) {
@@ -2280,28 +3357,17 @@ public class EntityManager {
 
 	/**
 	 * Checks whether a synchronization endpoint is available and if so,
-	 * releases an entity lock from it.
+	 * releases an entity lock from it. The release will be sent
+	 * asynchronously
+	 * by the sync client.
 	 *
 	 * @param entity The entity to unlock
 	 */
 	static void trySyncEndpointRelease(Entity entity) {
-		if (syncServiceEnabled && entitySyncEndpoint.isPresent()) {
-			try {
-				EndpointFunction<SyncData, String> releaseLock =
-					releaseLock().from(entitySyncEndpoint.get());
+		EntitySyncClient syncClient = entitySyncClient;
 
-				String response = releaseLock.send(
-					syncRequest(entitySyncClientId, entitySyncContext,
-						entity.getGlobalId()));
-
-				if (!"".equals(response)) {
-					Log.warnf("Releasing entity lock for %s failed: %s",
-						entity.getGlobalId(), response);
-				}
-			} catch (Exception e) {
-				Log.warnf(e, "Error communicating with sync endpoint at %s",
-					entitySyncEndpoint.get().get(ENDPOINT_ADDRESS));
-			}
+		if (syncServiceEnabled && syncClient != null) {
+			syncClient.release(entity.getGlobalId());
 		}
 	}
 
@@ -2320,6 +3386,20 @@ public class EntityManager {
 		 * @param entity The entity that has been stored
 		 */
 		void entityStored(Entity entity);
+
+		/**
+		 * Will be invoked after multiple entities have been stored together
+		 * through {@link EntityManager#storeEntities(Collection, Entity)}. The
+		 * default implementation invokes {@link #entityStored(Entity)} for
+		 * each entity.
+		 *
+		 * @param entities The entities that have been stored
+		 */
+		default void entitiesStored(Collection<Entity> entities) {
+			for (Entity entity : entities) {
+				entityStored(entity);
+			}
+		}
 	}
 
 	/**
@@ -27,7 +27,10 @@ import de.esoco.storage.StoragePredicates;
 import org.obrel.core.Relatable;
 import org.obrel.core.RelationType;
 
+import java.util.Collection;
+
 import static de.esoco.entity.EntityFunctions.getExtraAttribute;
+import static de.esoco.lib.expression.CollectionPredicates.elementOf;
 import static de.esoco.lib.expression.Functions.coerce;
 import static de.esoco.lib.expression.ReflectionFuntions.cast;
 import static de.esoco.lib.expression.StringFunctions.substring;
@@ -131,6 +134,20 @@ public class EntityPredicates {
 		return ifAttribute(idAttr, hasExtraAttr);
 	}
 
+	/**
+	 * Creates an entity predicate to query for the direct children of certain
+	 * parent entities in a hierarchy. This allows to query a complete level
+	 * of a hierarchy with a single query.
+	 *
+	 * @param parentAttribute The parent attribute of the child entities
+	 * @param parents         The parent entities to query the children of
+	 * @return A new predicate for the children of the given parents
+	 */
+	public static <E extends Entity, P extends Entity> Predicate<E> hasParentIn(
+		RelationType<P> parentAttribute, Collection<? extends P> parents) {
+		return ifAttribute(parentAttribute, elementOf(parents));
+	}
+
 	/**
 	 * A {@link Predicates#ifRelation(RelationType, Predicate)} variant that
 	 * provides better readability for entity attributes.
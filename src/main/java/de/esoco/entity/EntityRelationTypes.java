@@ -30,6 +30,7 @@ import org.obrel.core.RelationTypes;
 import org.obrel.type.MetaTypes;
 import org.obrel.type.StandardTypes;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -193,6 +194,66 @@ public class EntityRelationTypes {
 		HIERARCHICAL_QUERY_MODE =
 		newInitialValueType(HierarchicalQueryMode.NEVER);
 
+	/**
+	 * A relation type to set the entity reference attributes on a query
+	 * predicate that should be resolved in bulk for each page of entities
+	 * that
+	 * is read by an {@link EntityIterator}. This avoids separate queries for
+	 * each referenced entity when the references are accessed later.
+	 *
+	 * @see EntityManager#prefetchReferences(Collection, Collection)
+	 */
+	public static final RelationType<List<RelationType<? extends Entity>>>
+		PREFETCH_REFERENCES = newListType();
+
+	/**
+	 * A flag that can be set on a query predicate to fetch the global extra
+	 * attributes of each page of entities that is read by an
+	 * {@link EntityIterator} with a single query. This avoids a separate
+	 * query for each entity when the extra attributes are accessed later.
+	 *
+	 * @see EntityManager#fetchExtraAttributes(Collection)
+	 */
+	public static final RelationType<Boolean> PREFETCH_EXTRA_ATTRIBUTES =
+		newFlagType();
+
+	/**
+	 * An annotation for string attributes of entities that enables the
+	 * compression of attribute values in the storage. Values that are longer
+	 * than the given number of characters will be stored in a compressed
+	 * form that is decompressed transparently when entities are read. A value
+	 * of zero disables the compression of new values but still decompresses
+	 * values that had been compressed before. Because the storage contains
+	 * the compressed values such attributes should not be used in query
+	 * criteria.
+	 */
+	public static final RelationType<Integer> STORAGE_COMPRESSION_THRESHOLD =
+		newType();
+
+	/**
+	 * A relation type to enable the streaming mode of an
+	 * {@link EntityIterator} by setting it on a query predicate. If set to a
+	 * positive value the iterator will read the query results with a
+	 * sequence
+	 * of forward-only queries that each return at most the given number of
+	 * entities, ordered by the entity ID. Each query continues after the last
+	 * ID of the previous one so that the storage never needs to hold more
+	 * than a single page of results. The query criteria must therefore not
+	 * contain any sort predicates.
+	 */
+	public static final RelationType<Integer> STREAMING_FETCH_SIZE =
+		newType();
+
+	/**
+	 * A flag that can be set on a query predicate to prevent the caching of
+	 * the queried entities. Entities that are already cached will still be
+	 * returned but new entities will not be added to the cache. This is
+	 * intended for one-pass scans over large numbers of entities like exports
+	 * or migrations that would otherwise evict all other cached entities.
+	 */
+	public static final RelationType<Boolean> NO_ENTITY_CACHING =
+		newFlagType();
+
 	/**
 	 * A predicate that defines the roots of a hierarchy. It constrains the
 	 * root
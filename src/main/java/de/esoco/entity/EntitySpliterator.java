@@ -0,0 +1,307 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.entity;
+
+import de.esoco.lib.expression.Predicate;
+import de.esoco.lib.expression.Predicates;
+import de.esoco.lib.manage.Closeable;
+import de.esoco.storage.QueryPredicate;
+import de.esoco.storage.StorageException;
+import de.esoco.storage.StorageRuntimeException;
+import org.obrel.core.ObjectRelations;
+import org.obrel.core.RelationType;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+import static de.esoco.entity.EntityPredicates.forEntity;
+import static de.esoco.entity.EntityPredicates.ifAttribute;
+import static de.esoco.entity.EntityRelationTypes.NO_ENTITY_CACHING;
+import static de.esoco.lib.expression.Predicates.greaterOrEqual;
+import static de.esoco.lib.expression.Predicates.lessOrEqual;
+import static de.esoco.storage.StoragePredicates.sortBy;
+import static de.esoco.storage.StorageRelationTypes.QUERY_LIMIT;
+import static de.esoco.storage.StorageRelationTypes.QUERY_OFFSET;
+
+/**
+ * A {@link Spliterator} implementation for entity queries that supports the
+ * parallel processing of the query results. The range of the entity IDs is
+ * split into partitions that will each be queried with a separate
+ * {@link EntityIterator} on a new storage instance (and therefore on a
+ * separate storage connection). The lower and upper bounds of the ID range
+ * are determined with two single-row queries for the query criteria before
+ * the first split so that no count query is necessary. If the criteria
+ * contain a sort order the bounds of the complete entity type will be used
+ * instead. Partitions will not be split further if they contain less than
+ * {@link #MIN_SPLIT_RANGE} IDs. The relations of the query
+ * predicate, e.g. {@link EntityRelationTypes#NO_ENTITY_CACHING}, are copied
+ * to the queries of all partitions. Because a query limit or offset cannot be
+ * distributed over independent partitions queries with such relations will
+ * not be split.
+ *
+ * <p>Like {@link EntityIterator} instances of this class hold storage
+ * resources while iterating. The resources of a partition are released as
+ * soon as it has been fully traversed but if the traversal is aborted the
+ * method {@link #close()} of the spliterator that had been used to create
+ * the stream must be invoked to release the resources of all partitions.
+ * This is done automatically when the stream returned by
+ * {@link EntityManager#stream(QueryPredicate, boolean)} is closed.</p>
+ *
+ * @author eso
+ */
+public class EntitySpliterator<E extends Entity>
+	implements Spliterator<E>, Closeable {
+
+	/**
+	 * The minimum size of an ID range that will be split.
+	 */
+	public static final long MIN_SPLIT_RANGE = 1000;
+
+	private final QueryPredicate<E> entities;
+
+	private final RelationType<Long> idAttribute;
+
+	private final Queue<EntitySpliterator<E>> partitions;
+
+	private final long minSplitRange;
+
+	private boolean initialized;
+
+	private long minId;
+
+	private long maxId;
+
+	private EntityIterator<E> iterator = null;
+
+	/**
+	 * Creates a new instance for a certain entity query.
+	 *
+	 * @param entities The entity query
+	 */
+	public EntitySpliterator(QueryPredicate<E> entities) {
+		this(entities, MIN_SPLIT_RANGE);
+	}
+
+	/**
+	 * Creates a new instance for a certain entity query with a specific
+	 * minimum split range. Mainly intended for testing.
+	 *
+	 * @param entities      The entity query
+	 * @param minSplitRange The minimum size of an ID range that will be split
+	 */
+	@SuppressWarnings("unchecked")
+	EntitySpliterator(QueryPredicate<E> entities, long minSplitRange) {
+		this.entities = entities;
+		this.minSplitRange = minSplitRange;
+
+		idAttribute = (RelationType<Long>) (RelationType<?>) EntityManager
+			.getEntityDefinition(entities.getQueryType())
+			.getIdAttribute();
+		partitions = new ConcurrentLinkedQueue<>();
+		initialized = false;
+
+		partitions.add(this);
+	}
+
+	/**
+	 * Creates a new partition of a parent spliterator.
+	 *
+	 * @param parent The parent spliterator
+	 * @param minId  The minimum entity ID of the partition (inclusive)
+	 * @param maxId  The maximum entity ID of the partition (inclusive)
+	 */
+	private EntitySpliterator(EntitySpliterator<E> parent, long minId,
+		long maxId) {
+		this.entities = parent.entities;
+		this.idAttribute = parent.idAttribute;
+		this.partitions = parent.partitions;
+		this.minSplitRange = parent.minSplitRange;
+		this.minId = minId;
+		this.maxId = maxId;
+
+		initialized = true;
+		partitions.add(this);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int characteristics() {
+		return NONNULL | DISTINCT;
+	}
+
+	/**
+	 * Releases the storage resources of this spliterator and of all
+	 * partitions that have been split from it.
+	 */
+	@Override
+	public void close() {
+		EntitySpliterator<E> partition;
+
+		while ((partition = partitions.poll()) != null) {
+			partition.closeIterator();
+		}
+	}
+
+	/**
+	 * Returns the size of the ID range of this spliterator, which is an upper
+	 * bound of the number of entities in it.
+	 *
+	 * @see Spliterator#estimateSize()
+	 */
+	@Override
+	public long estimateSize() {
+		checkInitialized();
+
+		return maxId >= minId ? maxId - minId + 1 : 0;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@SuppressWarnings("boxing")
+	public boolean tryAdvance(Consumer<? super E> action) {
+		checkInitialized();
+
+		if (maxId < minId) {
+			return false;
+		}
+
+		if (iterator == null) {
+			Predicate<E> idRange =
+				Predicates.and(ifAttribute(idAttribute, greaterOrEqual(minId)),
+					ifAttribute(idAttribute, lessOrEqual(maxId)));
+
+			QueryPredicate<E> partition = forEntity(entities.getQueryType(),
+				Predicates.and(entities.getCriteria(), idRange));
+
+			ObjectRelations.copyRelations(entities, partition, true);
+			iterator = new EntityIterator<>(partition, true);
+		}
+
+		boolean hasNext = iterator.hasNext();
+
+		if (hasNext) {
+			action.accept(iterator.next());
+		} else {
+			// mark as consumed and release storage immediately
+			minId = maxId + 1;
+			closeIterator();
+		}
+
+		return hasNext;
+	}
+
+	/**
+	 * Splits the remaining ID range of this spliterator in half if the
+	 * iteration hasn't started yet and the range is large enough. Queries
+	 * with a limit or offset will not be split.
+	 *
+	 * @see Spliterator#trySplit()
+	 */
+	@Override
+	public Spliterator<E> trySplit() {
+		checkInitialized();
+
+		Spliterator<E> split = null;
+
+		if (iterator == null && maxId - minId >= minSplitRange &&
+			!entities.hasRelation(QUERY_LIMIT) &&
+			!entities.hasRelation(QUERY_OFFSET)) {
+			long splitId = minId + (maxId - minId) / 2;
+
+			split = new EntitySpliterator<>(this, minId, splitId);
+			minId = splitId + 1;
+		}
+
+		return split;
+	}
+
+	/**
+	 * Determines the ID range of the queried entity type if not done yet.
+	 */
+	private void checkInitialized() {
+		if (!initialized) {
+			try {
+				E first = queryBoundary(true);
+				E last = queryBoundary(false);
+
+				if (first != null && last != null) {
+					minId = first.getId();
+					maxId = last.getId();
+				} else {
+					minId = 0;
+					maxId = -1;
+				}
+			} catch (StorageException e) {
+				throw new StorageRuntimeException(e);
+			}
+
+			initialized = true;
+		}
+	}
+
+	/**
+	 * Closes the iterator of this spliterator if it exists.
+	 */
+	private void closeIterator() {
+		if (iterator != null) {
+			iterator.close();
+			iterator = null;
+		}
+	}
+
+	/**
+	 * Queries the entity with the lowest or highest ID that matches the query
+	 * criteria. The relations of the query are applied to the boundary query
+	 * too, except for the limit and offset. The boundary entities will not be
+	 * cached. If the criteria contain a sort order, which would take
+	 * precedence over the ID order, the boundaries of the complete entity
+	 * type will be queried instead.
+	 *
+	 * @param lowest TRUE for the lowest ID, FALSE for the highest
+	 * @return The boundary entity or NULL if no entities exist
+	 * @throws StorageException If the query fails
+	 */
+	@SuppressWarnings("boxing")
+	private E queryBoundary(boolean lowest) throws StorageException {
+		Predicate<? super E> criteria = entities.getCriteria();
+		Predicate<E> idOrder = sortBy(idAttribute, lowest);
+
+		if (criteria != null &&
+			!EntityIterator.containsSortPredicate(criteria)) {
+			idOrder = Predicates.and(criteria, idOrder);
+		}
+
+		QueryPredicate<E> boundary =
+			forEntity(entities.getQueryType(), idOrder);
+
+		ObjectRelations.copyRelations(entities, boundary, true);
+		boundary.deleteRelation(QUERY_OFFSET);
+		boundary.set(QUERY_LIMIT, 1);
+		boundary.set(NO_ENTITY_CACHING);
+
+		List<E> result = EntityManager.queryEntities(boundary, 1);
+
+		return result.isEmpty() ? null : result.get(0);
+	}
+}
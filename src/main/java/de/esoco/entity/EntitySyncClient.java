@@ -0,0 +1,557 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.entity;
+
+import de.esoco.lib.comm.Endpoint;
+import de.esoco.lib.comm.EndpointFunction;
+import de.esoco.lib.logging.Log;
+import de.esoco.lib.service.ModificationSyncEndpoint;
+import de.esoco.lib.service.ModificationSyncEndpoint.SyncData;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static de.esoco.lib.comm.CommunicationRelationTypes.ENDPOINT_ADDRESS;
+import static de.esoco.lib.service.ModificationSyncEndpoint.releaseLock;
+import static de.esoco.lib.service.ModificationSyncEndpoint.syncRequest;
+
+/**
+ * A client for a remote entity sync service that is used by the
+ * {@link EntityManager} to synchronize entity locks across multiple
+ * applications. To keep the latency of the sync service out of the
+ * interactive edit path this client maintains a local table of the leases
+ * it holds on entity locks. Lock releases are only queued by
+ * {@link #release(String)} and will be sent asynchronously in batches by a
+ * background thread, either periodically or when the batch size has been
+ * reached. If an entity is locked again before it's release has been sent the
+ * existing lease will simply be reused without contacting the sync service.
+ * The leases of all held locks will be renewed periodically after half of
+ * the lease duration has elapsed. If the renewal of a lease fails the lease
+ * is recorded as lost so that the {@link EntityManager} can reject the
+ * storing of the entity (see {@link #isLeaseLost(String)}).
+ *
+ * <p>The actual communication is performed by an implementation of the
+ * {@link LockService} interface. The standard implementation
+ * {@link EndpointLockService} sends the requests to a sync service endpoint,
+ * {@link LocalLockService} is an in-process stand-in that can be used for
+ * tests.</p>
+ *
+ * @author eso
+ */
+public class EntitySyncClient {
+
+	/**
+	 * The default duration of a lock lease in milliseconds.
+	 */
+	public static final long DEFAULT_LEASE_DURATION = 5 * 60 * 1000;
+
+	/**
+	 * The default interval for the sending of lock releases in milliseconds.
+	 */
+	public static final long DEFAULT_RELEASE_INTERVAL = 500;
+
+	/**
+	 * The default maximum number of lock releases in a single batch.
+	 */
+	public static final int DEFAULT_RELEASE_BATCH_SIZE = 100;
+
+	private final String clientId;
+
+	private final LockService lockService;
+
+	private final long leaseDuration;
+
+	private final int releaseBatchSize;
+
+	private final Map<String, Long> leases = new ConcurrentHashMap<>();
+
+	private final Set<String> pendingReleases = ConcurrentHashMap.newKeySet();
+
+	private final Set<String> activeReleases = ConcurrentHashMap.newKeySet();
+
+	private final Set<String> lostLeases = ConcurrentHashMap.newKeySet();
+
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * Creates a new instance with default parameters.
+	 *
+	 * @param clientId    The unique ID of this client
+	 * @param lockService The lock service to send the lock requests to
+	 */
+	public EntitySyncClient(String clientId, LockService lockService) {
+		this(clientId, lockService, DEFAULT_LEASE_DURATION,
+			DEFAULT_RELEASE_INTERVAL, DEFAULT_RELEASE_BATCH_SIZE);
+	}
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param clientId         The unique ID of this client
+	 * @param lockService      The lock service to send the lock requests to
+	 * @param leaseDuration    The duration of lock leases in milliseconds
+	 * @param releaseInterval  The interval in milliseconds after which queued
+	 *                         lock releases will be sent
+	 * @param releaseBatchSize The maximum number of queued releases after
+	 *                         which the releases will be sent immediately
+	 */
+	public EntitySyncClient(String clientId, LockService lockService,
+		long leaseDuration, long releaseInterval, int releaseBatchSize) {
+		this.clientId = clientId;
+		this.lockService = lockService;
+		this.leaseDuration = leaseDuration;
+		this.releaseBatchSize = releaseBatchSize;
+
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "EntitySyncClient");
+
+			thread.setDaemon(true);
+
+			return thread;
+		});
+
+		executor.scheduleWithFixedDelay(this::sendReleases, releaseInterval,
+			releaseInterval, TimeUnit.MILLISECONDS);
+		executor.scheduleWithFixedDelay(this::renewLeases, leaseDuration / 2,
+			leaseDuration / 2, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the client ID.
+	 *
+	 * @return The client ID
+	 */
+	public final String getClientId() {
+		return clientId;
+	}
+
+	/**
+	 * Checks whether this client currently holds a valid lease for a certain
+	 * entity.
+	 *
+	 * @param globalEntityId The global ID of the entity
+	 * @return TRUE if a valid lock lease exists
+	 */
+	@SuppressWarnings("boxing")
+	public boolean hasLease(String globalEntityId) {
+		Long expiry = leases.get(globalEntityId);
+
+		return expiry != null && expiry > System.currentTimeMillis();
+	}
+
+	/**
+	 * Checks whether the lease of an entity lock has been lost because it
+	 * could not be renewed before it expired. A lost lease will be reset when
+	 * the entity is locked or released again.
+	 *
+	 * @param globalEntityId The global ID of the entity
+	 * @return TRUE if the lease has been lost
+	 */
+	public boolean isLeaseLost(String globalEntityId) {
+		return lostLeases.contains(globalEntityId);
+	}
+
+	/**
+	 * Tries to lock an entity. If a valid lease already exists for the entity
+	 * or if a release of the entity is still queued the lock will be granted
+	 * without contacting the lock service. Otherwise the lock will be
+	 * requested
+	 * synchronously.
+	 *
+	 * @param globalEntityId The global ID of the entity to lock
+	 * @return An empty string if the lock has been granted or else a
+	 * description of the current lock holder
+	 * @throws Exception If the communication with the lock service fails
+	 */
+	@SuppressWarnings("boxing")
+	public String lock(String globalEntityId) throws Exception {
+		String response = "";
+
+		if (!pendingReleases.remove(globalEntityId) &&
+			!hasLease(globalEntityId)) {
+			if (activeReleases.contains(globalEntityId)) {
+				// wait until the running release batch has been sent to
+				// prevent it from overriding the new lock
+				synchronized (this) {
+					activeReleases.remove(globalEntityId);
+				}
+			}
+
+			response = lockService.requestLock(clientId, globalEntityId);
+		}
+
+		if (response == null || response.isEmpty()) {
+			leases.put(globalEntityId,
+				System.currentTimeMillis() + leaseDuration);
+			lostLeases.remove(globalEntityId);
+			response = "";
+		}
+
+		return response;
+	}
+
+	/**
+	 * Queues the release of an entity lock. The release will be sent
+	 * asynchronously by the background thread of this client.
+	 *
+	 * @param globalEntityId The global ID of the entity to release
+	 */
+	public void release(String globalEntityId) {
+		lostLeases.remove(globalEntityId);
+
+		if (leases.remove(globalEntityId) != null) {
+			pendingReleases.add(globalEntityId);
+
+			if (pendingReleases.size() >= releaseBatchSize &&
+				!executor.isShutdown()) {
+				try {
+					executor.execute(this::sendReleases);
+				} catch (RejectedExecutionException e) {
+					// shut down concurrently; shutdown() sends the releases
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends all queued releases and stops the background thread of this
+	 * client. The remaining leases will be released too.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+
+		try {
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		pendingReleases.addAll(leases.keySet());
+		leases.clear();
+		sendReleases();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	@SuppressWarnings("boxing")
+	public String toString() {
+		return String.format("%s[%s, %d leases, %d pending releases]",
+			getClass().getSimpleName(), clientId, leases.size(),
+			pendingReleases.size());
+	}
+
+	/**
+	 * Renews all lock leases that will expire before the next renewal run.
+	 * Leases that cannot be renewed are recorded as lost if the lock service
+	 * denies the renewal or if they have expired.
+	 */
+	@SuppressWarnings("boxing")
+	void renewLeases() {
+		long now = System.currentTimeMillis();
+		long renewalTime = now + leaseDuration / 2;
+
+		for (Entry<String, Long> lease : leases.entrySet()) {
+			String entityId = lease.getKey();
+			Long expiry = lease.getValue();
+
+			if (expiry <= renewalTime) {
+				try {
+					String response =
+						lockService.renewLock(clientId, entityId);
+
+					if (response == null || response.isEmpty()) {
+						leases.replace(entityId, expiry,
+							System.currentTimeMillis() + leaseDuration);
+					} else {
+						Log.warnf("Renewal of lock lease for %s failed: %s",
+							entityId, response);
+						leaseLost(entityId, expiry);
+					}
+				} catch (Exception e) {
+					Log.warnf(e, "Could not renew lock lease for %s",
+						entityId);
+
+					if (expiry <= now) {
+						leaseLost(entityId, expiry);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends all queued lock releases in a single batch.
+	 */
+	synchronized void sendReleases() {
+		List<String> releases = new ArrayList<>(pendingReleases.size());
+
+		for (String entityId : pendingReleases) {
+			// mark as active before removing from the pending releases so
+			// that lock() always finds the entity in one of the two sets
+			activeReleases.add(entityId);
+
+			// only add if not removed concurrently by lock()
+			if (pendingReleases.remove(entityId)) {
+				releases.add(entityId);
+			} else {
+				activeReleases.remove(entityId);
+			}
+		}
+
+		if (!releases.isEmpty()) {
+			try {
+				lockService.releaseLocks(clientId, releases);
+			} catch (Exception e) {
+				Log.warnf(e, "Releasing of %d entity locks failed",
+					releases.size());
+			} finally {
+				activeReleases.clear();
+			}
+		}
+	}
+
+	/**
+	 * Records the loss of a lock lease if it is still held.
+	 *
+	 * @param entityId The global ID of the entity
+	 * @param expiry   The expiry time of the lost lease
+	 */
+	private void leaseLost(String entityId, Long expiry) {
+		if (leases.remove(entityId, expiry)) {
+			lostLeases.add(entityId);
+		}
+	}
+
+	/**
+	 * The interface for the services that perform the actual lock requests
+	 * of an {@link EntitySyncClient}.
+	 *
+	 * @author eso
+	 */
+	public interface LockService {
+
+		/**
+		 * Releases multiple entity locks in a single batch.
+		 *
+		 * @param clientId        The ID of the client holding the locks
+		 * @param globalEntityIds The global IDs of the entities to release
+		 * @throws Exception If the communication with the service fails
+		 */
+		void releaseLocks(String clientId, Collection<String> globalEntityIds)
+			throws Exception;
+
+		/**
+		 * Renews the lock of an entity that is held by a client. Other than
+		 * {@link #requestLock(String, String)} this must fail if the client
+		 * doesn't hold the lock anymore, e.g. because it has expired in the
+		 * service.
+		 *
+		 * @param clientId       The ID of the client holding the lock
+		 * @param globalEntityId The global ID of the locked entity
+		 * @return An empty string if the lock has been renewed or else a
+		 * description of the reason why the renewal failed
+		 * @throws Exception If the communication with the service fails
+		 */
+		String renewLock(String clientId, String globalEntityId)
+			throws Exception;
+
+		/**
+		 * Requests the lock of an entity. If the lock is already held by the
+		 * same client the request must succeed.
+		 *
+		 * @param clientId       The ID of the client requesting the lock
+		 * @param globalEntityId The global ID of the entity to lock
+		 * @return An empty string if the lock has been granted or else a
+		 * description of the current lock holder
+		 * @throws Exception If the communication with the service fails
+		 */
+		String requestLock(String clientId, String globalEntityId)
+			throws Exception;
+	}
+
+	/**
+	 * A lock service implementation that sends the lock requests to a remote
+	 * sync service {@link Endpoint}. The endpoint functions are created only
+	 * once and reused for all requests so that all requests will be sent over
+	 * the same endpoint.
+	 *
+	 * <p>The {@link ModificationSyncEndpoint} keeps a lock until it is
+	 * released explicitly and has no lock expiry. Therefore the renewal of a
+	 * lock is always successful and doesn't need to contact the service. The
+	 * lock leases of the client then only limit the time for which a lock
+	 * that has been released locally can be reused.</p>
+	 *
+	 * @author eso
+	 */
+	public static class EndpointLockService implements LockService {
+
+		private final Endpoint endpoint;
+
+		private final String context;
+
+		private final EndpointFunction<SyncData, String> lockFunction;
+
+		private final EndpointFunction<SyncData, String> releaseFunction;
+
+		/**
+		 * Creates a new instance.
+		 *
+		 * @param endpoint The sync service endpoint
+		 * @param context  The application context to sync entities in
+		 */
+		public EndpointLockService(Endpoint endpoint, String context) {
+			this.endpoint = endpoint;
+			this.context = context;
+
+			lockFunction =
+				ModificationSyncEndpoint.requestLock().from(endpoint);
+			releaseFunction = releaseLock().from(endpoint);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void releaseLocks(String clientId,
+			Collection<String> globalEntityIds) {
+			for (String entityId : globalEntityIds) {
+				String response = releaseFunction.send(
+					syncRequest(clientId, context, entityId));
+
+				if (!"".equals(response)) {
+					Log.warnf("Releasing entity lock for %s failed: %s",
+						entityId, response);
+				}
+			}
+		}
+
+		/**
+		 * Always returns an empty string because locks don't expire in the
+		 * sync service.
+		 *
+		 * @see LockService#renewLock(String, String)
+		 */
+		@Override
+		public String renewLock(String clientId, String globalEntityId) {
+			return "";
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String requestLock(String clientId, String globalEntityId) {
+			return lockFunction.send(
+				syncRequest(clientId, context, globalEntityId));
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public String toString() {
+			return String.format("%s[%s]", getClass().getSimpleName(),
+				endpoint.get(ENDPOINT_ADDRESS));
+		}
+	}
+
+	/**
+	 * An in-process lock service that manages the entity locks in memory.
+	 * Instances can be shared between multiple sync clients to simulate
+	 * multiple applications, e.g. for testing.
+	 *
+	 * @author eso
+	 */
+	public static class LocalLockService implements LockService {
+
+		private final Map<String, String> locks = new ConcurrentHashMap<>();
+
+		private int requestCount = 0;
+
+		/**
+		 * Returns the ID of the client that currently holds the lock of a
+		 * certain entity.
+		 *
+		 * @param globalEntityId The global entity ID
+		 * @return The client ID or NULL if the entity is not locked
+		 */
+		public String getLockHolder(String globalEntityId) {
+			return locks.get(globalEntityId);
+		}
+
+		/**
+		 * Returns the number of requests that have been received by this
+		 * service. Each batch of releases counts as a single request.
+		 *
+		 * @return The request count
+		 */
+		public synchronized int getRequestCount() {
+			return requestCount;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public synchronized void releaseLocks(String clientId,
+			Collection<String> globalEntityIds) {
+			requestCount++;
+
+			for (String entityId : globalEntityIds) {
+				locks.remove(entityId, clientId);
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public synchronized String renewLock(String clientId,
+			String globalEntityId) {
+			requestCount++;
+
+			String holder = locks.get(globalEntityId);
+
+			return clientId.equals(holder) ? "" :
+			       "Not locked by " + clientId;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public synchronized String requestLock(String clientId,
+			String globalEntityId) {
+			requestCount++;
+
+			String holder = locks.putIfAbsent(globalEntityId, clientId);
+
+			return holder == null || holder.equals(clientId) ? "" : holder;
+		}
+	}
+}
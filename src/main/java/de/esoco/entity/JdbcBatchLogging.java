@@ -0,0 +1,440 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.entity;
+
+import de.esoco.lib.logging.BusinessLogAspect;
+import de.esoco.lib.logging.LogLevel;
+import de.esoco.lib.logging.LogRecord;
+import org.obrel.core.RelationType;
+import org.obrel.core.RelationTypes;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static de.esoco.storage.StorageRelationTypes.STORAGE_LENGTH;
+import static de.esoco.storage.StorageRelationTypes.STORAGE_NAME;
+import static org.obrel.core.RelationTypes.newInitialValueType;
+import static org.obrel.core.RelationTypes.newType;
+
+/**
+ * An append-only logging implementation that writes log records into the
+ * table of {@link LogEntry} with JDBC batch inserts. Other than
+ * {@link StorageLogging} it doesn't create entities for the log records but
+ * collects lightweight {@link LogLine} objects that are inserted in batches
+ * over a single database connection. A batch is written when it reaches
+ * {@link #FLUSH_SIZE} records or after {@link #FLUSH_INTERVAL} milliseconds,
+ * whichever comes first. If a batch cannot be inserted its records will be
+ * inserted one at a time and records that still fail will be discarded so
+ * that a single invalid record cannot block the logging. If the database
+ * connection fails the records will be retried with the next flush until
+ * more than {@link #MAX_PENDING_RECORDS} records are pending, then the oldest
+ * records will be discarded.
+ *
+ * <p>The method {@link #close()} writes the pending records and stops the
+ * periodic flushing. It is also registered as a shutdown hook of the JVM so
+ * that pending records will not be lost when the application exits.</p>
+ *
+ * <p>If {@link #RETENTION_DAYS} is set to a positive value log entries older
+ * than that will be deleted periodically.</p>
+ *
+ * <p>The database connection is opened with the URL in {@link #JDBC_URL} or,
+ * if not set, with the default URL and connection properties of
+ * {@link DbEntityDefinition}. The log table must already exist, e.g. by
+ * initializing the storage of {@link LogEntry}.</p>
+ *
+ * @author eso
+ */
+public class JdbcBatchLogging
+	extends BusinessLogAspect<JdbcBatchLogging.LogLine> {
+
+	/**
+	 * The JDBC URL of the log database or NULL for the default URL of
+	 * {@link DbEntityDefinition}.
+	 */
+	public static final RelationType<String> JDBC_URL = newType();
+
+	/**
+	 * The number of log records that will be inserted together.
+	 */
+	public static final RelationType<Integer> FLUSH_SIZE =
+		newInitialValueType(500);
+
+	/**
+	 * The maximum time in milliseconds before pending log records will be
+	 * inserted.
+	 */
+	public static final RelationType<Long> FLUSH_INTERVAL =
+		newInitialValueType(5000L);
+
+	/**
+	 * The number of days after which log entries will be deleted or zero to
+	 * keep log entries forever.
+	 */
+	public static final RelationType<Integer> RETENTION_DAYS =
+		newInitialValueType(0);
+
+	/**
+	 * The maximum number of pending log records that will be kept if writing
+	 * to the database fails.
+	 */
+	public static final int MAX_PENDING_RECORDS = 10000;
+
+	private static final long RETENTION_CHECK_INTERVAL = 3600000;
+
+	private static final long MILLISECONDS_PER_DAY = 86400000;
+
+	private static final int CONNECTION_CHECK_TIMEOUT = 5;
+
+	static {
+		RelationTypes.init(JdbcBatchLogging.class);
+	}
+
+	private final List<LogLine> pendingRecords = new ArrayList<>();
+
+	private ScheduledExecutorService flushScheduler;
+
+	private Thread shutdownHook;
+
+	private Connection connection;
+
+	private PreparedStatement insertStatement;
+
+	private String deleteSql;
+
+	private int maxMessageLength;
+
+	private long nextRetentionCheck = 0;
+
+	/**
+	 * Stops the periodic flushing, writes all pending log records to the
+	 * database, and closes the database connection. Log records that are
+	 * processed afterwards will only be written when the flush size is
+	 * reached.
+	 */
+	public synchronized void close() {
+		if (flushScheduler != null) {
+			flushScheduler.shutdownNow();
+			flushScheduler = null;
+		}
+
+		if (shutdownHook != null) {
+			if (Thread.currentThread() != shutdownHook) {
+				try {
+					Runtime.getRuntime().removeShutdownHook(shutdownHook);
+				} catch (IllegalStateException e) {
+					// JVM shutdown already in progress
+				}
+			}
+
+			shutdownHook = null;
+		}
+
+		flush();
+		closeConnection();
+	}
+
+	/**
+	 * Writes all pending log records to the database.
+	 */
+	public synchronized void flush() {
+		if (!pendingRecords.isEmpty()) {
+			try {
+				writeRecords();
+				applyRetention();
+			} catch (SQLException | RuntimeException e) {
+				// logging errors here could recursively create log records
+				closeConnection();
+
+				int excess = pendingRecords.size() - MAX_PENDING_RECORDS;
+
+				if (excess > 0) {
+					pendingRecords.subList(0, excess).clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected LogLine createLogObject(LogRecord logRecord) {
+		Entity source = getLogSource();
+
+		return new LogLine(logRecord.getLevel(), logRecord.getTime(),
+			StorageLogging.createLogMessage(logRecord,
+				get(MIN_STACK_LOG_LEVEL)),
+			source != null ? EntityManager.getGlobalEntityId(source) : null);
+	}
+
+	/**
+	 * Starts the periodic flushing of pending log records and registers
+	 * {@link #close()} as a shutdown hook.
+	 *
+	 * @see BusinessLogAspect#init()
+	 */
+	@Override
+	@SuppressWarnings("boxing")
+	protected synchronized void init() {
+		long interval = get(FLUSH_INTERVAL);
+
+		if (flushScheduler != null) {
+			flushScheduler.shutdownNow();
+		}
+
+		if (shutdownHook == null) {
+			shutdownHook = new Thread(this::close, "JdbcBatchLoggingShutdown");
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		}
+
+		flushScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "JdbcBatchLogging");
+
+			thread.setDaemon(true);
+
+			return thread;
+		});
+
+		flushScheduler.scheduleWithFixedDelay(this::flush, interval, interval,
+			TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds the log records to the pending records and writes them to the
+	 * database if the flush size has been reached.
+	 *
+	 * @see BusinessLogAspect#processLogObjects(Collection)
+	 */
+	@Override
+	@SuppressWarnings("boxing")
+	protected void processLogObjects(Collection<LogLine> logLines) {
+		boolean flush;
+
+		synchronized (this) {
+			pendingRecords.addAll(logLines);
+			flush = pendingRecords.size() >= get(FLUSH_SIZE);
+		}
+
+		if (flush) {
+			flush();
+		}
+	}
+
+	/**
+	 * Deletes log entries that are older than the retention period. This will
+	 * only be done once per hour.
+	 *
+	 * @throws SQLException If the deletion fails
+	 */
+	@SuppressWarnings("boxing")
+	private void applyRetention() throws SQLException {
+		int retentionDays = get(RETENTION_DAYS);
+		long now = System.currentTimeMillis();
+
+		if (retentionDays > 0 && now >= nextRetentionCheck) {
+			try (PreparedStatement delete =
+				connection.prepareStatement(deleteSql)) {
+				delete.setTimestamp(1, new Timestamp(
+					now - retentionDays * MILLISECONDS_PER_DAY));
+				delete.executeUpdate();
+				connection.commit();
+			}
+
+			nextRetentionCheck = now + RETENTION_CHECK_INTERVAL;
+		}
+	}
+
+	/**
+	 * Closes the database connection after an error.
+	 */
+	private void closeConnection() {
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				// ignore errors of already failed connections
+			}
+
+			connection = null;
+			insertStatement = null;
+		}
+	}
+
+	/**
+	 * Opens the database connection and prepares the insert statement.
+	 *
+	 * @throws SQLException If the initialization fails
+	 */
+	@SuppressWarnings("boxing")
+	private void openConnection() throws SQLException {
+		EntityManager.getEntityDefinition(LogEntry.class);
+
+		connection = DbEntityDefinition.openConnection(get(JDBC_URL));
+		connection.setAutoCommit(false);
+
+		DatabaseMetaData metaData = connection.getMetaData();
+		String quote = metaData.getIdentifierQuoteString().trim();
+		String table =
+			DbEntityDefinition.getTableName(metaData, LogEntry.STORAGE_NAME);
+		Map<String, String> columns =
+			DbEntityDefinition.getColumnNames(metaData, table);
+		String[] names = new String[4];
+		RelationType<?>[] attributes = new RelationType<?>[] {
+			LogEntry.LEVEL, LogEntry.TIME, LogEntry.MESSAGE, LogEntry.SOURCE };
+
+		for (int i = 0; i < attributes.length; i++) {
+			String name = attributes[i].get(STORAGE_NAME);
+
+			names[i] =
+				quote + columns.getOrDefault(name.toLowerCase(), name) + quote;
+		}
+
+		table = quote + table + quote;
+
+		insertStatement = connection.prepareStatement(String.format(
+			"INSERT INTO %s (%s, %s, %s, %s) VALUES (?, ?, ?, ?)", table,
+			names[0], names[1], names[2], names[3]));
+		deleteSql =
+			String.format("DELETE FROM %s WHERE %s < ?", table, names[1]);
+
+		Integer length = LogEntry.MESSAGE.get(STORAGE_LENGTH);
+
+		maxMessageLength = length != null ? length : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Sets the parameters of the insert statement from a log record.
+	 *
+	 * @param logLine The log record
+	 * @throws SQLException If setting a parameter fails
+	 */
+	private void setParameters(LogLine logLine) throws SQLException {
+		String message = logLine.message;
+
+		if (message != null && message.length() > maxMessageLength) {
+			message = message.substring(0, maxMessageLength);
+		}
+
+		insertStatement.setString(1, logLine.level.name());
+		insertStatement.setTimestamp(2, new Timestamp(logLine.time));
+		insertStatement.setString(3, message);
+		insertStatement.setString(4, logLine.source);
+	}
+
+	/**
+	 * Inserts all pending records into the database with a single batch and
+	 * removes them from the pending records. If the batch fails the records
+	 * will be inserted separately.
+	 *
+	 * @throws SQLException If the database connection fails
+	 */
+	private void writeRecords() throws SQLException {
+		if (connection == null) {
+			openConnection();
+		}
+
+		for (LogLine logLine : pendingRecords) {
+			setParameters(logLine);
+			insertStatement.addBatch();
+		}
+
+		try {
+			insertStatement.executeBatch();
+			connection.commit();
+			pendingRecords.clear();
+		} catch (SQLException e) {
+			insertStatement.clearBatch();
+			connection.rollback();
+			writeSingleRecords();
+		}
+	}
+
+	/**
+	 * Inserts the pending records one at a time after a failed batch insert.
+	 * Records that cannot be inserted will be discarded as long as the
+	 * database connection is still valid. All processed records will be
+	 * removed from the pending records.
+	 *
+	 * @throws SQLException If the database connection fails
+	 */
+	private void writeSingleRecords() throws SQLException {
+		int processed = 0;
+
+		try {
+			for (LogLine logLine : pendingRecords) {
+				try {
+					setParameters(logLine);
+					insertStatement.executeUpdate();
+					connection.commit();
+				} catch (SQLException e) {
+					connection.rollback();
+
+					if (!connection.isValid(CONNECTION_CHECK_TIMEOUT)) {
+						throw e;
+					}
+					// otherwise discard the invalid record
+				}
+
+				processed++;
+			}
+		} finally {
+			pendingRecords.subList(0, processed).clear();
+		}
+	}
+
+	/**
+	 * A lightweight container for the data of a log record that is used
+	 * instead of {@link LogEntry} entities.
+	 *
+	 * @author eso
+	 */
+	public static class LogLine {
+
+		private final LogLevel level;
+
+		private final long time;
+
+		private final String message;
+
+		private final String source;
+
+		/**
+		 * Creates a new instance.
+		 *
+		 * @param level   The log level
+		 * @param time    The log time
+		 * @param message The log message
+		 * @param source  The global ID of the source entity or NULL for none
+		 */
+		LogLine(LogLevel level, long time, String message, String source) {
+			this.level = level;
+			this.time = time;
+			this.message = message;
+			this.source = source;
+		}
+	}
+}
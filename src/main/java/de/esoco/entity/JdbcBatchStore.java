@@ -0,0 +1,451 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.entity;
+
+import de.esoco.lib.manage.Transactional;
+import de.esoco.storage.StorageException;
+import org.obrel.core.RelationType;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static de.esoco.entity.DbEntityDefinition.getSqlName;
+import static de.esoco.entity.EntityRelationTypes.ENTITY_STORE_ORIGIN;
+import static de.esoco.entity.EntityRelationTypes.EXTRA_ATTRIBUTES_MODIFIED;
+import static de.esoco.storage.StorageRelationTypes.PERSISTENT;
+import static org.obrel.type.MetaTypes.AUTOGENERATED;
+import static org.obrel.type.MetaTypes.MODIFIED;
+
+/**
+ * A transaction element that inserts new entities with JDBC batch inserts
+ * over a separate database connection. It is used by the method
+ * {@link EntityManager#storeEntities(java.util.Collection, Entity)} for
+ * entity types that can be stored in a single table row, i.e. types without
+ * child attributes. Entities with modified extra attributes or with attribute
+ * values that cannot be mapped directly to SQL values are rejected by
+ * {@link #add(Entity, Entity)} and must be stored through their storage
+ * instead.
+ *
+ * <p>The inserts of an entity type are executed when {@link #BATCH_SIZE}
+ * entities have been added or when {@link #flush()} is invoked. After that
+ * the entities have their generated IDs and are marked as persistent. The
+ * connection is committed or rolled back together with the transaction that
+ * this instance has been added to.</p>
+ *
+ * @author eso
+ */
+class JdbcBatchStore implements Transactional {
+
+	/**
+	 * The number of entities of a type that will be inserted together.
+	 */
+	static final int BATCH_SIZE = 500;
+
+	private static final Object UNSUPPORTED = new Object();
+
+	private final String jdbcUrl;
+
+	private final Map<Class<? extends Entity>, BatchInsert> inserts =
+		new HashMap<>();
+
+	private Connection connection;
+
+	/**
+	 * Creates a new instance.
+	 *
+	 * @param jdbcUrl The JDBC URL of the entity database or NULL for the
+	 *                default URL of {@link DbEntityDefinition}
+	 */
+	JdbcBatchStore(String jdbcUrl) {
+		this.jdbcUrl = jdbcUrl;
+	}
+
+	/**
+	 * Converts an attribute value that has been mapped by the entity
+	 * definition into a value that can be set on a prepared statement.
+	 *
+	 * @param value The mapped value
+	 * @return The SQL value or {@link #UNSUPPORTED} if the value cannot be
+	 * converted
+	 */
+	private static Object toSqlValue(Object value) {
+		if (value == null || value instanceof String ||
+			value instanceof Number || value instanceof Boolean) {
+			return value;
+		} else if (value instanceof Date) {
+			return new Timestamp(((Date) value).getTime());
+		} else if (value instanceof Enum) {
+			return ((Enum<?>) value).name();
+		} else {
+			return UNSUPPORTED;
+		}
+	}
+
+	/**
+	 * Commits the batch inserts and closes the connection.
+	 *
+	 * @throws StorageException If the commit fails
+	 */
+	@Override
+	public void commit() throws StorageException {
+		try {
+			if (connection != null) {
+				connection.commit();
+			}
+		} catch (SQLException e) {
+			throw new StorageException("Commit of batch inserts failed", e);
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Rolls back the batch inserts and closes the connection.
+	 */
+	@Override
+	public void rollback() {
+		try {
+			if (connection != null) {
+				connection.rollback();
+			}
+		} catch (SQLException e) {
+			// the connection will be closed anyway
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Adds an entity to the batch insert of it's type if possible. This will
+	 * also prepare the entity for storing and record the entity change in the
+	 * history after the insert has been executed.
+	 *
+	 * @param entity       The entity to insert
+	 * @param changeOrigin The entity to be stored as the history origin
+	 * @return TRUE if the entity has been added, FALSE if it must be stored
+	 * through it's storage
+	 * @throws Exception If preparing or inserting the entity fails
+	 */
+	boolean add(Entity entity, Entity changeOrigin) throws Exception {
+		BatchInsert insert = null;
+
+		if (!entity.isPersistent() &&
+			!entity.hasFlag(EXTRA_ATTRIBUTES_MODIFIED)) {
+			insert = getInsert(entity);
+		}
+
+		boolean added = insert != null && insert.mapValues(entity) != null;
+
+		if (added) {
+			String change =
+				EntityManager.prepareEntityStore(entity, changeOrigin);
+
+			// map again because preparing may have set the change time
+			insert.add(entity, insert.mapValues(entity), change);
+
+			if (insert.entities.size() >= BATCH_SIZE) {
+				insert.execute();
+			}
+		}
+
+		return added;
+	}
+
+	/**
+	 * Executes the pending batch inserts of all entity types.
+	 *
+	 * @throws Exception If executing an insert or finishing the store of an
+	 *                   entity fails
+	 */
+	void flush() throws Exception {
+		for (BatchInsert insert : inserts.values()) {
+			if (insert != null) {
+				insert.execute();
+			}
+		}
+	}
+
+	/**
+	 * Closes the connection and discards all prepared statements.
+	 */
+	private void close() {
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				// ignore errors of already failed connections
+			}
+
+			connection = null;
+		}
+
+		inserts.clear();
+	}
+
+	/**
+	 * Creates the batch insert for a certain entity definition.
+	 *
+	 * @param definition The entity definition
+	 * @return The new batch insert or NULL if the entities of the definition
+	 * cannot be inserted with a batch
+	 * @throws SQLException If reading the database metadata fails
+	 */
+	@SuppressWarnings("boxing")
+	private BatchInsert createInsert(EntityDefinition<?> definition)
+		throws SQLException {
+		if (!definition.getChildAttributes().isEmpty()) {
+			return null;
+		}
+
+		if (connection == null) {
+			connection = DbEntityDefinition.openConnection(jdbcUrl);
+			connection.setAutoCommit(false);
+		}
+
+		DatabaseMetaData metaData = connection.getMetaData();
+		String quote = metaData.getIdentifierQuoteString().trim();
+		String table =
+			DbEntityDefinition.getTableName(metaData, getSqlName(definition));
+		Map<String, String> columns = new HashMap<>();
+		Map<String, Integer> sqlTypes = new HashMap<>();
+
+		try (ResultSet columnData =
+			metaData.getColumns(null, null, table, "%")) {
+			while (columnData.next()) {
+				String column = columnData.getString("COLUMN_NAME");
+
+				columns.put(column.toLowerCase(), column);
+				sqlTypes.put(column.toLowerCase(),
+					columnData.getInt("DATA_TYPE"));
+			}
+		}
+
+		RelationType<Number> idAttribute = definition.getIdAttribute();
+		boolean generatedId = idAttribute.hasFlag(AUTOGENERATED);
+		BatchInsert insert = new BatchInsert(definition, generatedId);
+		List<String> names = new ArrayList<>();
+
+		for (RelationType<?> attribute : definition.getAttributes()) {
+			if (attribute != idAttribute || !generatedId) {
+				String name = getSqlName(attribute).toLowerCase();
+				String column = columns.get(name);
+
+				if (column == null) {
+					return null;
+				}
+
+				insert.attributes.add(attribute);
+				insert.sqlTypes.add(sqlTypes.get(name));
+				names.add(quote + column + quote);
+			}
+		}
+
+		String idColumn = columns.get(getSqlName(idAttribute).toLowerCase());
+
+		if (generatedId &&
+			(idColumn == null || !metaData.supportsGetGeneratedKeys())) {
+			return null;
+		}
+
+		StringBuilder sql = new StringBuilder("INSERT INTO ");
+
+		sql.append(quote).append(table).append(quote).append(" (");
+		sql.append(String.join(", ", names)).append(") VALUES (");
+
+		for (int i = 0; i < names.size(); i++) {
+			sql.append(i > 0 ? ", ?" : "?");
+		}
+
+		sql.append(')');
+
+		insert.statement = generatedId ?
+		                   connection.prepareStatement(sql.toString(),
+			                   new String[] { idColumn }) :
+		                   connection.prepareStatement(sql.toString());
+
+		return insert;
+	}
+
+	/**
+	 * Returns the batch insert for the type of an entity.
+	 *
+	 * @param entity The entity
+	 * @return The batch insert or NULL if the entity type is not supported
+	 * @throws SQLException If creating the batch insert fails
+	 */
+	private BatchInsert getInsert(Entity entity) throws SQLException {
+		Class<? extends Entity> entityType = entity.getClass();
+
+		if (!inserts.containsKey(entityType)) {
+			inserts.put(entityType, createInsert(entity.getDefinition()));
+		}
+
+		return inserts.get(entityType);
+	}
+
+	/**
+	 * Contains the prepared statement and the pending entities of the batch
+	 * insert of a certain entity type.
+	 *
+	 * @author eso
+	 */
+	private static class BatchInsert {
+
+		private final EntityDefinition<?> definition;
+
+		private final boolean generatedId;
+
+		private final List<RelationType<?>> attributes = new ArrayList<>();
+
+		private final List<Integer> sqlTypes = new ArrayList<>();
+
+		private final List<Entity> entities = new ArrayList<>();
+
+		private final List<String> changes = new ArrayList<>();
+
+		private PreparedStatement statement;
+
+		/**
+		 * Creates a new instance.
+		 *
+		 * @param definition  The entity definition
+		 * @param generatedId TRUE if the entity IDs are generated by the
+		 *                    database
+		 */
+		BatchInsert(EntityDefinition<?> definition, boolean generatedId) {
+			this.definition = definition;
+			this.generatedId = generatedId;
+		}
+
+		/**
+		 * Adds the parameters of an entity to the batch.
+		 *
+		 * @param entity The entity
+		 * @param values The SQL values of the entity attributes
+		 * @param change The change description of the entity or NULL for
+		 *               none
+		 * @throws SQLException If setting the parameters fails
+		 */
+		@SuppressWarnings("boxing")
+		void add(Entity entity, Object[] values, String change)
+			throws SQLException {
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] != null) {
+					statement.setObject(i + 1, values[i]);
+				} else {
+					statement.setNull(i + 1, sqlTypes.get(i));
+				}
+			}
+
+			statement.addBatch();
+			entities.add(entity);
+			changes.add(change);
+		}
+
+		/**
+		 * Executes the pending inserts and finishes the store of the
+		 * inserted entities by setting the generated IDs and the persistent
+		 * state.
+		 *
+		 * @throws Exception If the insert or finishing the store fails
+		 */
+		@SuppressWarnings("unchecked")
+		void execute() throws Exception {
+			if (entities.isEmpty()) {
+				return;
+			}
+
+			statement.executeBatch();
+
+			if (generatedId) {
+				RelationType<?> idType = definition.getIdAttribute();
+				RelationType<Object> idAttribute =
+					(RelationType<Object>) idType;
+
+				try (ResultSet keys = statement.getGeneratedKeys()) {
+					for (Entity entity : entities) {
+						if (!keys.next()) {
+							throw new StorageException(
+								"No generated ID for " + entity);
+						}
+
+						long id = keys.getLong(1);
+
+						entity.set(idAttribute,
+							idAttribute.getTargetType() == Integer.class ?
+							Integer.valueOf((int) id) :
+							Long.valueOf(id));
+					}
+				}
+			}
+
+			for (int i = 0; i < entities.size(); i++) {
+				Entity entity = entities.get(i);
+
+				entity.set(PERSISTENT);
+				entity.set(MODIFIED, Boolean.FALSE);
+				entity.afterStore();
+
+				EntityManager.finishEntityStore(entity,
+					entity.get(ENTITY_STORE_ORIGIN), changes.get(i), true);
+			}
+
+			entities.clear();
+			changes.clear();
+		}
+
+		/**
+		 * Maps the attribute values of an entity to SQL values.
+		 *
+		 * @param entity The entity
+		 * @return The SQL values in the order of the insert parameters or
+		 * NULL if a value cannot be mapped
+		 */
+		Object[] mapValues(Entity entity) {
+			Object[] values = new Object[attributes.size()];
+
+			for (int i = 0; i < values.length; i++) {
+				RelationType<?> attribute = attributes.get(i);
+				Object value = entity.get(attribute);
+
+				if (value instanceof Entity &&
+					!((Entity) value).isPersistent()) {
+					return null;
+				}
+
+				value = toSqlValue(definition.mapValue(attribute, value));
+
+				if (value == UNSUPPORTED) {
+					return null;
+				}
+
+				values[i] = value;
+			}
+
+			return values;
+		}
+	}
+}
@@ -0,0 +1,194 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.entity;
+
+import de.esoco.lib.manage.Transactional;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A global cache for the owner-specific extra attributes of entities. It
+ * maps combinations of entity and owner to all extra attributes of the entity
+ * for that owner so that the attributes of such a combination can be read
+ * with a single query. The cache is bounded to {@link #MAX_SIZE} entries and
+ * evicts the least recently used entries if that size is exceeded.
+ *
+ * <p>Entries are invalidated when owner-specific extra attributes are set or
+ * stored. To prevent that entries which are invalidated while being loaded
+ * get cached the loading code must query the current generation with
+ * {@link #getGeneration()} before querying the storage and hand it to
+ * {@link #put(Entity, Entity, Map, long)}. Because other threads can still
+ * read and cache the previously committed attributes until a modifying
+ * transaction is committed, modifications must also add the element that is
+ * returned by {@link #invalidateOnCommit(Entity, Entity)} to their
+ * transaction.</p>
+ *
+ * @author eso
+ */
+class OwnerExtraAttributeCache {
+
+	/**
+	 * The maximum number of entity-owner combinations that will be cached.
+	 */
+	static final int MAX_SIZE = 1000;
+
+	private static final Map<String, Map<String, ExtraAttribute>> cache =
+		new LinkedHashMap<String, Map<String, ExtraAttribute>>(128, 0.75f,
+			true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+				Map.Entry<String, Map<String, ExtraAttribute>> eldest) {
+				return size() > MAX_SIZE;
+			}
+		};
+
+	private static long generation = 0;
+
+	/**
+	 * Private, only static use.
+	 */
+	private OwnerExtraAttributeCache() {
+	}
+
+	/**
+	 * Returns the cached extra attributes of an entity for a certain owner.
+	 *
+	 * @param entity The entity
+	 * @param owner  The owner entity
+	 * @return A mapping from extra attribute keys to extra attributes or NULL
+	 * if no entry exists for the given combination
+	 */
+	static synchronized Map<String, ExtraAttribute> get(Entity entity,
+		Entity owner) {
+		return cache.get(getKey(entity, owner));
+	}
+
+	/**
+	 * Returns the current generation of this cache. The generation is
+	 * incremented on each invalidation.
+	 *
+	 * @return The current generation
+	 */
+	static synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Invalidates the cache entry for a certain entity and owner.
+	 *
+	 * @param entity The entity
+	 * @param owner  The owner entity
+	 */
+	static synchronized void invalidate(Entity entity, Entity owner) {
+		generation++;
+
+		if (entity != null && owner != null) {
+			cache.remove(getKey(entity, owner));
+		}
+	}
+
+	/**
+	 * Removes all entries from this cache.
+	 */
+	static synchronized void invalidateAll() {
+		generation++;
+		cache.clear();
+	}
+
+	/**
+	 * Returns a transaction element that invalidates the cache entry for a
+	 * certain entity and owner again when the transaction is committed.
+	 *
+	 * @param entity The entity
+	 * @param owner  The owner entity
+	 * @return The transaction element
+	 */
+	static Transactional invalidateOnCommit(Entity entity, Entity owner) {
+		return new InvalidateOnCommit(entity, owner);
+	}
+
+	/**
+	 * Caches the extra attributes of an entity for a certain owner if the
+	 * cache has not been invalidated since the given generation.
+	 *
+	 * @param entity          The entity
+	 * @param owner           The owner entity
+	 * @param extraAttributes A mapping from extra attribute keys to extra
+	 *                        attributes
+	 * @param loadGeneration  The cache generation before the extra attributes
+	 *                        had been queried
+	 */
+	static synchronized void put(Entity entity, Entity owner,
+		Map<String, ExtraAttribute> extraAttributes, long loadGeneration) {
+		if (loadGeneration == generation) {
+			cache.put(getKey(entity, owner), extraAttributes);
+		}
+	}
+
+	/**
+	 * Returns the cache key for a combination of entity and owner.
+	 *
+	 * @param entity The entity
+	 * @param owner  The owner entity
+	 * @return The cache key
+	 */
+	private static String getKey(Entity entity, Entity owner) {
+		return entity.getGlobalId() + ':' + owner.getGlobalId();
+	}
+
+	/**
+	 * A transaction element that invalidates a cache entry when the
+	 * transaction is committed.
+	 *
+	 * @author eso
+	 */
+	private static class InvalidateOnCommit implements Transactional {
+
+		private final Entity entity;
+
+		private final Entity owner;
+
+		/**
+		 * Creates a new instance.
+		 *
+		 * @param entity The entity
+		 * @param owner  The owner entity
+		 */
+		InvalidateOnCommit(Entity entity, Entity owner) {
+			this.entity = entity;
+			this.owner = owner;
+		}
+
+		/**
+		 * Invalidates the cache entry.
+		 */
+		@Override
+		public void commit() {
+			invalidate(entity, owner);
+		}
+
+		/**
+		 * Does nothing because the committed attributes remain valid.
+		 */
+		@Override
+		public void rollback() {
+		}
+	}
+}
@@ -0,0 +1,163 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.entity;
+
+import org.obrel.core.RelationType;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static de.esoco.entity.DbEntityDefinition.getSqlName;
+
+/**
+ * Queries the IDs of the descendants or ancestors of an entity in a
+ * self-referencing hierarchy with a single recursive SQL query (WITH
+ * RECURSIVE). The queries are performed over a separate connection that is
+ * opened with {@link DbEntityDefinition#openConnection(String)} and will
+ * therefore only see committed data.
+ *
+ * @author eso
+ */
+class RecursiveHierarchyQuery {
+
+	private static final String DESCENDANTS_SQL =
+		"WITH RECURSIVE descendants (node_id, node_depth) AS (" +
+			"SELECT t.%2$s, 1 FROM %1$s t WHERE t.%3$s = ? UNION ALL " +
+			"SELECT t.%2$s, d.node_depth + 1 FROM %1$s t, descendants d " +
+			"WHERE t.%3$s = d.node_id AND d.node_depth < ?) " +
+			"SELECT node_id FROM descendants ORDER BY node_depth, node_id";
+
+	private static final String ANCESTORS_SQL =
+		"WITH RECURSIVE ancestors (node_id, parent_id, node_depth) AS (" +
+			"SELECT t.%2$s, t.%3$s, 0 FROM %1$s t WHERE t.%2$s = ? " +
+			"UNION ALL " +
+			"SELECT t.%2$s, t.%3$s, a.node_depth + 1 FROM %1$s t, " +
+			"ancestors a WHERE t.%2$s = a.parent_id AND a.node_depth < ?) " +
+			"SELECT node_id FROM ancestors WHERE node_depth > 0 " +
+			"ORDER BY node_depth";
+
+	/**
+	 * Private, only static use.
+	 */
+	private RecursiveHierarchyQuery() {
+	}
+
+	/**
+	 * Queries the IDs of the ancestors of an entity, starting with the direct
+	 * parent.
+	 *
+	 * @param jdbcUrl         The JDBC URL of the entity database
+	 * @param definition      The entity definition
+	 * @param parentAttribute The self-referencing parent attribute
+	 * @param id              The ID of the entity to query the ancestors of
+	 * @param maxDepth        The maximum number of ancestors to query
+	 * @return The ancestor IDs or NULL if the table or it's columns could not
+	 * be found in the database
+	 * @throws SQLException If the query fails
+	 */
+	static List<Long> queryAncestorIds(String jdbcUrl,
+		EntityDefinition<?> definition, RelationType<?> parentAttribute,
+		long id, int maxDepth) throws SQLException {
+		return queryIds(jdbcUrl, ANCESTORS_SQL, definition, parentAttribute,
+			id, maxDepth);
+	}
+
+	/**
+	 * Queries the IDs of the descendants of an entity, ordered by their
+	 * hierarchy level.
+	 *
+	 * @param jdbcUrl         The JDBC URL of the entity database
+	 * @param definition      The entity definition
+	 * @param parentAttribute The self-referencing parent attribute
+	 * @param id              The ID of the root entity of the subtree
+	 * @param maxDepth        The maximum number of levels to descend
+	 * @return The descendant IDs or NULL if the table or it's columns could
+	 * not be found in the database
+	 * @throws SQLException If the query fails
+	 */
+	static List<Long> queryDescendantIds(String jdbcUrl,
+		EntityDefinition<?> definition, RelationType<?> parentAttribute,
+		long id, int maxDepth) throws SQLException {
+		return queryIds(jdbcUrl, DESCENDANTS_SQL, definition, parentAttribute,
+			id, maxDepth);
+	}
+
+	/**
+	 * Performs a recursive query for entity IDs.
+	 *
+	 * @param jdbcUrl         The JDBC URL of the entity database
+	 * @param sqlTemplate     The SQL template with the placeholders for the
+	 *                        table, the ID column, and the parent column
+	 * @param definition      The entity definition
+	 * @param parentAttribute The self-referencing parent attribute
+	 * @param id              The ID of the start entity
+	 * @param maxDepth        The maximum recursion depth
+	 * @return The queried IDs or NULL if the table or it's columns could not
+	 * be found in the database
+	 * @throws SQLException If the query fails
+	 */
+	@SuppressWarnings("boxing")
+	private static List<Long> queryIds(String jdbcUrl, String sqlTemplate,
+		EntityDefinition<?> definition, RelationType<?> parentAttribute,
+		long id, int maxDepth) throws SQLException {
+		List<Long> ids = new ArrayList<>();
+
+		if (maxDepth <= 0) {
+			return ids;
+		}
+
+		try (Connection connection = DbEntityDefinition.openConnection(
+			jdbcUrl)) {
+			DatabaseMetaData metaData = connection.getMetaData();
+			String quote = metaData.getIdentifierQuoteString().trim();
+			String table = DbEntityDefinition.getTableName(metaData,
+				getSqlName(definition));
+			Map<String, String> columns =
+				DbEntityDefinition.getColumnNames(metaData, table);
+			String idColumn = columns.get(
+				getSqlName(definition.getIdAttribute()).toLowerCase());
+			String parentColumn =
+				columns.get(getSqlName(parentAttribute).toLowerCase());
+
+			if (idColumn == null || parentColumn == null) {
+				return null;
+			}
+
+			String sql = String.format(sqlTemplate, quote + table + quote,
+				quote + idColumn + quote, quote + parentColumn + quote);
+
+			try (PreparedStatement query = connection.prepareStatement(sql)) {
+				query.setLong(1, id);
+				query.setInt(2, maxDepth);
+
+				try (ResultSet result = query.executeQuery()) {
+					while (result.next()) {
+						ids.add(result.getLong(1));
+					}
+				}
+			}
+		}
+
+		return ids;
+	}
+}
@@ -29,23 +29,28 @@ import java.util.Date;
 
 /**
  * A logging implementation that stores log records as {@link LogEntry} entities
- * in a database. It requires no additional configuration relations.
+ * in a database. It requires no additional configuration relations. For
+ * applications that create large amounts of log records
+ * {@link JdbcBatchLogging} provides a more efficient alternative.
  *
  * @author eso
  */
 public class StorageLogging extends BusinessLogAspect<LogEntry> {
 
 	/**
-	 * {@inheritDoc}
+	 * Creates the message to be stored for a log record. If the log level is
+	 * at least the given minimum stack level the message will contain the
+	 * stacktrace of the causing exception if available.
+	 *
+	 * @param logRecord     The log record
+	 * @param minStackLevel The minimum log level for stacktraces
+	 * @return The log message
 	 */
-	@Override
-	protected LogEntry createLogObject(LogRecord logRecord) {
-		LogLevel logLevel = logRecord.getLevel();
-		LogEntry logEntry = null;
-
+	static String createLogMessage(LogRecord logRecord,
+		LogLevel minStackLevel) {
 		String message = logRecord.getMessage();
 
-		if (logLevel.compareTo(get(MIN_STACK_LOG_LEVEL)) >= 0) {
+		if (logRecord.getLevel().compareTo(minStackLevel) >= 0) {
 			Throwable cause = logRecord.getCause();
 
 			if (cause != null) {
@@ -54,10 +59,20 @@ public class StorageLogging extends BusinessLogAspect<LogEntry> {
 			}
 		}
 
-		logEntry = new LogEntry();
-		logEntry.set(LogEntry.LEVEL, logLevel);
+		return message;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected LogEntry createLogObject(LogRecord logRecord) {
+		LogEntry logEntry = new LogEntry();
+
+		logEntry.set(LogEntry.LEVEL, logRecord.getLevel());
 		logEntry.set(LogEntry.TIME, new Date(logRecord.getTime()));
-		logEntry.set(LogEntry.MESSAGE, message);
+		logEntry.set(LogEntry.MESSAGE,
+			createLogMessage(logRecord, get(MIN_STACK_LOG_LEVEL)));
 		logEntry.set(LogEntry.SOURCE, getLogSource());
 
 		return logEntry;
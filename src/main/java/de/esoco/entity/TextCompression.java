@@ -0,0 +1,112 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.entity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Contains the static methods that convert attribute text values to and from
+ * the compressed form that is used in the storage for attributes with the
+ * annotation {@link EntityRelationTypes#STORAGE_COMPRESSION_THRESHOLD}.
+ * Compressed values consist of the prefix {@link #COMPRESSED_PREFIX}
+ * followed by the Base64-encoded GZIP data of the UTF-8 text.
+ *
+ * @author eso
+ */
+public class TextCompression {
+
+	/**
+	 * The prefix that marks compressed text values.
+	 */
+	public static final String COMPRESSED_PREFIX = "{GZ}";
+
+	private static final int BUFFER_SIZE = 4096;
+
+	/**
+	 * Private, only static use.
+	 */
+	private TextCompression() {
+	}
+
+	/**
+	 * Compresses a text value. If the compressed value would not be shorter
+	 * than the original text the text will be returned unchanged.
+	 *
+	 * @param text The text to compress
+	 * @return The compressed value or the original text
+	 */
+	static String compress(String text) {
+		ByteArrayOutputStream data = new ByteArrayOutputStream(text.length());
+
+		try (OutputStream out = new GZIPOutputStream(data)) {
+			out.write(text.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			// cannot occur with in-memory streams
+			throw new IllegalStateException(e);
+		}
+
+		String compressed = COMPRESSED_PREFIX +
+			Base64.getEncoder().encodeToString(data.toByteArray());
+
+		return compressed.length() < text.length() ? compressed : text;
+	}
+
+	/**
+	 * Decompresses a value that has been created by {@link #compress(String)}.
+	 * Values that are not compressed or that cannot be decompressed will be
+	 * returned unchanged.
+	 *
+	 * @param value The value to decompress
+	 * @return The decompressed text or the original value
+	 */
+	static String decompress(String value) {
+		if (!value.startsWith(COMPRESSED_PREFIX)) {
+			return value;
+		}
+
+		try {
+			byte[] compressed = Base64.getDecoder().decode(
+				value.substring(COMPRESSED_PREFIX.length()));
+
+			ByteArrayOutputStream text =
+				new ByteArrayOutputStream(compressed.length * 4);
+
+			try (InputStream in = new GZIPInputStream(
+				new ByteArrayInputStream(compressed))) {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int count;
+
+				while ((count = in.read(buffer)) > 0) {
+					text.write(buffer, 0, count);
+				}
+			}
+
+			return new String(text.toByteArray(), StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException | IOException e) {
+			// not a compressed value but a text with the same prefix
+			return value;
+		}
+	}
+}
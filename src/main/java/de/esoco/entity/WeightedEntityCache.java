@@ -0,0 +1,657 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.entity;
+
+import de.esoco.storage.QueryList;
+import org.obrel.core.Relation;
+import org.obrel.core.RelationType;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static de.esoco.entity.EntityRelationTypes.CACHE_ENTITY;
+
+/**
+ * An entity cache that limits it's size by the accumulated weight of the
+ * cached entities instead of by their count. The default weight of an entity
+ * is the number of entities in it's loaded hierarchy so that a single entity
+ * with thousands of children occupies the same budget as thousands of
+ * independent entities. Subclasses can override {@link #getWeight(Entity)} to
+ * implement a different weighting.
+ *
+ * <p>Eviction is controlled by a variant of the W-TinyLFU policy: new entries
+ * are first placed in a small LRU admission window. Entries that overflow the
+ * window will only be admitted into the main area if they have been accessed
+ * more frequently than the least recently used entry of the main area, which
+ * will then be evicted. Access frequencies are recorded in a compact
+ * count-min sketch that is aged periodically so that formerly hot entries
+ * will lose their priority over time. This prevents large hierarchies that
+ * are only read once from flushing the frequently used entities out of the
+ * cache.</p>
+ *
+ * <p>Additionally entries can expire after a certain time to live and after
+ * a maximum idle time. Both can be set as defaults and for specific entity
+ * types. A cache instance can be activated for the global entity cache with
+ * {@link EntityManager#setWeightedCache(WeightedEntityCache)}.</p>
+ *
+ * @author eso
+ */
+public class WeightedEntityCache {
+
+	private static final int WINDOW_PERCENTAGE = 1;
+
+	private static final int EXPIRY_CHECK_INTERVAL = 256;
+
+	private final Map<String, CacheEntry> window =
+		new LinkedHashMap<>(16, 0.75f, true);
+
+	private final Map<String, CacheEntry> main =
+		new LinkedHashMap<>(256, 0.75f, true);
+
+	private final Map<Class<? extends Entity>, long[]> typeExpiry =
+		new ConcurrentHashMap<>();
+
+	private final FrequencySketch sketch;
+
+	private long maxWeight;
+
+	private long windowWeight;
+
+	private long mainWeight;
+
+	private long defaultTimeToLive = 0;
+
+	private long defaultMaxIdleTime = 0;
+
+	private int modificationCount = 0;
+
+	/**
+	 * Creates a new instance with a certain maximum weight.
+	 *
+	 * @param maxWeight The maximum accumulated weight of all cached entities
+	 */
+	public WeightedEntityCache(long maxWeight) {
+		if (maxWeight <= 0) {
+			throw new IllegalArgumentException("Maximum weight must be > 0");
+		}
+
+		this.maxWeight = maxWeight;
+
+		sketch = new FrequencySketch(
+			(int) Math.min(maxWeight, Integer.MAX_VALUE >> 2));
+	}
+
+	/**
+	 * Removes all entities from this cache.
+	 */
+	public synchronized void clear() {
+		for (CacheEntry entry : window.values()) {
+			entry.entity.set(CACHE_ENTITY, Boolean.FALSE);
+		}
+
+		for (CacheEntry entry : main.values()) {
+			entry.entity.set(CACHE_ENTITY, Boolean.FALSE);
+		}
+
+		window.clear();
+		main.clear();
+		windowWeight = 0;
+		mainWeight = 0;
+	}
+
+	/**
+	 * Returns the entity that has been cached for a certain global ID. If the
+	 * entity has expired it will be removed from the cache and NULL will be
+	 * returned.
+	 *
+	 * @param globalId The global entity ID
+	 * @return The cached entity or NULL for none
+	 */
+	public synchronized Entity get(String globalId) {
+		sketch.increment(globalId);
+
+		CacheEntry entry = getEntry(globalId);
+		Entity entity = null;
+
+		if (entry != null) {
+			long time = System.currentTimeMillis();
+
+			if (entry.isExpired(time)) {
+				remove(globalId);
+				evicted(entry);
+			} else {
+				entry.lastAccess = time;
+				entity = entry.entity;
+			}
+		}
+
+		return entity;
+	}
+
+	/**
+	 * Returns the maximum weight of this cache.
+	 *
+	 * @return The maximum weight
+	 */
+	public synchronized long getMaxWeight() {
+		return maxWeight;
+	}
+
+	/**
+	 * Returns a description of the current cache usage.
+	 *
+	 * @return The usage description
+	 */
+	@SuppressWarnings("boxing")
+	public synchronized String getUsage() {
+		return String.format(
+			"Weighted entity cache: %d entities (window %d/main %d), " +
+				"weight %d of %d", window.size() + main.size(), window.size(),
+			main.size(), windowWeight + mainWeight, maxWeight);
+	}
+
+	/**
+	 * Returns the current accumulated weight of all cached entities.
+	 *
+	 * @return The current weight
+	 */
+	public synchronized long getWeight() {
+		return windowWeight + mainWeight;
+	}
+
+	/**
+	 * Caches an entity for a certain global ID and sets the flag
+	 * {@link EntityRelationTypes#CACHE_ENTITY} on it. Entities with a weight
+	 * that exceeds the maximum weight of this cache will be ignored and the
+	 * flag will be cleared. The flag of an entity that is replaced by a
+	 * different instance will be cleared too.
+	 *
+	 * @param globalId The global entity ID
+	 * @param entity   The entity to cache
+	 */
+	public synchronized void put(String globalId, Entity entity) {
+		int weight = getWeight(entity);
+
+		sketch.increment(globalId);
+
+		Entity replaced = remove(globalId);
+
+		if (replaced != null && replaced != entity) {
+			replaced.set(CACHE_ENTITY, Boolean.FALSE);
+		}
+
+		if (weight <= maxWeight) {
+			long[] expiry = getExpiry(entity.getClass());
+
+			entity.set(CACHE_ENTITY);
+			window.put(globalId,
+				new CacheEntry(entity, weight, expiry[0], expiry[1]));
+			windowWeight += weight;
+
+			if (++modificationCount % EXPIRY_CHECK_INTERVAL == 0) {
+				long time = System.currentTimeMillis();
+
+				windowWeight -= removeExpiredEntries(window, time);
+				mainWeight -= removeExpiredEntries(main, time);
+			}
+
+			evictFromWindow();
+		} else {
+			entity.set(CACHE_ENTITY, Boolean.FALSE);
+		}
+	}
+
+	/**
+	 * Removes the entity with a certain global ID from this cache.
+	 *
+	 * @param globalId The global entity ID
+	 * @return The removed entity or NULL if no entity had been cached for the
+	 * given ID
+	 */
+	public synchronized Entity remove(String globalId) {
+		CacheEntry entry = window.remove(globalId);
+
+		if (entry != null) {
+			windowWeight -= entry.weight;
+		} else {
+			entry = main.remove(globalId);
+
+			if (entry != null) {
+				mainWeight -= entry.weight;
+			}
+		}
+
+		return entry != null ? entry.entity : null;
+	}
+
+	/**
+	 * Sets the default expiration times for entities that have no
+	 * type-specific expiration times.
+	 *
+	 * @param timeToLive  The maximum time in milliseconds an entity may stay
+	 *                    in the cache or zero for no limit
+	 * @param maxIdleTime The maximum time in milliseconds since the last
+	 *                    access of an entity or zero for no limit
+	 */
+	public synchronized void setDefaultExpiry(long timeToLive, long maxIdleTime) {
+		defaultTimeToLive = timeToLive;
+		defaultMaxIdleTime = maxIdleTime;
+	}
+
+	/**
+	 * Sets the expiration times for a certain entity type. These will only be
+	 * applied to entities that are cached after this call.
+	 *
+	 * @param entityType  The entity type
+	 * @param timeToLive  The maximum time in milliseconds an entity may stay
+	 *                    in the cache or zero for no limit
+	 * @param maxIdleTime The maximum time in milliseconds since the last
+	 *                    access of an entity or zero for no limit
+	 */
+	public void setExpiry(Class<? extends Entity> entityType, long timeToLive,
+		long maxIdleTime) {
+		typeExpiry.put(entityType, new long[] { timeToLive, maxIdleTime });
+	}
+
+	/**
+	 * Sets the maximum weight of this cache. If the new maximum is lower than
+	 * the current weight entities will be evicted immediately.
+	 *
+	 * @param maxWeight The new maximum weight
+	 */
+	public synchronized void setMaxWeight(long maxWeight) {
+		if (maxWeight <= 0) {
+			throw new IllegalArgumentException("Maximum weight must be > 0");
+		}
+
+		this.maxWeight = maxWeight;
+
+		evictFromWindow();
+
+		while (mainWeight > getMainMaxWeight() && !main.isEmpty()) {
+			evict(main, main.keySet().iterator().next());
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return getUsage();
+	}
+
+	/**
+	 * Returns the weight of an entity. The default implementation returns the
+	 * number of entities in the loaded hierarchy of the given entity, i.e. the
+	 * entity itself and all it's loaded children. Child lists that have not
+	 * been queried yet will be ignored.
+	 *
+	 * @param entity The entity to calculate the weight of
+	 * @return The entity weight (must be > 0)
+	 */
+	protected int getWeight(Entity entity) {
+		int weight = 1;
+
+		for (RelationType<List<Entity>> childAttribute : entity
+			.getDefinition()
+			.getChildAttributes()) {
+			Relation<List<Entity>> relation =
+				entity.getRelation(childAttribute);
+
+			if (relation != null) {
+				List<Entity> children = relation.getTarget();
+
+				if (children != null && !(children instanceof QueryList)) {
+					for (Entity child : children) {
+						weight += getWeight(child);
+					}
+				}
+			}
+		}
+
+		return weight;
+	}
+
+	/**
+	 * Admits a candidate entry from the window into the main area if it's
+	 * access frequency is higher than that of the main area victims.
+	 *
+	 * @param globalId The global ID of the candidate
+	 * @param entry    The candidate entry
+	 */
+	private void admit(String globalId, CacheEntry entry) {
+		long mainMaxWeight = getMainMaxWeight();
+		int candidateFrequency = sketch.frequency(globalId);
+		Iterator<String> victims = main.keySet().iterator();
+		long freeWeight = mainMaxWeight - mainWeight;
+		int victimCount = 0;
+
+		// first determine whether enough victims can be evicted
+		while (freeWeight < entry.weight && victims.hasNext()) {
+			String victimId = victims.next();
+
+			if (sketch.frequency(victimId) >= candidateFrequency) {
+				break;
+			}
+
+			freeWeight += main.get(victimId).weight;
+			victimCount++;
+		}
+
+		if (freeWeight >= entry.weight) {
+			while (victimCount-- > 0) {
+				evict(main, main.keySet().iterator().next());
+			}
+
+			main.put(globalId, entry);
+			mainWeight += entry.weight;
+		} else {
+			evicted(entry);
+		}
+	}
+
+	/**
+	 * Evicts a certain entry from one of the cache areas.
+	 *
+	 * @param area     The cache area
+	 * @param globalId The global ID of the entry to evict
+	 */
+	private void evict(Map<String, CacheEntry> area, String globalId) {
+		CacheEntry entry = area.remove(globalId);
+
+		if (area == window) {
+			windowWeight -= entry.weight;
+		} else {
+			mainWeight -= entry.weight;
+		}
+
+		evicted(entry);
+	}
+
+	/**
+	 * Moves the least recently used entries out of the admission window until
+	 * it's weight is below it's maximum.
+	 */
+	private void evictFromWindow() {
+		long windowMaxWeight = maxWeight - getMainMaxWeight();
+
+		while (windowWeight > windowMaxWeight && !window.isEmpty()) {
+			Iterator<Map.Entry<String, CacheEntry>> entries =
+				window.entrySet().iterator();
+
+			Map.Entry<String, CacheEntry> eldest = entries.next();
+			CacheEntry entry = eldest.getValue();
+
+			entries.remove();
+			windowWeight -= entry.weight;
+			admit(eldest.getKey(), entry);
+		}
+	}
+
+	/**
+	 * Notifies that an entry has been evicted from the cache.
+	 *
+	 * @param entry The evicted entry
+	 */
+	private void evicted(CacheEntry entry) {
+		entry.entity.set(CACHE_ENTITY, Boolean.FALSE);
+		EntityManager.getCacheStatistics().recordEviction(
+			entry.entity.getClass());
+	}
+
+	/**
+	 * Returns the cache entry for a certain global ID.
+	 *
+	 * @param globalId The global entity ID
+	 * @return The entry or NULL for none
+	 */
+	private CacheEntry getEntry(String globalId) {
+		CacheEntry entry = window.get(globalId);
+
+		if (entry == null) {
+			entry = main.get(globalId);
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Returns the expiration times for a certain entity type.
+	 *
+	 * @param entityType The entity type
+	 * @return A two-element array containing time to live and maximum idle
+	 * time
+	 */
+	private long[] getExpiry(Class<? extends Entity> entityType) {
+		long[] expiry = typeExpiry.get(entityType);
+
+		if (expiry == null) {
+			expiry = new long[] { defaultTimeToLive, defaultMaxIdleTime };
+		}
+
+		return expiry;
+	}
+
+	/**
+	 * Returns the maximum weight of the main cache area.
+	 *
+	 * @return The main area maximum weight
+	 */
+	private long getMainMaxWeight() {
+		return maxWeight - Math.max(1, maxWeight * WINDOW_PERCENTAGE / 100);
+	}
+
+	/**
+	 * Removes all expired entries from a cache area.
+	 *
+	 * @param area The cache area
+	 * @param time The current time
+	 * @return The accumulated weight of the removed entries
+	 */
+	private long removeExpiredEntries(Map<String, CacheEntry> area,
+		long time) {
+		Iterator<CacheEntry> entries = area.values().iterator();
+		long removedWeight = 0;
+
+		while (entries.hasNext()) {
+			CacheEntry entry = entries.next();
+
+			if (entry.isExpired(time)) {
+				entries.remove();
+				removedWeight += entry.weight;
+				evicted(entry);
+			}
+		}
+
+		return removedWeight;
+	}
+
+	/**
+	 * A cache entry that contains an entity and it's metadata.
+	 *
+	 * @author eso
+	 */
+	private static class CacheEntry {
+
+		final Entity entity;
+
+		final int weight;
+
+		final long createTime;
+
+		final long timeToLive;
+
+		final long maxIdleTime;
+
+		long lastAccess;
+
+		/**
+		 * Creates a new instance.
+		 *
+		 * @param entity      The cached entity
+		 * @param weight      The entity weight
+		 * @param timeToLive  The time to live or zero for unlimited
+		 * @param maxIdleTime The maximum idle time or zero for unlimited
+		 */
+		CacheEntry(Entity entity, int weight, long timeToLive,
+			long maxIdleTime) {
+			this.entity = entity;
+			this.weight = weight;
+			this.timeToLive = timeToLive;
+			this.maxIdleTime = maxIdleTime;
+
+			createTime = System.currentTimeMillis();
+			lastAccess = createTime;
+		}
+
+		/**
+		 * Checks whether this entry has expired.
+		 *
+		 * @param time The current time
+		 * @return TRUE if expired
+		 */
+		boolean isExpired(long time) {
+			return (timeToLive > 0 && time - createTime > timeToLive) ||
+				(maxIdleTime > 0 && time - lastAccess > maxIdleTime);
+		}
+	}
+
+	/**
+	 * A count-min sketch with four hash functions that records the approximate
+	 * access frequencies of cache keys. The counters are halved periodically
+	 * to let the frequencies of formerly popular keys decay.
+	 *
+	 * @author eso
+	 */
+	private static class FrequencySketch {
+
+		private static final int[] SEEDS =
+			{ 0x97cb3127, 0xb0f3a5e3, 0x61c88647, 0x7feb352d };
+
+		private static final int MAX_COUNT = 15;
+
+		private final int[][] counters;
+
+		private final int mask;
+
+		private final int sampleSize;
+
+		private int additions = 0;
+
+		/**
+		 * Creates a new instance.
+		 *
+		 * @param expectedSize The expected number of distinct keys
+		 */
+		FrequencySketch(int expectedSize) {
+			int width = Integer.highestOneBit(Math.max(16, expectedSize));
+
+			if (width < expectedSize) {
+				width <<= 1;
+			}
+
+			width = Math.min(width, 1 << 20);
+
+			counters = new int[SEEDS.length][width];
+			mask = width - 1;
+			sampleSize = 10 * width;
+		}
+
+		/**
+		 * Returns the estimated frequency of a key.
+		 *
+		 * @param key The key
+		 * @return The frequency estimate
+		 */
+		int frequency(Object key) {
+			int hash = spread(key.hashCode());
+			int frequency = MAX_COUNT;
+
+			for (int i = 0; i < SEEDS.length; i++) {
+				frequency =
+					Math.min(frequency, counters[i][index(hash, i)]);
+			}
+
+			return frequency;
+		}
+
+		/**
+		 * Increments the frequency counters of a key.
+		 *
+		 * @param key The key
+		 */
+		void increment(Object key) {
+			int hash = spread(key.hashCode());
+
+			for (int i = 0; i < SEEDS.length; i++) {
+				int[] row = counters[i];
+				int index = index(hash, i);
+
+				if (row[index] < MAX_COUNT) {
+					row[index]++;
+				}
+			}
+
+			if (++additions >= sampleSize) {
+				reset();
+			}
+		}
+
+		/**
+		 * Calculates the counter index of a hash value for a certain hash
+		 * function.
+		 *
+		 * @param hash The hash value
+		 * @param i    The hash function index
+		 * @return The counter index
+		 */
+		private int index(int hash, int i) {
+			int h = hash * SEEDS[i];
+
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		/**
+		 * Halves all counters to age the recorded frequencies.
+		 */
+		private void reset() {
+			for (int[] row : counters) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] >>>= 1;
+				}
+			}
+
+			additions /= 2;
+		}
+
+		/**
+		 * Applies a supplementary hash function to a hash code.
+		 *
+		 * @param hashCode The original hash code
+		 * @return The spread hash value
+		 */
+		private int spread(int hashCode) {
+			int h = hashCode * 0x9e3779b9;
+
+			return h ^ (h >>> 15);
+		}
+	}
+}
@@ -18,13 +18,18 @@ package de.esoco.history;
 
 import de.esoco.entity.Entity;
 import de.esoco.entity.EntityManager;
+import de.esoco.entity.EntityRelationTypes;
 import de.esoco.entity.ExtraAttributes;
+import de.esoco.entity.TextCompression;
 import de.esoco.history.HistoryRecord.HistoryType;
 import de.esoco.history.HistoryRecord.ReferenceType;
+import de.esoco.lib.expression.Action;
 import de.esoco.lib.expression.Predicate;
 import de.esoco.lib.expression.Predicates;
 import de.esoco.lib.manage.TransactionException;
+import de.esoco.lib.manage.TransactionManager;
 import de.esoco.storage.Query;
+import de.esoco.storage.QueryPredicate;
 import de.esoco.storage.QueryResult;
 import de.esoco.storage.Storage;
 import de.esoco.storage.StorageException;
@@ -35,10 +40,12 @@ import org.obrel.core.RelationType;
 import org.obrel.core.RelationTypes;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
+import static de.esoco.entity.EntityRelationTypes.STORAGE_COMPRESSION_THRESHOLD;
 import static de.esoco.history.HistoryRecord.DETAILS;
 import static de.esoco.history.HistoryRecord.HistoryType.GROUP;
 import static de.esoco.history.HistoryRecord.ORIGIN;
@@ -51,9 +58,17 @@ import static de.esoco.history.HistoryRecord.TYPE;
 import static de.esoco.history.HistoryRecord.VALUE;
 import static de.esoco.lib.expression.Predicates.equalTo;
 import static de.esoco.lib.expression.Predicates.greaterOrEqual;
+import static de.esoco.lib.expression.Predicates.greaterThan;
 import static de.esoco.lib.expression.Predicates.ifProperty;
+import static de.esoco.lib.expression.Predicates.isNull;
 import static de.esoco.lib.expression.Predicates.lessOrEqual;
+import static de.esoco.lib.expression.Predicates.lessThan;
+import static de.esoco.lib.expression.Predicates.not;
 import static de.esoco.storage.StoragePredicates.forType;
+import static de.esoco.storage.StoragePredicates.like;
+import static de.esoco.storage.StoragePredicates.sortBy;
+import static de.esoco.storage.StorageRelationTypes.QUERY_LIMIT;
+import static de.esoco.storage.StorageRelationTypes.QUERY_OFFSET;
 import static org.obrel.core.RelationTypes.newFlagType;
 
 /**
@@ -62,6 +77,17 @@ import static org.obrel.core.RelationTypes.newFlagType;
  * are thread-based, i.e. they record history entries based on the invoking
  * thread.
  *
+ * <p>By default single history records are stored synchronously by the
+ * invoking thread. An application can enable an asynchronous write-behind
+ * mode with {@link #setWriteBehind(int)} in which such records are added to
+ * a bounded queue and stored in batches by a background thread. Records that
+ * are created while a transaction is active will only be queued when that
+ * transaction is committed and discarded on a rollback, but they are not
+ * stored as part of the transaction. Code that needs to store history
+ * records as part of the current transaction can still do so with
+ * {@link #beginBatch()} and {@link #commitBatch()}, which always store the
+ * records synchronously.</p>
+ *
  * @author eso
  */
 @RelationTypeNamespace("de.esoco.history")
@@ -95,9 +121,23 @@ public class HistoryManager {
 	public static final RelationType<Map<String, String>>
 		HISTORY_NOTE_TEMPLATES = ExtraAttributes.newOrderedMapExtraAttribute();
 
+	/**
+	 * The number of history records that are processed together by
+	 * {@link #archiveHistory(Date, Action)} and
+	 * {@link #compressHistoryValues()}.
+	 */
+	public static final int ARCHIVE_CHUNK_SIZE = 100;
+
+	private static final long WRITER_SHUTDOWN_TIMEOUT = 10000;
+
 	private static ThreadLocal<HistoryRecord> threadHistoryGroup =
 		new ThreadLocal<HistoryRecord>();
 
+	private static ThreadLocal<List<HistoryRecord>> threadRecordBatch =
+		new ThreadLocal<List<HistoryRecord>>();
+
+	private static volatile HistoryWriter historyWriter = null;
+
 	static {
 		RelationTypes.init(HistoryManager.class);
 	}
@@ -164,6 +204,50 @@ public class HistoryManager {
 		return query;
 	}
 
+	/**
+	 * Archives all history records that have been created before a certain
+	 * date. This allows to keep the size of the history storage bounded by
+	 * moving old records to other (cold) storage. The records are processed
+	 * in chunks of {@value #ARCHIVE_CHUNK_SIZE} root records in the order of
+	 * their creation time. Each root record will be handed to the given
+	 * archiver function, including it's details, and then deleted together
+	 * with it's details. If the archiver throws an exception the archiving
+	 * stops and the current record will not be deleted.
+	 *
+	 * @param before   The date before which records will be archived
+	 * @param archiver The function that moves each record to the archive
+	 * @return The number of archived root records
+	 * @throws StorageException     If accessing the history storage fails
+	 * @throws TransactionException If deleting a record fails
+	 */
+	public static int archiveHistory(Date before,
+		Action<? super HistoryRecord> archiver)
+		throws StorageException, TransactionException {
+		Predicate<Relatable> criteria = Predicates.and(
+			ifProperty(PARENT, isNull()),
+			ifProperty(TIME, lessThan(before)));
+
+		QueryPredicate<HistoryRecord> oldRecords =
+			forType(HistoryRecord.class,
+				Predicates.and(criteria, sortBy(TIME, true)));
+
+		int count = 0;
+		List<HistoryRecord> records;
+
+		do {
+			records =
+				EntityManager.queryEntities(oldRecords, ARCHIVE_CHUNK_SIZE);
+
+			for (HistoryRecord record : records) {
+				archiver.evaluate(record);
+				EntityManager.delete(record, true);
+				count++;
+			}
+		} while (records.size() == ARCHIVE_CHUNK_SIZE);
+
+		return count;
+	}
+
 	/**
 	 * Begins a new group of history records for the current thread. The
 	 * topmost
@@ -188,6 +272,24 @@ public class HistoryManager {
 		threadHistoryGroup.set(group);
 	}
 
+	/**
+	 * Starts a batch of history records for the current thread. Until the
+	 * batch is finished with {@link #commitBatch()} or
+	 * {@link #rollbackBatch()} all history records that would otherwise be
+	 * stored immediately will be collected and then stored together when the
+	 * batch is committed.
+	 *
+	 * @throws IllegalStateException If a batch is already active for the
+	 *                               current thread
+	 */
+	public static void beginBatch() {
+		if (threadRecordBatch.get() != null) {
+			throw new IllegalStateException("History batch already active");
+		}
+
+		threadRecordBatch.set(new ArrayList<HistoryRecord>());
+	}
+
 	/**
 	 * Commits a group of history records. The group must previously have been
 	 * started with a call to {@link #begin(Entity, Entity, String)}.
@@ -215,10 +317,147 @@ public class HistoryManager {
 				threadHistoryGroup.remove();
 
 				if (keep) {
-					EntityManager.storeEntity(record, null);
+					storeRecord(record);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Commits a batch of history records that has been started with
+	 * {@link #beginBatch()} by storing all collected records with
+	 * {@link EntityManager#storeEntities(Collection, Entity)}.
+	 *
+	 * @throws TransactionException If storing the records fails
+	 */
+	public static void commitBatch() throws TransactionException {
+		List<HistoryRecord> batch = threadRecordBatch.get();
+
+		if (batch == null) {
+			throw new IllegalStateException("Unmatched call to commitBatch()");
+		}
+
+		threadRecordBatch.remove();
+
+		if (!batch.isEmpty()) {
+			EntityManager.storeEntities(batch, null);
+		}
+	}
+
+	/**
+	 * Migrates existing history records to the compressed storage of long
+	 * values that has been enabled with {@link #setValueCompression(int)}.
+	 * The records that are not compressed yet will be read in chunks of
+	 * {@link #ARCHIVE_CHUNK_SIZE} records ordered by ID and those with values
+	 * that are longer than the compression threshold will be stored again,
+	 * which will then store the compressed values. Each chunk is committed in
+	 * a separate transaction so that a failure only rolls back the current
+	 * chunk. Invoking this method again will continue with the records that
+	 * are not compressed yet.
+	 *
+	 * @return The number of migrated history records
+	 * @throws StorageException      If accessing the history storage fails
+	 * @throws TransactionException  If committing the migration fails
+	 * @throws IllegalStateException If value compression is not enabled
+	 */
+	@SuppressWarnings({ "boxing", "unchecked" })
+	public static int compressHistoryValues()
+		throws StorageException, TransactionException {
+		Integer threshold = VALUE.get(STORAGE_COMPRESSION_THRESHOLD);
+
+		if (threshold == null || threshold <= 0) {
+			throw new IllegalStateException(
+				"History value compression not enabled");
+		}
+
+		RelationType<Long> idAttribute =
+			(RelationType<Long>) (RelationType<?>) EntityManager
+				.getEntityDefinition(HistoryRecord.class)
+				.getIdAttribute();
+
+		Predicate<Relatable> uncompressed = ifProperty(VALUE,
+			not(like(TextCompression.COMPRESSED_PREFIX + "%")));
+
+		long lastId = 0;
+		int chunkSize;
+		int count = 0;
+
+		do {
+			QueryPredicate<HistoryRecord> chunk = forType(HistoryRecord.class,
+				Predicates.and(uncompressed,
+					Predicates.and(ifProperty(idAttribute, greaterThan(lastId)),
+						sortBy(idAttribute, true))));
+
+			chunk.set(QUERY_LIMIT, ARCHIVE_CHUNK_SIZE);
+			chunkSize = 0;
+
+			Storage storage = getHistoryStorage();
+
+			TransactionManager.begin();
+			TransactionManager.addTransactionElement(storage);
+
+			try {
+				Query<HistoryRecord> query = storage.query(chunk);
+
+				try {
+					QueryResult<HistoryRecord> result = query.execute();
+
+					while (result.hasNext()) {
+						HistoryRecord record = result.next();
+						String value = record.get(VALUE);
+
+						lastId = record.getId();
+						chunkSize++;
+
+						if (value != null && value.length() > threshold) {
+							storage.store(record);
+							count++;
+						}
+					}
+				} finally {
+					query.close();
 				}
+
+				TransactionManager.commit();
+			} catch (Exception e) {
+				TransactionManager.rollback();
+
+				throw e;
+			} finally {
+				storage.release();
 			}
+		} while (chunkSize == ARCHIVE_CHUNK_SIZE);
+
+		return count;
+	}
+
+	/**
+	 * Creates the criteria for a query of history records. Criteria that are
+	 * NULL will be ignored.
+	 *
+	 * @param target   The target entity to search records for
+	 * @param type     The type of the history records to query or NULL
+	 * @param fromDate The start date for the queried records or NULL
+	 * @param toDate   The end date for the queried records or NULL
+	 * @param origin   The origin entity to search records for or NULL
+	 * @return The query criteria
+	 * @throws IllegalArgumentException If the target entity is NULL
+	 */
+	private static Predicate<Relatable> createHistoryCriteria(Entity target,
+		HistoryType type, Date fromDate, Date toDate, Entity origin) {
+		if (target == null) {
+			throw new IllegalArgumentException("Target must not be NULL");
 		}
+
+		Predicate<Relatable> criteria = null;
+
+		criteria = addEqualCriterion(criteria, TARGET, target);
+		criteria = addEqualCriterion(criteria, ORIGIN, origin);
+		criteria = addEqualCriterion(criteria, TYPE, type);
+		criteria = addTimeCriterion(criteria, fromDate, true);
+		criteria = addTimeCriterion(criteria, toDate, false);
+
+		return criteria;
 	}
 
 	/**
@@ -253,6 +492,45 @@ public class HistoryManager {
 		return record;
 	}
 
+	/**
+	 * Waits until all history records that have been queued for write-behind
+	 * have been stored. Returns immediately if write-behind is not enabled.
+	 *
+	 * @param timeout The maximum time to wait in milliseconds
+	 * @return TRUE if all queued records have been stored, FALSE if the
+	 * timeout has been reached before
+	 */
+	public static boolean flush(long timeout) {
+		HistoryWriter writer = historyWriter;
+
+		return writer == null || writer.flush(timeout);
+	}
+
+	/**
+	 * Invokes an action on all history entries for a target object. Other
+	 * than {@link #getHistoryFor(Entity, HistoryType, Date, Date, Entity)}
+	 * this method doesn't read all records into memory but reads them
+	 * incrementally from the history storage. Criteria that are NULL will be
+	 * ignored.
+	 *
+	 * @param target   The target entity to search records for
+	 * @param type     The type of the history records to query or NULL
+	 * @param fromDate The start date for the queried records or NULL
+	 * @param toDate   The end date for the queried records or NULL
+	 * @param origin   The origin entity to search records for or NULL
+	 * @param action   The action to invoke for each history record
+	 * @throws StorageException         If querying the history storage fails
+	 * @throws IllegalArgumentException If the target entity is NULL
+	 */
+	public static void forEachHistoryRecord(Entity target, HistoryType type,
+		Date fromDate, Date toDate, Entity origin,
+		Action<? super HistoryRecord> action) throws StorageException {
+		Predicate<Relatable> criteria =
+			createHistoryCriteria(target, type, fromDate, toDate, origin);
+
+		EntityManager.forEach(HistoryRecord.class, criteria, action);
+	}
+
 	/**
 	 * Returns the history entries for a target object that have a certain
 	 * type.
@@ -290,40 +568,45 @@ public class HistoryManager {
 	public static List<HistoryRecord> getHistoryFor(Entity target,
 		HistoryType type, Date fromDate, Date toDate, Entity origin)
 		throws StorageException {
-		if (target == null) {
-			throw new IllegalArgumentException("Target must not be NULL");
-		}
+		Predicate<Relatable> criteria =
+			createHistoryCriteria(target, type, fromDate, toDate, origin);
 
-		Predicate<Relatable> criteria = null;
-
-		criteria = addEqualCriterion(criteria, TARGET, target);
-		criteria = addEqualCriterion(criteria, ORIGIN, origin);
-		criteria = addEqualCriterion(criteria, TYPE, type);
-		criteria = addTimeCriterion(criteria, fromDate, true);
-		criteria = addTimeCriterion(criteria, toDate, false);
-
-		Storage storage = getHistoryStorage();
-
-		try {
-			Query<HistoryRecord> query =
-				storage.query(forType(HistoryRecord.class, criteria));
+		return queryHistory(forType(HistoryRecord.class, criteria));
+	}
 
-			try {
-				QueryResult<HistoryRecord> result = query.execute();
+	/**
+	 * Returns a page of the history entries for a target object, sorted by
+	 * descending time. This allows to read large histories incrementally
+	 * instead of reading all records at once like
+	 * {@link #getHistoryFor(Entity, HistoryType, Date, Date, Entity)}.
+	 * Criteria that are NULL will be ignored.
+	 *
+	 * @param target   The target entity to search records for
+	 * @param type     The type of the history records to query or NULL
+	 * @param fromDate The start date for the queried records or NULL
+	 * @param toDate   The end date for the queried records or NULL
+	 * @param origin   The origin entity to search records for or NULL
+	 * @param offset   The index of the first record to return
+	 * @param limit    The maximum number of records to return
+	 * @return A list of history records that match the given criteria (may be
+	 * empty but will never be NULL)
+	 * @throws StorageException         If querying the history storage fails
+	 * @throws IllegalArgumentException If the target entity is NULL
+	 */
+	@SuppressWarnings("boxing")
+	public static List<HistoryRecord> getHistoryFor(Entity target,
+		HistoryType type, Date fromDate, Date toDate, Entity origin,
+		int offset, int limit) throws StorageException {
+		Predicate<Relatable> criteria =
+			createHistoryCriteria(target, type, fromDate, toDate, origin);
 
-				List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+		QueryPredicate<HistoryRecord> history = forType(HistoryRecord.class,
+			Predicates.and(criteria, sortBy(TIME, false)));
 
-				while (result.hasNext()) {
-					records.add(result.next());
-				}
+		history.set(QUERY_OFFSET, offset);
+		history.set(QUERY_LIMIT, limit);
 
-				return records;
-			} finally {
-				query.close();
-			}
-		} finally {
-			storage.release();
-		}
+		return queryHistory(history);
 	}
 
 	/**
@@ -369,6 +652,48 @@ public class HistoryManager {
 		return threadHistoryGroup.get() != null;
 	}
 
+	/**
+	 * Checks whether the asynchronous write-behind of history records has
+	 * been enabled with {@link #setWriteBehind(int)}.
+	 *
+	 * @return TRUE if write-behind is enabled
+	 */
+	public static boolean isWriteBehind() {
+		return historyWriter != null;
+	}
+
+	/**
+	 * Queries history records and returns them in a list.
+	 *
+	 * @param history The query predicate for the history records
+	 * @return A list of the queried history records
+	 * @throws StorageException If querying the history storage fails
+	 */
+	private static List<HistoryRecord> queryHistory(
+		QueryPredicate<HistoryRecord> history) throws StorageException {
+		Storage storage = getHistoryStorage();
+
+		try {
+			Query<HistoryRecord> query = storage.query(history);
+
+			try {
+				QueryResult<HistoryRecord> result = query.execute();
+
+				List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+				while (result.hasNext()) {
+					records.add(result.next());
+				}
+
+				return records;
+			} finally {
+				query.close();
+			}
+		} finally {
+			storage.release();
+		}
+	}
+
 	/**
 	 * Records a history entry. If a history group has been started before by
 	 * means of {@link #begin(Entity, Entity, String)} the new entry will be
@@ -421,7 +746,7 @@ public class HistoryManager {
 				createRecord(type, origin, target, rootTarget, value,
 					referenceType, referenceValue);
 
-			EntityManager.storeEntity(record, null);
+			storeRecord(record);
 		} else {
 			group.addDetail(type, target, value, referenceType,
 				referenceValue);
@@ -439,11 +764,116 @@ public class HistoryManager {
 		threadHistoryGroup.remove();
 	}
 
+	/**
+	 * Discards a batch of history records that has been started with
+	 * {@link #beginBatch()}. Additional invocations of this method will be
+	 * ignored.
+	 */
+	public static void rollbackBatch() {
+		threadRecordBatch.remove();
+	}
+
+	/**
+	 * Replaces the writer for history records and shuts down the previous
+	 * writer after it has stored all queued records. Package-private for
+	 * testing, applications should use {@link #setWriteBehind(int)}.
+	 *
+	 * @param writer The new writer or NULL to store records synchronously
+	 */
+	static synchronized void setHistoryWriter(HistoryWriter writer) {
+		HistoryWriter previousWriter = historyWriter;
+
+		historyWriter = writer;
+
+		if (previousWriter != null) {
+			previousWriter.shutdown(WRITER_SHUTDOWN_TIMEOUT);
+		}
+	}
+
+	/**
+	 * Enables or disables the compressed storage of long history values like
+	 * the change descriptions of entities. If enabled, values that are longer
+	 * than the given number of characters will be stored in a compressed form
+	 * that is decompressed transparently when history records are read. The
+	 * compression affects only newly stored records, existing records can be
+	 * migrated with {@link #compressHistoryValues()}. Compressed values will
+	 * still be decompressed after the compression has been disabled.
+	 *
+	 * @param threshold The minimum value length to compress or zero to
+	 *                  disable compression
+	 * @see EntityRelationTypes#STORAGE_COMPRESSION_THRESHOLD
+	 */
+	@SuppressWarnings("boxing")
+	public static void setValueCompression(int threshold) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException(
+				"Invalid compression threshold: " + threshold);
+		}
+
+		VALUE.set(STORAGE_COMPRESSION_THRESHOLD, threshold);
+	}
+
+	/**
+	 * Enables or disables the asynchronous write-behind of history records.
+	 * If enabled, history records that are not part of a batch will be added
+	 * to a queue with the given capacity and stored in batches by a
+	 * background thread. If the queue is full records will be stored
+	 * synchronously by the invoking thread. If write-behind had been enabled
+	 * before all records in the previous queue will be stored before this
+	 * method returns.
+	 *
+	 * @param queueCapacity The capacity of the record queue or zero to
+	 *                      disable write-behind
+	 */
+	public static synchronized void setWriteBehind(int queueCapacity) {
+		if (queueCapacity < 0) {
+			throw new IllegalArgumentException(
+				"Invalid queue capacity: " + queueCapacity);
+		}
+
+		HistoryWriter writer = null;
+
+		if (queueCapacity > 0) {
+			writer = new HistoryWriter(queueCapacity);
+			writer.start();
+		}
+
+		setHistoryWriter(writer);
+	}
+
 	/**
 	 * Performs a shutdown of the history manager and frees all allocated
-	 * resources.
+	 * resources. If write-behind is enabled all queued history records will
+	 * be stored before the shutdown.
 	 */
 	public static void shutdown() {
+		setWriteBehind(0);
+
 		threadHistoryGroup = null;
+		threadRecordBatch = null;
+	}
+
+	/**
+	 * Stores a history record or adds it to the current record batch if one
+	 * is active. If write-behind is enabled the record will be queued for
+	 * asynchronous storage if possible. If a transaction is active the record
+	 * will only be queued after the transaction has been committed.
+	 *
+	 * @param record The record to store
+	 * @throws TransactionException If storing the record fails
+	 */
+	private static void storeRecord(HistoryRecord record)
+		throws TransactionException {
+		List<HistoryRecord> batch = threadRecordBatch.get();
+		HistoryWriter writer = historyWriter;
+
+		if (batch != null) {
+			batch.add(record);
+		} else if (writer != null && TransactionManager.isInTransaction()) {
+			TransactionManager.addTransactionElement(
+				writer.addOnCommit(record));
+		} else if (writer == null || !writer.add(record)) {
+			EntityManager.storeEntity(record, null);
+		}
 	}
 }
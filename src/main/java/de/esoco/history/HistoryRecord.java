@@ -29,6 +29,7 @@ import java.util.List;
 import java.util.Map;
 
 import static de.esoco.entity.EntityRelationTypes.ENTITY_ID;
+import static de.esoco.entity.EntityRelationTypes.STORAGE_COMPRESSION_THRESHOLD;
 import static de.esoco.entity.EntityRelationTypes.arbitraryEntityAttribute;
 import static de.esoco.entity.EntityRelationTypes.childAttribute;
 import static de.esoco.entity.EntityRelationTypes.parentAttribute;
@@ -121,7 +122,8 @@ public class HistoryRecord extends Entity {
 	public static final RelationType<String> REFERENCE = newType();
 
 	/**
-	 * The value of the history record
+	 * The value of the history record. Long values can be stored compressed,
+	 * see {@link HistoryManager#setValueCompression(int)}.
 	 */
 	public static final RelationType<String> VALUE = newType();
 
@@ -164,6 +166,9 @@ public class HistoryRecord extends Entity {
 			ORIGIN);
 		setAttributeDisplayProperty(HistoryRecord.class, CONTENT_TYPE,
 			ContentType.DATE_TIME, TIME);
+
+		// decompress values by default even if compression is disabled
+		VALUE.set(STORAGE_COMPRESSION_THRESHOLD, Integer.valueOf(0));
 	}
 
 	/**
@@ -0,0 +1,301 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.history;
+
+import de.esoco.entity.EntityManager;
+import de.esoco.lib.logging.Log;
+import de.esoco.lib.manage.Transactional;
+import de.esoco.storage.Storage;
+import de.esoco.storage.StorageException;
+import de.esoco.storage.StorageManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A background writer that stores history records asynchronously. Records are
+ * added to a bounded queue from which a daemon thread takes them and stores
+ * them in batches of up to {@link #MAX_BATCH_SIZE} records with
+ * {@link EntityManager#storeEntities(java.util.Collection,
+ * de.esoco.entity.Entity)}. If the queue is full or the writer has been shut
+ * down {@link #add(HistoryRecord)} returns FALSE and the caller must store
+ * the record itself. Records that are created inside a transaction can be
+ * queued with {@link #addOnCommit(HistoryRecord)} so that they will only be
+ * stored if the transaction is committed.
+ *
+ * @author eso
+ */
+class HistoryWriter implements Runnable {
+
+	/**
+	 * The maximum number of records that will be stored together.
+	 */
+	static final int MAX_BATCH_SIZE = 100;
+
+	private static final long POLL_INTERVAL = 250;
+
+	private final BlockingQueue<HistoryRecord> queue;
+
+	private final Thread thread;
+
+	private final AtomicInteger pendingRecords = new AtomicInteger();
+
+	private volatile boolean running = true;
+
+	/**
+	 * Creates a new instance. Records can be added immediately but will only
+	 * be written after the writer thread has been started with
+	 * {@link #start()}.
+	 *
+	 * @param capacity The capacity of the record queue
+	 */
+	HistoryWriter(int capacity) {
+		queue = new ArrayBlockingQueue<>(capacity);
+		thread = new Thread(this, "HistoryWriter");
+
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Adds a record to the queue of this writer if possible.
+	 *
+	 * @param record The record to add
+	 * @return TRUE if the record has been queued, FALSE if the queue is full
+	 * or the writer has been shut down
+	 */
+	boolean add(HistoryRecord record) {
+		boolean added = false;
+
+		if (running) {
+			// count before queuing so that flush() cannot miss the record
+			pendingRecords.incrementAndGet();
+			added = queue.offer(record);
+
+			if (!added) {
+				recordsDone(1);
+			}
+		}
+
+		return added;
+	}
+
+	/**
+	 * Returns a transaction element that adds a record to this writer when
+	 * the surrounding transaction is committed and discards it on a rollback.
+	 * If the record cannot be queued on commit it will be stored directly.
+	 *
+	 * @param record The record to add
+	 * @return The transaction element for the record
+	 */
+	Transactional addOnCommit(HistoryRecord record) {
+		return new QueueOnCommit(record);
+	}
+
+	/**
+	 * Waits until all queued records, including those that are currently
+	 * being written, have been stored or the given timeout is reached.
+	 *
+	 * @param timeout The maximum time to wait in milliseconds
+	 * @return TRUE if all records have been stored, FALSE on timeout
+	 */
+	boolean flush(long timeout) {
+		long end = System.currentTimeMillis() + timeout;
+
+		synchronized (this) {
+			while (pendingRecords.get() > 0 &&
+				System.currentTimeMillis() < end) {
+				try {
+					wait(POLL_INTERVAL);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+
+					break;
+				}
+			}
+		}
+
+		return pendingRecords.get() == 0;
+	}
+
+	/**
+	 * Takes records from the queue and stores them until the writer is shut
+	 * down.
+	 */
+	@Override
+	public void run() {
+		List<HistoryRecord> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+		while (running || !queue.isEmpty()) {
+			try {
+				HistoryRecord record =
+					queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+
+				if (record != null) {
+					batch.add(record);
+					queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+					write(batch);
+					recordsDone(batch.size());
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				running = false;
+			}
+		}
+	}
+
+	/**
+	 * Shuts down this writer after storing the remaining queued records. If
+	 * the writer thread doesn't finish within the given timeout the remaining
+	 * records will be stored by the invoking thread.
+	 *
+	 * @param timeout The maximum time to wait for the writer thread in
+	 *                milliseconds
+	 */
+	void shutdown(long timeout) {
+		running = false;
+
+		try {
+			thread.join(timeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (thread.isAlive()) {
+			thread.interrupt();
+		}
+
+		List<HistoryRecord> remaining = new ArrayList<>();
+
+		queue.drainTo(remaining);
+
+		if (!remaining.isEmpty()) {
+			write(remaining);
+			recordsDone(remaining.size());
+		}
+	}
+
+	/**
+	 * Starts the writer thread.
+	 */
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Decrements the count of pending records and notifies threads waiting in
+	 * {@link #flush(long)} if all records have been processed.
+	 *
+	 * @param count The number of processed records
+	 */
+	private void recordsDone(int count) {
+		if (pendingRecords.addAndGet(-count) == 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Stores a single record directly in a separate storage. Used if a record
+	 * cannot be queued while a transaction is committed because the record
+	 * cannot be stored through the entity manager at that time.
+	 *
+	 * @param record The record to store
+	 * @throws StorageException If storing the record fails
+	 */
+	private static void storeDirectly(HistoryRecord record)
+		throws StorageException {
+		Storage storage = StorageManager.newStorage(HistoryRecord.class);
+
+		try {
+			storage.store(record);
+			storage.commit();
+		} catch (Exception e) {
+			storage.rollback();
+			throw e;
+		} finally {
+			storage.release();
+		}
+	}
+
+	/**
+	 * Stores a batch of history records. If storing the batch fails the
+	 * records will be stored separately so that a single invalid record
+	 * doesn't cause the loss of the complete batch.
+	 *
+	 * @param batch The records to store
+	 */
+	private void write(List<HistoryRecord> batch) {
+		try {
+			EntityManager.storeEntities(batch, null);
+		} catch (Exception e) {
+			for (HistoryRecord record : batch) {
+				try {
+					EntityManager.storeEntity(record, null);
+				} catch (Exception storeFailure) {
+					Log.errorf(storeFailure,
+						"Could not store history record %s", record);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A transaction element that queues a history record when the
+	 * transaction is committed.
+	 *
+	 * @author eso
+	 */
+	private class QueueOnCommit implements Transactional {
+
+		private HistoryRecord record;
+
+		/**
+		 * Creates a new instance.
+		 *
+		 * @param record The record to queue on commit
+		 */
+		QueueOnCommit(HistoryRecord record) {
+			this.record = record;
+		}
+
+		/**
+		 * Adds the record to the queue or stores it directly if that is not
+		 * possible.
+		 */
+		@Override
+		public void commit() throws StorageException {
+			if (!add(record)) {
+				storeDirectly(record);
+			}
+
+			record = null;
+		}
+
+		/**
+		 * Discards the record.
+		 */
+		@Override
+		public void rollback() {
+			record = null;
+		}
+	}
+}
@@ -18,9 +18,19 @@ package de.esoco.lib.comm;
 
 import org.obrel.core.RelationType;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPOutputStream;
 
 import static de.esoco.lib.comm.CommunicationRelationTypes.ENCRYPTION;
 import static org.obrel.core.RelationTypeModifier.PRIVATE;
@@ -35,7 +45,10 @@ import static org.obrel.core.RelationTypes.newType;
  *
  * <p>Where protocol stands for one of the enum constants in {@link Protocol}.
  * For an encrypted connection the scheme <code>graylogs</code> can be used
- * instead.</p>
+ * instead. Encryption is only supported for TCP connections.</p>
+ *
+ * <p>Messages sent over UDP are compressed with GZIP and split into GELF
+ * chunks if the compressed message exceeds {@link #MAX_UDP_CHUNK_SIZE}.</p>
  *
  * @author eso
  */
@@ -46,12 +59,29 @@ public class GraylogEndpoint extends Endpoint {
 	 */
 	public enum Protocol {UDP, TCP}
 
+	/**
+	 * The maximum size of a single UDP datagram, including the GELF chunk
+	 * header.
+	 */
+	public static final int MAX_UDP_CHUNK_SIZE = 8192;
+
+	/**
+	 * The maximum number of chunks of a UDP message as defined by the GELF
+	 * specification.
+	 */
+	public static final int MAX_UDP_CHUNKS = 128;
+
+	private static final int CHUNK_HEADER_SIZE = 12;
+
 	private static final RelationType<Connection> GRAYLOG_SERVER_CONNECTION =
 		newType(PRIVATE);
 
 	private static final RelationType<CommunicationMethod<byte[], ?>>
 		GRAYLOG_SERVER_METHOD = newType(PRIVATE);
 
+	private static final RelationType<DatagramSocket> GRAYLOG_UDP_SOCKET =
+		newType(PRIVATE);
+
 	/**
 	 * Factory method that creates a new communication method for sending
 	 * Graylog messages.
@@ -83,7 +113,13 @@ public class GraylogEndpoint extends Endpoint {
 	 */
 	@Override
 	protected void closeConnection(Connection connection) throws IOException {
-		connection.get(GRAYLOG_SERVER_CONNECTION).close();
+		DatagramSocket udpSocket = connection.get(GRAYLOG_UDP_SOCKET);
+
+		if (udpSocket != null) {
+			udpSocket.close();
+		} else {
+			connection.get(GRAYLOG_SERVER_CONNECTION).close();
+		}
 	}
 
 	/**
@@ -110,20 +146,49 @@ public class GraylogEndpoint extends Endpoint {
 				Endpoint.at(socketAddress).connect(connection));
 			connection.set(GRAYLOG_SERVER_METHOD,
 				SocketEndpoint.binaryRequest(null, null));
-		} else {
+		} else if (hasFlag(ENCRYPTION)) {
 			throw new CommunicationException(
-				"Protocol not implemented: " + protocol);
+				"Encryption not supported for " + protocol);
+		} else {
+			try {
+				DatagramSocket udpSocket = new DatagramSocket();
+
+				udpSocket.connect(new InetSocketAddress(host, port));
+				connection.set(GRAYLOG_UDP_SOCKET, udpSocket);
+			} catch (IOException e) {
+				throw new CommunicationException(e);
+			}
 		}
 	}
 
 	/**
-	 * Sends a message over a Graylog connection.
+	 * Sends a message over a Graylog connection. To prevent the allocation of
+	 * new buffers for each message the buffers for the serialization and
+	 * compression of messages are reused. Instances are therefore
+	 * synchronized and should not be shared between threads that send many
+	 * messages concurrently.
 	 *
 	 * @author eso
 	 */
 	public static class SendGraylogMessage
 		extends CommunicationMethod<GraylogMessage, Void> {
 
+		private final StringBuilder jsonBuffer = new StringBuilder(1024);
+
+		private final MessageBuffer messageBuffer = new MessageBuffer();
+
+		private final Writer messageWriter =
+			new OutputStreamWriter(messageBuffer, StandardCharsets.UTF_8);
+
+		private final MessageBuffer compressionBuffer = new MessageBuffer();
+
+		private final byte[] chunkBuffer = new byte[MAX_UDP_CHUNK_SIZE];
+
+		private final DatagramPacket datagram =
+			new DatagramPacket(chunkBuffer, 0);
+
+		private char[] charBuffer = new char[1024];
+
 		/**
 		 * Creates a new instance.
 		 */
@@ -135,14 +200,148 @@ public class GraylogEndpoint extends Endpoint {
 		 * {@inheritDoc}
 		 */
 		@Override
-		public Void doOn(Connection connection, GraylogMessage message)
-			throws Exception {
-			connection
-				.get(GRAYLOG_SERVER_METHOD)
-				.doOn(connection.get(GRAYLOG_SERVER_CONNECTION),
-					message.toJson().getBytes(StandardCharsets.UTF_8));
+		public synchronized Void doOn(Connection connection,
+			GraylogMessage message) throws Exception {
+			DatagramSocket udpSocket = connection.get(GRAYLOG_UDP_SOCKET);
+
+			jsonBuffer.setLength(0);
+			message.appendJson(jsonBuffer);
+
+			if (udpSocket != null) {
+				encode(jsonBuffer);
+				sendDatagrams(udpSocket, compress(messageBuffer));
+			} else {
+				jsonBuffer.append('\0');
+				encode(jsonBuffer);
+
+				// the binary request needs an array of the exact message size
+				connection
+					.get(GRAYLOG_SERVER_METHOD)
+					.doOn(connection.get(GRAYLOG_SERVER_CONNECTION),
+						Arrays.copyOf(messageBuffer.getData(),
+							messageBuffer.size()));
+			}
 
 			return null;
 		}
+
+		/**
+		 * Compresses an encoded message with GZIP into the compression buffer.
+		 *
+		 * @param message The buffer containing the encoded message
+		 * @return The compression buffer containing the compressed message
+		 * @throws IOException If the compression fails
+		 */
+		private MessageBuffer compress(ByteArrayOutputStream message)
+			throws IOException {
+			compressionBuffer.reset();
+
+			try (OutputStream out = new GZIPOutputStream(compressionBuffer)) {
+				message.writeTo(out);
+			}
+
+			return compressionBuffer;
+		}
+
+		/**
+		 * Encodes a JSON message with UTF-8 into the message buffer. The
+		 * characters are copied into a reusable array so that no intermediate
+		 * string needs to be created.
+		 *
+		 * @param json The JSON message
+		 * @throws IOException If the encoding fails
+		 */
+		private void encode(StringBuilder json) throws IOException {
+			int length = json.length();
+
+			if (charBuffer.length < length) {
+				charBuffer = new char[Math.max(length, charBuffer.length * 2)];
+			}
+
+			json.getChars(0, length, charBuffer, 0);
+			messageBuffer.reset();
+			messageWriter.write(charBuffer, 0, length);
+			messageWriter.flush();
+		}
+
+		/**
+		 * Sends a compressed message in one or more UDP datagrams. If the
+		 * message is larger than {@link #MAX_UDP_CHUNK_SIZE} it will be split
+		 * into GELF chunks which start with the magic bytes 0x1e 0x0f,
+		 * followed by an 8 byte message ID, the sequence number and the
+		 * sequence count.
+		 *
+		 * @param socket  The UDP socket to send the datagrams with
+		 * @param message The compressed message
+		 * @throws IOException If sending a datagram fails
+		 */
+		@SuppressWarnings("boxing")
+		private void sendDatagrams(DatagramSocket socket,
+			MessageBuffer message) throws IOException {
+			byte[] data = message.getData();
+			int size = message.size();
+
+			if (size <= MAX_UDP_CHUNK_SIZE) {
+				datagram.setData(data, 0, size);
+				socket.send(datagram);
+			} else {
+				int chunkDataSize = MAX_UDP_CHUNK_SIZE - CHUNK_HEADER_SIZE;
+				int chunkCount = (size + chunkDataSize - 1) / chunkDataSize;
+
+				if (chunkCount > MAX_UDP_CHUNKS) {
+					throw new CommunicationException(String.format(
+						"Message too large for UDP: %d bytes", size));
+				}
+
+				long messageId = ThreadLocalRandom.current().nextLong();
+
+				chunkBuffer[0] = 0x1e;
+				chunkBuffer[1] = 0x0f;
+
+				for (int i = 0; i < 8; i++) {
+					chunkBuffer[2 + i] = (byte) (messageId >>> (56 - i * 8));
+				}
+
+				chunkBuffer[11] = (byte) chunkCount;
+
+				for (int chunk = 0; chunk < chunkCount; chunk++) {
+					int offset = chunk * chunkDataSize;
+					int length = Math.min(chunkDataSize, size - offset);
+
+					chunkBuffer[10] = (byte) chunk;
+					System.arraycopy(data, offset, chunkBuffer,
+						CHUNK_HEADER_SIZE, length);
+					datagram.setData(chunkBuffer, 0,
+						CHUNK_HEADER_SIZE + length);
+					socket.send(datagram);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A byte array output stream that provides access to its internal buffer
+	 * so that the content can be sent without copying it.
+	 *
+	 * @author eso
+	 */
+	private static class MessageBuffer extends ByteArrayOutputStream {
+
+		/**
+		 * Creates a new instance.
+		 */
+		MessageBuffer() {
+			super(1024);
+		}
+
+		/**
+		 * Returns the internal buffer of this stream. Only the first
+		 * {@link #size()} bytes of the buffer are valid.
+		 *
+		 * @return The buffer array
+		 */
+		byte[] getData() {
+			return buf;
+		}
 	}
 }
@@ -24,9 +24,21 @@ import de.esoco.lib.logging.BusinessLogAspect;
 import de.esoco.lib.logging.Log;
 import de.esoco.lib.logging.LogLevel;
 import de.esoco.lib.logging.LogRecord;
+import org.obrel.core.RelationType;
+import org.obrel.core.RelationTypes;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.obrel.core.RelationTypes.newInitialValueType;
 
 /**
  * A logging implementation that sends log messages to a Graylog server. The
@@ -34,13 +46,57 @@ import java.util.Objects;
  * relation type {@link CommunicationRelationTypes#ENDPOINT_ADDRESS} before
  * invoking the {@link #initLogging()} method.
  *
+ * <p>The messages are sent asynchronously by a background thread over a
+ * single connection that is kept open and re-established after errors. The
+ * messages to be sent are stored in a queue with the capacity
+ * {@link #MESSAGE_QUEUE_SIZE}. If the queue is full because the Graylog
+ * server cannot be reached or is too slow new messages will be dropped. The
+ * number of dropped messages will be reported in a separate warning message
+ * after the sending succeeds again.</p>
+ *
+ * <p>The method {@link #close()} sends the remaining queued messages before
+ * it stops the sender thread. It is registered as a shutdown hook so that
+ * the last messages before a shutdown of the JVM are not lost. If the
+ * logging is initialized again the messages that have not been sent by the
+ * previous sender thread are handed over to the new one.</p>
+ *
  * @author eso
  */
 public class GraylogLogging extends BusinessLogAspect<GraylogMessage> {
 
-	private Endpoint graylogEndpoint;
+	/**
+	 * The maximum number of messages that will be queued for sending.
+	 */
+	public static final RelationType<Integer> MESSAGE_QUEUE_SIZE =
+		newInitialValueType(10000);
+
+	private static final int MAX_BATCH_SIZE = 100;
+
+	private static final int MAX_SEND_ATTEMPTS = 3;
+
+	private static final long MIN_RECONNECT_DELAY = 1000;
+
+	private static final long MAX_RECONNECT_DELAY = 60000;
+
+	private static final long POLL_INTERVAL = 500;
+
+	private static final long CLOSE_TIMEOUT = 5000;
+
+	private static final long HANDOVER_TIMEOUT = 1000;
+
+	static {
+		RelationTypes.init(GraylogLogging.class);
+	}
+
+	private final AtomicLong droppedMessages = new AtomicLong();
+
+	private volatile BlockingQueue<GraylogMessage> messageQueue;
+
+	private MessageSender messageSender;
 
-	private SendGraylogMessage sendGraylogMessage;
+	private Thread senderThread;
+
+	private Thread shutdownHook;
 
 	/**
 	 * Default constructor.
@@ -58,6 +114,37 @@ public class GraylogLogging extends BusinessLogAspect<GraylogMessage> {
 			Objects.requireNonNull(graylogEndpointAddress));
 	}
 
+	/**
+	 * Stops the sender thread after it has sent all queued messages or the
+	 * close timeout has been reached. Messages that are logged after closing
+	 * will be dropped until the logging is initialized again.
+	 */
+	public synchronized void close() {
+		if (shutdownHook != null) {
+			if (Thread.currentThread() != shutdownHook) {
+				try {
+					Runtime.getRuntime().removeShutdownHook(shutdownHook);
+				} catch (IllegalStateException e) {
+					// JVM shutdown already in progress
+				}
+			}
+
+			shutdownHook = null;
+		}
+
+		if (senderThread != null) {
+			messageQueue = null;
+			messageSender.finish();
+
+			if (!join(senderThread, CLOSE_TIMEOUT)) {
+				senderThread.interrupt();
+			}
+
+			messageSender = null;
+			senderThread = null;
+		}
+	}
+
 	/**
 	 * Adds the endpoint address to the string representation generated by the
 	 * superclass.
@@ -135,25 +222,283 @@ public class GraylogLogging extends BusinessLogAspect<GraylogMessage> {
 	 * @see BusinessLogAspect#init()
 	 */
 	@Override
-	protected void init() {
+	protected synchronized void init() {
 		String endpointAddress =
 			get(CommunicationRelationTypes.ENDPOINT_ADDRESS);
 
 		Objects.requireNonNull(endpointAddress);
 
-		graylogEndpoint = Endpoint.at(endpointAddress);
-		sendGraylogMessage = GraylogEndpoint.sendMessage();
+		BlockingQueue<GraylogMessage> queue =
+			new ArrayBlockingQueue<>(get(MESSAGE_QUEUE_SIZE));
+		MessageSender sender =
+			new MessageSender(Endpoint.at(endpointAddress), queue);
+
+		messageQueue = queue;
+
+		if (senderThread != null) {
+			senderThread.interrupt();
+			messageSender.handOver(queue,
+				join(senderThread, HANDOVER_TIMEOUT));
+		}
+
+		messageSender = sender;
+		senderThread = new Thread(sender, "GraylogSender");
+		senderThread.setDaemon(true);
+		senderThread.start();
+
+		if (shutdownHook == null) {
+			shutdownHook = new Thread(this::close, "GraylogLoggingShutdown");
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		}
 	}
 
 	/**
-	 * {@inheritDoc}
+	 * Adds the messages to the queue of the sender thread. Messages that
+	 * exceed the capacity of the queue will be dropped.
+	 *
+	 * @see BusinessLogAspect#processLogObjects(Collection)
 	 */
 	@Override
 	protected void processLogObjects(Collection<GraylogMessage> messages) {
-		try (Connection connection = graylogEndpoint.connect(this)) {
-			for (GraylogMessage message : messages) {
-				sendGraylogMessage.sendTo(connection, message);
+		BlockingQueue<GraylogMessage> queue = messageQueue;
+
+		for (GraylogMessage message : messages) {
+			if (queue == null || !queue.offer(message)) {
+				droppedMessages.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Creates a warning message for the number of dropped messages if
+	 * messages have been dropped since the last invocation.
+	 *
+	 * @return The warning message or NULL if no messages have been dropped
+	 */
+	@SuppressWarnings("boxing")
+	private GraylogMessage createDroppedMessagesWarning() {
+		long dropped = droppedMessages.getAndSet(0);
+		GraylogMessage warning = null;
+
+		if (dropped > 0) {
+			warning = new GraylogMessage(Level.WARNING,
+				String.format("%d log messages dropped", dropped), null);
+		}
+
+		return warning;
+	}
+
+	/**
+	 * Waits for the termination of a thread.
+	 *
+	 * @param thread  The thread to wait for
+	 * @param timeout The maximum time to wait in milliseconds
+	 * @return TRUE if the thread has terminated
+	 */
+	private boolean join(Thread thread, long timeout) {
+		try {
+			thread.join(timeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		return !thread.isAlive();
+	}
+
+	/**
+	 * The runnable of a sender thread that takes batches of messages from a
+	 * queue and sends them to the Graylog server. Each sender has its own
+	 * queue and connection so that a sender that is replaced by a new
+	 * initialization cannot interfere with its successor.
+	 *
+	 * @author eso
+	 */
+	private class MessageSender implements Runnable {
+
+		private final Endpoint endpoint;
+
+		private final BlockingQueue<GraylogMessage> queue;
+
+		private final Deque<GraylogMessage> batch =
+			new ArrayDeque<>(MAX_BATCH_SIZE + 1);
+
+		private final SendGraylogMessage sendMethod =
+			GraylogEndpoint.sendMessage();
+
+		private Connection connection;
+
+		private long reconnectDelay = MIN_RECONNECT_DELAY;
+
+		private volatile boolean finishing = false;
+
+		/**
+		 * Creates a new instance.
+		 *
+		 * @param endpoint The endpoint of the Graylog server
+		 * @param queue    The queue to take the messages from
+		 */
+		MessageSender(Endpoint endpoint, BlockingQueue<GraylogMessage> queue) {
+			this.endpoint = endpoint;
+			this.queue = queue;
+		}
+
+		/**
+		 * The main loop of the sender thread. If a message cannot be sent
+		 * after the maximum number of attempts the server is considered to be
+		 * unreachable and the remaining messages of the current batch will be
+		 * dropped without further attempts.
+		 */
+		@Override
+		public void run() {
+			try {
+				while (!Thread.currentThread().isInterrupted() &&
+					nextBatch()) {
+					sendBatch();
+				}
+			} catch (InterruptedException e) {
+				// terminate thread
+			} finally {
+				closeConnection();
+			}
+		}
+
+		/**
+		 * Signals this sender to terminate after all queued messages have
+		 * been sent.
+		 */
+		void finish() {
+			finishing = true;
+		}
+
+		/**
+		 * Moves the messages that have not been sent by this sender to the
+		 * queue of another sender. Messages that don't fit into the target
+		 * queue will be counted as dropped. The messages of the current batch
+		 * are only handed over if the sender thread has terminated.
+		 *
+		 * @param target     The target queue
+		 * @param terminated TRUE if the thread of this sender has terminated
+		 */
+		void handOver(BlockingQueue<GraylogMessage> target,
+			boolean terminated) {
+			List<GraylogMessage> remaining = new ArrayList<>();
+
+			if (terminated) {
+				remaining.addAll(batch);
+				batch.clear();
 			}
+
+			queue.drainTo(remaining);
+
+			for (GraylogMessage message : remaining) {
+				if (!target.offer(message)) {
+					droppedMessages.incrementAndGet();
+				}
+			}
+		}
+
+		/**
+		 * Closes the connection of this sender if it is open.
+		 */
+		private void closeConnection() {
+			if (connection != null) {
+				try {
+					connection.close();
+				} catch (Exception e) {
+					// ignore errors of already failed connections
+				}
+
+				connection = null;
+			}
+		}
+
+		/**
+		 * Takes the next batch of messages from the queue if the current
+		 * batch has been sent completely.
+		 *
+		 * @return FALSE if this sender is finishing and no more messages are
+		 * available
+		 * @throws InterruptedException If the thread is interrupted while
+		 *                              waiting for messages
+		 */
+		private boolean nextBatch() throws InterruptedException {
+			if (batch.isEmpty()) {
+				GraylogMessage message =
+					queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+
+				if (message != null) {
+					batch.add(message);
+					queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+					GraylogMessage warning = createDroppedMessagesWarning();
+
+					if (warning != null) {
+						batch.add(warning);
+					}
+				}
+			}
+
+			return !(finishing && batch.isEmpty());
+		}
+
+		/**
+		 * Sends the messages of the current batch. A message is removed from
+		 * the batch after it has been sent or dropped so that the batch only
+		 * contains unsent messages if the thread is interrupted.
+		 *
+		 * @throws InterruptedException If the thread is interrupted while
+		 *                              waiting for a reconnect
+		 */
+		private void sendBatch() throws InterruptedException {
+			boolean connectionLost = false;
+			GraylogMessage message;
+
+			while ((message = batch.peek()) != null) {
+				if (connectionLost || !send(message)) {
+					connectionLost = true;
+					droppedMessages.incrementAndGet();
+				}
+
+				batch.poll();
+			}
+		}
+
+		/**
+		 * Sends a single message over the persistent connection. If sending
+		 * fails the connection will be closed and re-established after an
+		 * increasing delay until the maximum number of attempts has been
+		 * reached. The delay is kept after a failure so that the next batch
+		 * continues with the increased delay until the sending succeeds.
+		 *
+		 * @param message The message to send
+		 * @return TRUE if the message has been sent
+		 * @throws InterruptedException If the thread is interrupted while
+		 *                              waiting for a reconnect
+		 */
+		private boolean send(GraylogMessage message)
+			throws InterruptedException {
+			for (int attempt = 1; attempt <= MAX_SEND_ATTEMPTS; attempt++) {
+				try {
+					if (connection == null) {
+						connection = endpoint.connect(GraylogLogging.this);
+					}
+
+					sendMethod.sendTo(connection, message);
+					reconnectDelay = MIN_RECONNECT_DELAY;
+
+					return true;
+				} catch (Exception e) {
+					closeConnection();
+
+					if (attempt < MAX_SEND_ATTEMPTS && !finishing) {
+						Thread.sleep(reconnectDelay);
+						reconnectDelay =
+							Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+					}
+				}
+			}
+
+			return false;
 		}
 	}
 }
@@ -131,22 +131,44 @@ public class GraylogMessage extends RelatedObject {
 	}
 
 	/**
-	 * Returns a string containing a JSON representation of this message.
+	 * Appends the JSON representation of this message to a string builder.
+	 * This allows to serialize multiple messages into the same buffer
+	 * without allocating a new builder for each message. Other than
+	 * {@link #toJson()} this method doesn't add the terminating zero byte
+	 * that is required by the GELF TCP format.
 	 *
-	 * @return The JSON string for this message
+	 * @param json The string builder to append the JSON to
 	 */
-	public String toJson() {
-		StringBuilder jsonMessage = new StringBuilder("{\n");
+	public void appendJson(StringBuilder json) {
+		boolean hasRelations = false;
+
+		json.append("{\n");
 
 		for (Relation<?> relation : getRelations(null)) {
-			if (appendRelation(jsonMessage, relation)) {
-				jsonMessage.append(",\n");
+			if (appendRelation(json, relation)) {
+				json.append(",\n");
+				hasRelations = true;
 			}
 		}
 
-		// remove trailing ',\n'
-		jsonMessage.setLength(jsonMessage.length() - 2);
-		jsonMessage.append("\n}\0");
+		if (hasRelations) {
+			// remove trailing ',\n'
+			json.setLength(json.length() - 2);
+		}
+
+		json.append("\n}");
+	}
+
+	/**
+	 * Returns a string containing a JSON representation of this message.
+	 *
+	 * @return The JSON string for this message
+	 */
+	public String toJson() {
+		StringBuilder jsonMessage = new StringBuilder();
+
+		appendJson(jsonMessage);
+		jsonMessage.append('\0');
 
 		return jsonMessage.toString();
 	}
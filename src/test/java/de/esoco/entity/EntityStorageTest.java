@@ -19,21 +19,33 @@ package de.esoco.entity;
 import de.esoco.lib.expression.predicate.ElementPredicate;
 import de.esoco.lib.manage.TransactionException;
 import de.esoco.lib.property.SortDirection;
+import de.esoco.storage.QueryPredicate;
 import de.esoco.storage.StorageException;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.obrel.core.Relation;
 import org.obrel.core.RelationType;
 import org.obrel.core.RelationTypes;
 import org.obrel.type.MetaTypes;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import static de.esoco.entity.EntityPredicates.forEntity;
 import static de.esoco.entity.EntityPredicates.hasExtraAttribute;
 import static de.esoco.entity.EntityPredicates.ifAttribute;
+import static de.esoco.entity.EntityRelationTypes.EXTRA_ATTRIBUTES_READ;
+import static de.esoco.entity.EntityRelationTypes.NO_ENTITY_CACHING;
+import static de.esoco.entity.EntityRelationTypes.PREFETCH_EXTRA_ATTRIBUTES;
+import static de.esoco.entity.EntityRelationTypes.STREAMING_FETCH_SIZE;
 import static de.esoco.entity.ExtraAttributes.newExtraAttribute;
 import static de.esoco.entity.TestContact.CONTACT_VALUE;
 import static de.esoco.entity.TestPerson.AGE;
@@ -49,8 +61,13 @@ import static de.esoco.lib.expression.Predicates.greaterOrEqual;
 import static de.esoco.lib.expression.Predicates.greaterThan;
 import static de.esoco.lib.expression.Predicates.lessOrEqual;
 import static de.esoco.storage.StoragePredicates.like;
+import static de.esoco.storage.StorageRelationTypes.QUERY_LIMIT;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -118,6 +135,118 @@ public class EntityStorageTest extends AbstractEntityStorageTest {
 		}
 	}
 
+	/**
+	 * Test of the JSON change descriptions of entities.
+	 */
+	@Test
+	public void testChangeDescription()
+		throws StorageException, TransactionException {
+		Entity person = queryPersonByLastName("Test1");
+
+		assertTrue(person.createChangeDescription().isEmpty());
+
+		person.set(AGE, 24);
+
+		String change = person.createChangeDescription();
+
+		assertTrue(change.startsWith("{\n  \"_id\": " + person.getId()));
+		assertTrue(change.contains("\"new\": 24"));
+		assertTrue(change.contains("\"old\": 41"));
+		assertTrue(change.endsWith("\n}"));
+
+		EntityManager.storeEntity(person, null);
+		assertTrue(person.createChangeDescription().isEmpty());
+	}
+
+	/**
+	 * Tests the lookup of children through the child index after child list
+	 * modifications with the child management methods and directly.
+	 */
+	@Test
+	public void testChildIndex() throws StorageException, TransactionException {
+		TestPerson person = queryPersonByLastName("Test1");
+		List<TestContact> contacts = person.get(CONTACTS);
+		Relation<List<TestContact>> contactsRelation =
+			person.getRelation(CONTACTS);
+		TestContact first = contacts.get(0);
+		TestContact second = contacts.get(1);
+
+		assertSame(first, ChildIndex.getChild(contactsRelation, first.getId()));
+		assertSame(second,
+			ChildIndex.getChild(contactsRelation, second.getId()));
+
+		addContacts(person, null, null, "555-1234");
+		EntityManager.storeEntity(person, null);
+
+		TestContact added = contacts.get(2);
+
+		assertTrue(added.getId() > 0);
+		assertSame(added, ChildIndex.getChild(contactsRelation, added.getId()));
+
+		person.removeChildren(CONTACTS, Arrays.asList(first));
+		assertNull(ChildIndex.getChild(contactsRelation, first.getId()));
+		assertSame(added, ChildIndex.getChild(contactsRelation, added.getId()));
+
+		contacts.remove(added);
+		assertNull(ChildIndex.getChild(contactsRelation, added.getId()));
+		assertSame(second,
+			ChildIndex.getChild(contactsRelation, second.getId()));
+
+		contacts.set(0, added);
+		assertSame(added, ChildIndex.getChild(contactsRelation, added.getId()));
+		assertNull(ChildIndex.getChild(contactsRelation, second.getId()));
+
+		// a removal after a direct modification must not validate the index
+		contacts.add(second);
+		person.removeChildren(CONTACTS, Arrays.asList(added));
+		assertSame(second,
+			ChildIndex.getChild(contactsRelation, second.getId()));
+		assertNull(ChildIndex.getChild(contactsRelation, added.getId()));
+	}
+
+	/**
+	 * Tests the caching of entities in type-specific concurrent caches.
+	 */
+	@Test
+	public void testConcurrentCaching() throws StorageException {
+		EntityManager.setConcurrentCaching(true);
+
+		try {
+			TestPerson person = queryPersonByLastName("Test1");
+
+			assertTrue(person.isCached());
+			assertSame(person, queryPersonByLastName("Test1"));
+			assertSame(person,
+				EntityManager.getCachedEntity(TestPerson.class,
+					person.getId()));
+			EntityCacheStatistics.Counters counters = EntityManager
+				.getCacheStatistics()
+				.getCounters(TestPerson.class);
+			long hits = counters.getHits();
+			long misses = counters.getMisses();
+
+			assertTrue(hits > 0);
+
+			// a cached lookup must be counted exactly once
+			assertSame(person,
+				EntityManager.queryEntity(TestPerson.class, person.getId()));
+			assertEquals(hits + 1, counters.getHits());
+			assertEquals(misses, counters.getMisses());
+
+			EntityManager.removeCachedEntity(person);
+			assertNull(EntityManager.getCachedEntity(TestPerson.class,
+				person.getId()));
+			assertNotSame(person, queryPersonByLastName("Test1"));
+
+			long invalidations = counters.getInvalidations();
+
+			EntityManager.invalidateCache();
+			assertEquals(invalidations + 1, counters.getInvalidations());
+		} finally {
+			EntityManager.setConcurrentCaching(false);
+		}
+	}
+
 	/**
 	 * Tests queries by extra attributes.
 	 */
@@ -249,6 +378,72 @@ public class EntityStorageTest extends AbstractEntityStorageTest {
 		assertEquals(person, subPerson.get(PARENT));
 		assertEquals("SubFirst11", subPerson.get(FORENAME));
 		assertEquals(2, subPerson.get(CONTACTS).size());
+
+		List<TestPerson> descendants =
+			EntityManager.queryDescendants(person, Integer.MAX_VALUE);
+
+		assertEquals(1, descendants.size());
+		assertEquals(subPerson.getId(), descendants.get(0).getId());
+		assertTrue(EntityManager.queryDescendants(person, 0).isEmpty());
+	}
+
+	/**
+	 * Test of owner-specific extra attributes.
+	 */
+	@Test
+	public void testOwnerExtraAttributes()
+		throws StorageException, TransactionException {
+		Entity person = queryPersonByLastName("Test1");
+		Entity owner = queryPersonByLastName("Test2");
+
+		assertNull(person.getExtraAttributeFor(owner, XA1, null, false));
+
+		person.setExtraAttributeFor(owner, XA1, "Owned", null);
+		EntityManager.storeEntity(person, null);
+
+		assertEquals("Owned",
+			person.getExtraAttributeFor(owner, XA1, null, false));
+		assertNull(person.getExtraAttributeFor(owner, XA2, null, false));
+
+		person.setExtraAttributeFor(owner, XA1, "Changed", null);
+		EntityManager.storeEntity(person, null);
+
+		assertEquals("Changed",
+			person.getExtraAttributeFor(owner, XA1, null, false));
+		assertNull(person.getExtraAttribute(XA1, null));
+	}
+
+	/**
+	 * Test of prefetching extra attributes in entity queries.
+	 */
+	@Test
+	public void testPrefetchExtraAttributes()
+		throws StorageException, TransactionException {
+		setupExtraAttributes();
+		EntityManager.invalidateCache();
+
+		QueryPredicate<TestPerson> query = forEntity(TestPerson.class,
+			ifAttribute(LASTNAME, elementOf("Test1", "Test2")));
+
+		query.set(PREFETCH_EXTRA_ATTRIBUTES);
+
+		try (EntityIterator<TestPerson> persons = new EntityIterator<>(
+			query)) {
+			while (persons.hasNext()) {
+				TestPerson person = persons.next();
+
+				assertTrue(person.hasFlag(EXTRA_ATTRIBUTES_READ));
+
+				if ("Test1".equals(person.get(LASTNAME))) {
+					assertEquals("XA1-Test",
+						person.getExtraAttribute(XA1, null));
+					assertEquals(Integer.valueOf(42),
+						person.getExtraAttribute(XA_INT, null));
+				} else {
+					assertFalse(person.hasExtraAttribute(XA1));
+				}
+			}
+		}
 	}
 
 	/**
@@ -275,6 +470,38 @@ public class EntityStorageTest extends AbstractEntityStorageTest {
 			.size());
 	}
 
+	/**
+	 * Test of bulk queries by entity IDs.
+	 */
+	@Test
+	public void testQueryByIds() throws StorageException {
+		List<TestPerson> persons = executePersonQuery(null);
+		List<Long> ids = new ArrayList<>();
+
+		for (TestPerson person : persons) {
+			ids.add(person.getId());
+		}
+
+		TestPerson cached = persons.get(0);
+
+		ids.add(-1L);
+		EntityManager.invalidateCache();
+		EntityManager.cacheEntity(cached);
+
+		Map<Long, TestPerson> result =
+			EntityManager.queryEntities(TestPerson.class, ids);
+
+		assertEquals(TEST_DATA_SIZE, result.size());
+		assertSame(cached, result.get(cached.getId()));
+		assertNull(result.get(-1L));
+
+		Map<String, Entity> globalResult =
+			EntityManager.queryEntitiesByGlobalId(
+				Arrays.asList(cached.getGlobalId()));
+
+		assertSame(cached, globalResult.get(cached.getGlobalId()));
+	}
+
 	/**
 	 * Test of sorted queries.
 	 */
@@ -295,6 +522,125 @@ public class EntityStorageTest extends AbstractEntityStorageTest {
 		assertEquals("First" + TEST_DATA_SIZE, entities.get(0).get(FORENAME));
 	}
 
+	/**
+	 * Test of storing multiple entities in a single transaction.
+	 */
+	@Test
+	public void testStoreEntities()
+		throws StorageException, TransactionException {
+		List<TestPerson> persons = new ArrayList<>();
+
+		for (int i = 1; i <= 3; i++) {
+			persons.add(createPerson(
+				new String[] { "Bulk" + i, "First", "Street", "Postal",
+					"City", "30" }));
+		}
+
+		Entity person = queryPersonByLastName("Test1");
+
+		person.set(AGE, 33);
+		persons.add((TestPerson) person);
+
+		EntityManager.storeEntities(persons, null);
+
+		for (int i = 1; i <= 3; i++) {
+			assertTrue(queryPersonByLastName("Bulk" + i).isPersistent());
+		}
+
+		EntityManager.invalidateCache();
+		assertEquals(Integer.valueOf(33),
+			queryPersonByLastName("Test1").get(AGE));
+	}
+
+	/**
+	 * Test of sequential and parallel entity streams.
+	 */
+	@Test
+	public void testStream() throws StorageException {
+		long count = executePersonQuery(alwaysTrue()).size();
+
+		try (Stream<TestPerson> persons = EntityManager.stream(
+			forEntity(TestPerson.class, alwaysTrue()), false)) {
+			assertEquals(count, persons.count());
+		}
+
+		try (Stream<TestPerson> persons = EntityManager.stream(
+			forEntity(TestPerson.class, alwaysTrue()), true)) {
+			assertEquals(count, persons.count());
+		}
+
+		QueryPredicate<TestPerson> uncached =
+			forEntity(TestPerson.class, alwaysTrue());
+
+		uncached.set(NO_ENTITY_CACHING);
+		EntityManager.invalidateCache();
+
+		// the flag must be applied to the queries of all partitions
+		try (Stream<TestPerson> persons = EntityManager.stream(uncached,
+			true)) {
+			assertTrue(persons.noneMatch(Entity::isCached));
+		}
+
+		long firstId = queryPersonByLastName("Test2").getId();
+		long lastId = queryPersonByLastName("Test4").getId();
+
+		QueryPredicate<TestPerson> selected = forEntity(TestPerson.class,
+			ifAttribute(LASTNAME, elementOf("Test2", "Test3", "Test4")));
+
+		selected.set(NO_ENTITY_CACHING);
+		EntityManager.invalidateCache();
+
+		EntitySpliterator<TestPerson> spliterator =
+			new EntitySpliterator<>(selected, 1);
+
+		try {
+			// the ID range must be determined from the query criteria
+			assertEquals(3, spliterator.estimateSize());
+
+			Spliterator<TestPerson> split = spliterator.trySplit();
+
+			assertNotNull(split);
+			assertEquals(3, StreamSupport.stream(split, false).count() +
+				StreamSupport.stream(spliterator, false).count());
+		} finally {
+			spliterator.close();
+		}
+
+		// neither the boundary nor the partition queries may cache entities
+		assertNull(EntityManager.getCachedEntity(TestPerson.class, firstId));
+		assertNull(EntityManager.getCachedEntity(TestPerson.class, lastId));
+
+		QueryPredicate<TestPerson> scan =
+			forEntity(TestPerson.class, alwaysTrue());
+
+		scan.set(STREAMING_FETCH_SIZE, 2);
+		scan.set(NO_ENTITY_CACHING);
+
+		try (Stream<TestPerson> persons = EntityManager.stream(scan)) {
+			assertEquals(count, persons.count());
+		}
+
+		scan.set(QUERY_LIMIT, 3);
+
+		try (Stream<TestPerson> persons = EntityManager.stream(scan)) {
+			assertEquals(3, persons.count());
+		}
+
+		ElementPredicate<Entity, String> sortPredicate =
+			ifAttribute(FORENAME, alwaysTrue());
+
+		sortPredicate.set(MetaTypes.SORT_DIRECTION, SortDirection.ASCENDING);
+		scan = forEntity(TestPerson.class, sortPredicate);
+		scan.set(STREAMING_FETCH_SIZE, 2);
+
+		try {
+			new EntityIterator<>(scan);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// this should happen
+		}
+	}
+
 	/**
 	 * Test the sub-hierarchy of contacts
 	 */
@@ -327,6 +673,32 @@ public class EntityStorageTest extends AbstractEntityStorageTest {
 			.get(CONTACT_VALUE));
 	}
 
+	/**
+	 * Test the reading of a contact hierarchy with disabled caching.
+	 */
+	@Test
+	public void testSubContactsWithoutCaching()
+		throws StorageException, TransactionException {
+		Entity person = queryPersonByLastName("Test1");
+		TestContact contact = person.get(CONTACTS).get(0);
+
+		addContacts(contact, "nocache@test.net");
+		EntityManager.storeEntity(person, null);
+		EntityManager.disableCaching(TestContact.class);
+
+		try {
+			TestContact subContact =
+				EntityManager.queryEntity(TestContact.class,
+					ifAttribute(CONTACT_VALUE, equalTo("nocache@test.net")),
+					true);
+
+			assertEquals(contact.getId(),
+				subContact.get(TestContact.PARENT).getId());
+		} finally {
+			EntityManager.removeEntityCache(TestContact.class);
+		}
+	}
+
 	/**
 	 * Test of storage updates.
 	 */
@@ -355,6 +727,45 @@ public class EntityStorageTest extends AbstractEntityStorageTest {
 			person.get(CONTACTS).get(0).get(CONTACT_VALUE));
 	}
 
+	/**
+	 * Tests the weighted global entity cache.
+	 */
+	@Test
+	public void testWeightedCaching() throws StorageException {
+		WeightedEntityCache cache = new WeightedEntityCache(100);
+
+		EntityManager.setWeightedCache(cache);
+
+		try {
+			TestPerson person = queryPersonByLastName("Test1");
+
+			assertTrue(person.isCached());
+			assertSame(person, queryPersonByLastName("Test1"));
+			assertTrue(cache.getWeight() >= 1);
+
+			EntityManager.invalidateCache();
+			assertEquals(0, cache.getWeight());
+			assertFalse(person.isCached());
+
+			TestPerson reloaded = queryPersonByLastName("Test1");
+
+			assertNotSame(person, reloaded);
+			cache.put(EntityManager.getGlobalEntityId(reloaded), person);
+			assertTrue(person.isCached());
+			assertFalse(reloaded.isCached());
+
+			EntityManager.setWeightedCache(new WeightedEntityCache(1) {
+				@Override
+				protected int getWeight(Entity entity) {
+					return 2;
+				}
+			});
+			assertFalse(queryPersonByLastName("Test2").isCached());
+		} finally {
+			EntityManager.setWeightedCache(null);
+		}
+	}
+
 	/**
 	 * Query an entity by it's last name.
 	 *
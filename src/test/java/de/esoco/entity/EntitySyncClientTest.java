@@ -0,0 +1,110 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.entity;
+
+import de.esoco.entity.EntitySyncClient.LocalLockService;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test for {@link EntitySyncClient}.
+ *
+ * @author eso
+ */
+public class EntitySyncClientTest {
+
+	/**
+	 * Tests the locking and asynchronous releasing of entities.
+	 */
+	@Test
+	public void testLockAndRelease() throws Exception {
+		LocalLockService service = new LocalLockService();
+		EntitySyncClient client1 =
+			new EntitySyncClient("C1", service, 60_000, 50, 100);
+		EntitySyncClient client2 =
+			new EntitySyncClient("C2", service, 60_000, 50, 100);
+
+		try {
+			assertEquals("", client1.lock("E-1"));
+			assertEquals("C1", client2.lock("E-1"));
+			assertTrue(client1.hasLease("E-1"));
+
+			// re-locking a leased or pending entity needs no request
+			int requests = service.getRequestCount();
+
+			client1.release("E-1");
+			assertEquals("", client1.lock("E-1"));
+			assertEquals(requests, service.getRequestCount());
+
+			client1.release("E-1");
+			Thread.sleep(500);
+			assertNull(service.getLockHolder("E-1"));
+			assertEquals("", client2.lock("E-1"));
+		} finally {
+			client1.shutdown();
+			client2.shutdown();
+		}
+
+		assertNull(service.getLockHolder("E-1"));
+	}
+
+	/**
+	 * Tests the detection of lock leases that could not be renewed.
+	 */
+	@Test
+	public void testLostLease() throws Exception {
+		LocalLockService service = new LocalLockService();
+		EntitySyncClient client1 =
+			new EntitySyncClient("C1", service, 200, 50, 100);
+		EntitySyncClient client2 =
+			new EntitySyncClient("C2", service, 60_000, 50, 100);
+
+		try {
+			assertEquals("", client1.lock("E-1"));
+
+			// simulate the expiry of the lock in the sync service
+			service.releaseLocks("C1", Arrays.asList("E-1"));
+			assertEquals("", client2.lock("E-1"));
+
+			Thread.sleep(250);
+			client1.renewLeases();
+			assertFalse(client1.hasLease("E-1"));
+			assertTrue(client1.isLeaseLost("E-1"));
+
+			client1.release("E-1");
+			assertFalse(client1.isLeaseLost("E-1"));
+			assertEquals("C2", service.getLockHolder("E-1"));
+
+			// a renewal must not re-acquire a lock that expired in the service
+			assertEquals("", client1.lock("E-2"));
+			service.releaseLocks("C1", Arrays.asList("E-2"));
+			Thread.sleep(250);
+			client1.renewLeases();
+			assertTrue(client1.isLeaseLost("E-2"));
+			assertNull(service.getLockHolder("E-2"));
+		} finally {
+			client1.shutdown();
+			client2.shutdown();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.entity;
+
+import de.esoco.lib.manage.TransactionManager;
+import de.esoco.storage.StorageException;
+import de.esoco.storage.StorageManager;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static de.esoco.entity.TestPerson.CHILDREN;
+import static de.esoco.entity.TestPerson.PARENT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test of the hierarchy queries {@link EntityManager#queryDescendants(Entity,
+ * int)} and {@link EntityManager#queryAncestors(Entity, int)}.
+ *
+ * @author eso
+ */
+public class HierarchyQueryTest extends AbstractEntityStorageTest {
+
+	private static final String JDBC_URL =
+		"jdbc:h2:mem:testdb;user=sa;password=";
+
+	/**
+	 * Test of hierarchy queries with the storage API inside of a transaction
+	 * and with recursive SQL queries outside of it.
+	 */
+	@Test
+	public void testHierarchyQueries() throws Exception {
+		TestPerson root = createPerson("Root");
+		TestPerson child1 = createPerson("Child1");
+		TestPerson child2 = createPerson("Child2");
+		TestPerson grandChild = createPerson("GrandChild");
+		TestPerson greatGrandChild = createPerson("GreatGrandChild");
+
+		grandChild.addChild(CHILDREN, greatGrandChild);
+		child1.addChild(CHILDREN, grandChild);
+		root.addChildren(CHILDREN, child1, child2);
+		EntityManager.storeEntity(root, null);
+
+		List<TestPerson> tree =
+			Arrays.asList(root, child1, child2, grandChild, greatGrandChild);
+
+		checkHierarchyQueries(tree);
+
+		// recursive queries are only used outside of transactions
+		TransactionManager.commit();
+		EntityManager.setDirectJdbcUrl(JDBC_URL);
+
+		try {
+			assertEquals(getIds(Arrays.asList(grandChild, greatGrandChild)),
+				RecursiveHierarchyQuery.queryDescendantIds(JDBC_URL,
+					root.getDefinition(), PARENT, child1.getId(),
+					Integer.MAX_VALUE));
+			assertEquals(getIds(Arrays.asList(child1, root)),
+				RecursiveHierarchyQuery.queryAncestorIds(JDBC_URL,
+					root.getDefinition(), PARENT, grandChild.getId(),
+					Integer.MAX_VALUE));
+
+			EntityManager.invalidateCache();
+			checkHierarchyQueries(tree);
+		} finally {
+			EntityManager.setDirectJdbcUrl(null);
+			EntityManager.delete(root, true);
+
+			storage = StorageManager.getStorage(TestPerson.class);
+			TransactionManager.begin();
+			TransactionManager.addTransactionElement(storage);
+		}
+	}
+
+	/**
+	 * Checks the results of the hierarchy queries for a tree of four levels.
+	 *
+	 * @param tree The entities of the tree in the order root, first child,
+	 *             second child, grandchild of the first child, and great
+	 *             grandchild
+	 */
+	private void checkHierarchyQueries(List<TestPerson> tree)
+		throws StorageException {
+		TestPerson root = tree.get(0);
+		TestPerson child1 = tree.get(1);
+		TestPerson greatGrandChild = tree.get(4);
+		List<Long> descendants = getIds(
+			EntityManager.queryDescendants(root, Integer.MAX_VALUE));
+
+		assertEquals(4, descendants.size());
+		assertEquals(new HashSet<>(getIds(tree.subList(1, 3))),
+			new HashSet<>(descendants.subList(0, 2)));
+		assertEquals(getIds(tree.subList(3, 5)), descendants.subList(2, 4));
+		assertEquals(3, EntityManager.queryDescendants(root, 2).size());
+		assertEquals(getIds(tree.subList(3, 5)),
+			getIds(EntityManager.queryDescendants(child1, Integer.MAX_VALUE)));
+		assertTrue(EntityManager.queryDescendants(root, 0).isEmpty());
+
+		assertEquals(
+			getIds(Arrays.asList(tree.get(3), child1, root)),
+			getIds(EntityManager.queryAncestors(greatGrandChild,
+				Integer.MAX_VALUE)));
+		assertEquals(getIds(tree.subList(3, 4)),
+			getIds(EntityManager.queryAncestors(greatGrandChild, 1)));
+		assertTrue(
+			EntityManager.queryAncestors(root, Integer.MAX_VALUE).isEmpty());
+	}
+
+	/**
+	 * Creates a new person with a certain last name.
+	 *
+	 * @param lastName The last name
+	 * @return The new person
+	 */
+	private TestPerson createPerson(String lastName) {
+		return createPerson(
+			new String[] { lastName, "First", "Street", "Postal", "City",
+				"42" });
+	}
+
+	/**
+	 * Returns the IDs of a list of entities.
+	 *
+	 * @param entities The entities
+	 * @return A new list containing the entity IDs
+	 */
+	@SuppressWarnings("boxing")
+	private List<Long> getIds(List<? extends Entity> entities) {
+		List<Long> ids = new ArrayList<>(entities.size());
+
+		for (Entity entity : entities) {
+			ids.add(entity.getId());
+		}
+
+		return ids;
+	}
+}
@@ -0,0 +1,114 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.entity;
+
+import de.esoco.lib.logging.LogLevel;
+import de.esoco.storage.StorageException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static de.esoco.lib.expression.Predicates.equalTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Test of {@link JdbcBatchLogging}.
+ *
+ * @author eso
+ */
+public class JdbcBatchLoggingTest extends AbstractEntityStorageTest {
+
+	/**
+	 * Initializes the log table.
+	 */
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+
+		storage.initObjectStorage(LogEntry.class);
+	}
+
+	/**
+	 * Test of batch inserts.
+	 */
+	@Test
+	@SuppressWarnings("boxing")
+	public void testBatchInsert() throws StorageException {
+		JdbcBatchLogging logging = new JdbcBatchLogging();
+		List<JdbcBatchLogging.LogLine> logLines = new ArrayList<>();
+		long time = System.currentTimeMillis();
+		String message = "BATCH-" + time;
+
+		logging.set(JdbcBatchLogging.JDBC_URL,
+			"jdbc:h2:mem:testdb;user=sa;password=");
+		logging.set(JdbcBatchLogging.FLUSH_SIZE, 10);
+
+		for (int i = 0; i < 5; i++) {
+			logLines.add(new JdbcBatchLogging.LogLine(LogLevel.ERROR, time,
+				message, null));
+		}
+
+		logging.processLogObjects(logLines);
+
+		assertEquals(0, countLogEntries(message));
+
+		logging.flush();
+
+		assertEquals(5, countLogEntries(message));
+	}
+
+	/**
+	 * Test that closing writes the pending records.
+	 */
+	@Test
+	@SuppressWarnings("boxing")
+	public void testClose() throws StorageException {
+		JdbcBatchLogging logging = new JdbcBatchLogging();
+		String message = "CLOSE-" + System.currentTimeMillis();
+
+		logging.set(JdbcBatchLogging.JDBC_URL,
+			"jdbc:h2:mem:testdb;user=sa;password=");
+		logging.set(JdbcBatchLogging.FLUSH_SIZE, 10);
+		logging.init();
+
+		logging.processLogObjects(Arrays.asList(
+			new JdbcBatchLogging.LogLine(LogLevel.WARN,
+				System.currentTimeMillis(), message, null)));
+
+		assertEquals(0, countLogEntries(message));
+
+		logging.close();
+
+		assertEquals(1, countLogEntries(message));
+	}
+
+	/**
+	 * Counts the log entries with a certain message.
+	 *
+	 * @param message The message
+	 * @return The number of log entries
+	 * @throws StorageException If the query fails
+	 */
+	private int countLogEntries(String message) throws StorageException {
+		return EntityManager
+			.queryEntities(LogEntry.class,
+				LogEntry.MESSAGE.is(equalTo(message)), 100)
+			.size();
+	}
+}
@@ -0,0 +1,130 @@
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+// This file is a part of the 'esoco-business' project.
+// Copyright 2018 Elmar Sonnenschein, esoco GmbH, Flensburg, Germany
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//	  http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++
+package de.esoco.entity;
+
+import de.esoco.lib.logging.LogLevel;
+import de.esoco.lib.manage.TransactionManager;
+import de.esoco.storage.StorageManager;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static de.esoco.lib.expression.Predicates.equalTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Test of {@link JdbcBatchStore} and the batch inserts of
+ * {@link EntityManager#storeEntities(java.util.Collection, Entity)}.
+ *
+ * @author eso
+ */
+public class JdbcBatchStoreTest extends AbstractEntityStorageTest {
+
+	private static final String JDBC_URL =
+		"jdbc:h2:mem:testdb;user=sa;password=";
+
+	/**
+	 * Initializes the log table.
+	 */
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+
+		storage.initObjectStorage(LogEntry.class);
+	}
+
+	/**
+	 * Test of the entity types that are supported by batch inserts.
+	 */
+	@Test
+	public void testBatchSupport() throws Exception {
+		JdbcBatchStore batchStore = new JdbcBatchStore(JDBC_URL);
+
+		try {
+			assertFalse(batchStore.add(new TestPerson(), null));
+			assertTrue(batchStore.add(createLogEntry("SUPPORT"), null));
+		} finally {
+			batchStore.rollback();
+		}
+	}
+
+	/**
+	 * Test of storing new entities with batch inserts.
+	 */
+	@Test
+	@SuppressWarnings("boxing")
+	public void testStoreEntities() throws Exception {
+		String message = "STORE-" + System.currentTimeMillis();
+		List<LogEntry> entries = new ArrayList<>();
+		Set<Long> ids = new HashSet<>();
+
+		for (int i = 0; i < JdbcBatchStore.BATCH_SIZE + 2; i++) {
+			entries.add(createLogEntry(message));
+		}
+
+		// batch inserts are only used outside of surrounding transactions
+		TransactionManager.commit();
+		EntityManager.setDirectJdbcUrl(JDBC_URL);
+
+		try {
+			EntityManager.storeEntities(entries, null);
+		} finally {
+			EntityManager.setDirectJdbcUrl(null);
+
+			storage = StorageManager.getStorage(TestPerson.class);
+			TransactionManager.begin();
+			TransactionManager.addTransactionElement(storage);
+		}
+
+		for (LogEntry entry : entries) {
+			assertTrue(entry.isPersistent());
+			assertFalse(entry.isModified());
+			ids.add(entry.getId());
+		}
+
+		assertEquals(entries.size(), ids.size());
+
+		EntityManager.invalidateCache();
+
+		assertEquals(entries.size(), EntityManager
+			.queryEntities(LogEntry.class,
+				LogEntry.MESSAGE.is(equalTo(message)), entries.size() + 1)
+			.size());
+	}
+
+	/**
+	 * Creates a new log entry.
+	 *
+	 * @param message The log message
+	 * @return The new log entry
+	 */
+	private LogEntry createLogEntry(String message) {
+		LogEntry entry = new LogEntry();
+
+		entry.set(LogEntry.LEVEL, LogLevel.INFO);
+		entry.set(LogEntry.TIME, new Date());
+		entry.set(LogEntry.MESSAGE, message);
+
+		return entry;
+	}
+}
@@ -18,17 +18,32 @@ package de.esoco.history;
 
 import de.esoco.entity.AbstractEntityStorageTest;
 import de.esoco.entity.Entity;
+import de.esoco.entity.EntityManager;
 import de.esoco.entity.TestPerson;
 import de.esoco.lib.manage.TransactionException;
+import de.esoco.lib.manage.TransactionManager;
+import de.esoco.storage.QueryPredicate;
 import de.esoco.storage.StorageException;
+import de.esoco.storage.StorageManager;
 import org.junit.jupiter.api.Test;
+import org.obrel.core.RelationType;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
+import static de.esoco.entity.EntityPredicates.forEntity;
+import static de.esoco.entity.EntityRelationTypes.PREFETCH_REFERENCES;
 import static de.esoco.history.HistoryRecord.HistoryType.GROUP;
 import static de.esoco.history.HistoryRecord.HistoryType.INFO;
 import static de.esoco.history.HistoryRecord.HistoryType.NOTE;
+import static de.esoco.lib.expression.Predicates.equalTo;
+import static de.esoco.storage.StoragePredicates.like;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * Test of history functions.
@@ -60,6 +75,23 @@ public class HistoryTest extends AbstractEntityStorageTest {
 		storage.store(target);
 	}
 
+	/**
+	 * Test of archiving old history records.
+	 */
+	@Test
+	public void testArchiveHistory()
+		throws StorageException, TransactionException {
+		HistoryManager.record(INFO, origin, target, "TEST1");
+		HistoryManager.record(INFO, origin, target, "TEST2");
+
+		List<HistoryRecord> archived = new ArrayList<>();
+		Date before = new Date(System.currentTimeMillis() + 1000);
+
+		assertEquals(2, HistoryManager.archiveHistory(before, archived::add));
+		assertEquals(2, archived.size());
+		assertEquals(0, HistoryManager.getHistoryFor(target, INFO).size());
+	}
+
 	/**
 	 * Test of discarding empty hierarchy.
 	 */
@@ -115,6 +147,191 @@ public class HistoryTest extends AbstractEntityStorageTest {
 		assertEquals("TEST", history.get(0).get(HistoryRecord.VALUE));
 	}
 
+	/**
+	 * Test of paged history queries.
+	 */
+	@Test
+	public void testPagedHistory()
+		throws StorageException, TransactionException {
+		for (int i = 1; i <= 3; i++) {
+			HistoryManager.record(INFO, origin, target, "TEST" + i);
+		}
+
+		List<HistoryRecord> history =
+			HistoryManager.getHistoryFor(target, INFO, null, null, null, 1,
+				10);
+
+		assertEquals(2, history.size());
+
+		history = HistoryManager.getHistoryFor(target, INFO, null, null, null,
+			0, 2);
+
+		assertEquals(2, history.size());
+	}
+
+	/**
+	 * Test of the bulk prefetching of history references.
+	 */
+	@Test
+	public void testPrefetchReferences()
+		throws StorageException, TransactionException {
+		HistoryManager.record(INFO, origin, target, "TEST");
+		EntityManager.invalidateCache();
+
+		QueryPredicate<HistoryRecord> query = forEntity(HistoryRecord.class,
+			HistoryRecord.TARGET.is(equalTo(target)));
+
+		query.set(PREFETCH_REFERENCES,
+			Arrays.<RelationType<? extends Entity>>asList(HistoryRecord.ORIGIN,
+				HistoryRecord.TARGET));
+
+		List<HistoryRecord> history = EntityManager.queryEntities(query, 10);
+
+		assertEquals(1, history.size());
+		assertNotNull(EntityManager.getCachedEntity(origin.getGlobalId()));
+		assertEquals(origin.getId(),
+			history.get(0).get(HistoryRecord.ORIGIN).getId());
+	}
+
+	/**
+	 * Test of the compressed storage of history values.
+	 */
+	@Test
+	public void testValueCompression()
+		throws StorageException, TransactionException {
+		StringBuilder value = new StringBuilder();
+
+		for (int i = 0; i < 100; i++) {
+			value.append("Change ").append(i).append('\n');
+		}
+
+		HistoryManager.record(INFO, origin, target, value.toString());
+		HistoryManager.setValueCompression(100);
+
+		try {
+			QueryPredicate<HistoryRecord> compressed =
+				forEntity(HistoryRecord.class,
+					HistoryRecord.VALUE.is(like("{GZ}%")));
+
+			assertEquals(0, EntityManager.queryEntities(compressed, 10).size());
+			assertEquals(1, HistoryManager.compressHistoryValues());
+			assertEquals(1, EntityManager.queryEntities(compressed, 10).size());
+			assertEquals(0, HistoryManager.compressHistoryValues());
+
+			List<HistoryRecord> history =
+				HistoryManager.getHistoryFor(target, INFO);
+
+			assertEquals(value.toString(),
+				history.get(0).get(HistoryRecord.VALUE));
+		} finally {
+			HistoryManager.setValueCompression(0);
+		}
+	}
+
+	/**
+	 * Test that history batches are stored synchronously in the current
+	 * transaction if write-behind is enabled.
+	 */
+	@Test
+	public void testWriteBehindBatch()
+		throws StorageException, TransactionException {
+		HistoryManager.setWriteBehind(10);
+
+		try {
+			HistoryManager.beginBatch();
+			HistoryManager.record(INFO, origin, target, "TEST");
+			HistoryManager.commitBatch();
+
+			List<HistoryRecord> history =
+				HistoryManager.getHistoryFor(target, INFO);
+
+			assertEquals(1, history.size());
+		} finally {
+			HistoryManager.setWriteBehind(0);
+		}
+	}
+
+	/**
+	 * Test that write-behind records of an active transaction will not be
+	 * stored before the transaction is committed.
+	 */
+	@Test
+	public void testWriteBehindInTransaction()
+		throws StorageException, TransactionException {
+		HistoryManager.setWriteBehind(10);
+
+		try {
+			HistoryManager.record(INFO, origin, target, "TEST");
+
+			assertTrue(HistoryManager.flush(5000));
+			assertEquals(0, HistoryManager.getHistoryFor(target, INFO).size());
+		} finally {
+			HistoryManager.setWriteBehind(0);
+		}
+	}
+
+	/**
+	 * Test that write-behind records that are recorded outside of a
+	 * transaction are stored by the background writer.
+	 */
+	@Test
+	public void testWriteBehindOutsideTransaction()
+		throws StorageException, TransactionException {
+		// records are only queued outside of transactions
+		TransactionManager.commit();
+		HistoryManager.setWriteBehind(10);
+
+		try {
+			for (int i = 1; i <= 3; i++) {
+				HistoryManager.record(INFO, origin, target, "TEST" + i);
+			}
+
+			assertTrue(HistoryManager.flush(5000));
+			assertEquals(3, HistoryManager.getHistoryFor(target, INFO).size());
+		} finally {
+			HistoryManager.setWriteBehind(0);
+			deleteCommittedRecords();
+		}
+	}
+
+	/**
+	 * Test that records are stored synchronously if the write-behind queue is
+	 * full.
+	 */
+	@Test
+	public void testWriteBehindQueueFull()
+		throws StorageException, TransactionException {
+		// the writer thread is started later so that the queue stays full
+		HistoryWriter writer = new HistoryWriter(1);
+
+		TransactionManager.commit();
+		HistoryManager.setHistoryWriter(writer);
+
+		try {
+			for (int i = 1; i <= 3; i++) {
+				HistoryManager.record(INFO, origin, target, "TEST" + i);
+			}
+
+			List<HistoryRecord> history =
+				HistoryManager.getHistoryFor(target, INFO);
+
+			// only the first record has been queued
+			assertEquals(2, history.size());
+
+			for (HistoryRecord record : history) {
+				assertNotEquals("TEST1", record.get(HistoryRecord.VALUE));
+			}
+
+			writer.start();
+
+			assertTrue(HistoryManager.flush(5000));
+			assertEquals(3, HistoryManager.getHistoryFor(target, INFO).size());
+		} finally {
+			HistoryManager.setWriteBehind(0);
+			deleteCommittedRecords();
+		}
+	}
+
 	/**
 	 * Test of saving empty hierarchy.
 	 */
@@ -137,4 +354,24 @@ public class HistoryTest extends AbstractEntityStorageTest {
 
 		assertEquals(0, records.size());
 	}
+
+	/**
+	 * Deletes the committed history records and test persons of a test that
+	 * runs outside of a transaction and begins a new transaction for the
+	 * rollback in {@link #tearDown()}.
+	 *
+	 * @throws StorageException     If accessing the storage fails
+	 * @throws TransactionException If the deletion fails
+	 */
+	private void deleteCommittedRecords()
+		throws StorageException, TransactionException {
+		EntityManager.deleteAll(HistoryManager.getHistoryFor(target, INFO),
+			false);
+		EntityManager.delete(origin);
+		EntityManager.delete(target);
+
+		storage = StorageManager.getStorage(TestPerson.class);
+		TransactionManager.begin();
+		TransactionManager.addTransactionElement(storage);
+	}
 }
@@ -17,9 +17,24 @@
 package de.esoco.lib.comm;
 
 import de.esoco.lib.comm.GraylogEndpoint.Protocol;
+import de.esoco.lib.comm.GraylogMessage.Level;
 import org.junit.jupiter.api.Test;
+import org.obrel.core.RelatedObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * Test for {@link GraylogEndpoint}
@@ -41,4 +56,155 @@ public class GraylogEndpointTest {
 		assertEquals("graylog://1.2.3.4:5?UDP",
 			GraylogEndpoint.url("1.2.3.4", 5, Protocol.UDP, false));
 	}
+
+	/**
+	 * Tests that {@link GraylogLogging#close()} sends the queued messages
+	 * before it stops the sender thread.
+	 */
+	@Test
+	public void testLoggingClose() throws IOException {
+		try (DatagramSocket server = new DatagramSocket(0,
+			InetAddress.getLoopbackAddress())) {
+			server.setSoTimeout(5000);
+
+			GraylogLogging logging = new GraylogLogging(
+				GraylogEndpoint.url("127.0.0.1", server.getLocalPort(),
+					Protocol.UDP, false));
+
+			logging.init();
+			logging.processLogObjects(
+				Arrays.asList(new GraylogMessage(Level.ERROR, "LOG1", null),
+					new GraylogMessage(Level.ERROR, "LOG2", null),
+					new GraylogMessage(Level.ERROR, "LOG3", null)));
+			logging.close();
+
+			byte[] buffer = new byte[GraylogEndpoint.MAX_UDP_CHUNK_SIZE];
+
+			for (int i = 1; i <= 3; i++) {
+				DatagramPacket packet =
+					new DatagramPacket(buffer, buffer.length);
+
+				server.receive(packet);
+
+				String json = decompress(
+					Arrays.copyOf(buffer, packet.getLength()));
+
+				assertTrue(json.contains("\"short_message\":\"LOG" + i));
+			}
+		}
+	}
+
+	/**
+	 * Tests sending of a small GELF message over UDP in a single datagram.
+	 */
+	@Test
+	public void testUdpMessage() throws IOException {
+		String json = sendUdpMessage("TEST", null);
+
+		assertTrue(json.contains("\"short_message\":\"TEST\""));
+	}
+
+	/**
+	 * Tests sending of a large GELF message over UDP in multiple chunks.
+	 */
+	@Test
+	public void testUdpMessageChunking() throws IOException {
+		Random random = new Random(42);
+		StringBuilder fullMessage = new StringBuilder();
+
+		for (int i = 0; i < 100000; i++) {
+			fullMessage.append((char) ('a' + random.nextInt(26)));
+		}
+
+		String json = sendUdpMessage("TEST", fullMessage.toString());
+
+		assertTrue(json.contains("\"short_message\":\"TEST\""));
+		assertTrue(json.contains(fullMessage));
+	}
+
+	/**
+	 * Sends a message to a local UDP socket and returns the received JSON
+	 * after reassembling chunks and decompressing the data.
+	 *
+	 * @param shortMessage The short message
+	 * @param fullMessage  The full message or NULL
+	 * @return The received JSON string
+	 * @throws IOException If receiving or decompressing fails
+	 */
+	private String sendUdpMessage(String shortMessage, String fullMessage)
+		throws IOException {
+		try (DatagramSocket server = new DatagramSocket(0,
+			InetAddress.getLoopbackAddress())) {
+			server.setSoTimeout(5000);
+
+			String url = GraylogEndpoint.url("127.0.0.1",
+				server.getLocalPort(), Protocol.UDP, false);
+
+			try (Connection connection = Endpoint
+				.at(url)
+				.connect(new RelatedObject())) {
+				GraylogEndpoint
+					.sendMessage()
+					.sendTo(connection, new GraylogMessage(Level.INFORMATIONAL,
+						shortMessage, fullMessage));
+			}
+
+			byte[] buffer = new byte[GraylogEndpoint.MAX_UDP_CHUNK_SIZE];
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			byte[][] chunks = null;
+			int received = 0;
+
+			do {
+				DatagramPacket packet =
+					new DatagramPacket(buffer, buffer.length);
+
+				server.receive(packet);
+
+				if (buffer[0] == 0x1e && buffer[1] == 0x0f) {
+					if (chunks == null) {
+						chunks = new byte[buffer[11]][];
+					}
+
+					chunks[buffer[10]] =
+						Arrays.copyOfRange(buffer, 12, packet.getLength());
+					received++;
+				} else {
+					data.write(buffer, 0, packet.getLength());
+				}
+			} while (chunks != null && received < chunks.length);
+
+			if (chunks != null) {
+				assertTrue(chunks.length > 1);
+
+				for (byte[] chunk : chunks) {
+					data.write(chunk);
+				}
+			}
+
+			return decompress(data.toByteArray());
+		}
+	}
+
+	/**
+	 * Decompresses GZIP data into a string.
+	 *
+	 * @param compressed The compressed data
+	 * @return The decompressed string
+	 * @throws IOException If the decompression fails
+	 */
+	private String decompress(byte[] compressed) throws IOException {
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+
+		try (InputStream in = new GZIPInputStream(
+			new ByteArrayInputStream(compressed))) {
+			byte[] buffer = new byte[4096];
+			int count;
+
+			while ((count = in.read(buffer)) > 0) {
+				text.write(buffer, 0, count);
+			}
+		}
+
+		return new String(text.toByteArray(), StandardCharsets.UTF_8);
+	}
 }